@@ -0,0 +1,195 @@
+package svs.memcached.client;
+
+import net.spy.memcached.AddrUtil;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Parameters of the benchmark run
+ */
+public class BenchmarkConfig {
+
+    private static final String USAGE = "Usage: MemcacheBenchmark [options]\n" +
+            "  --servers <host:port,...>    servers to connect to (default: 127.0.0.1:11211)\n" +
+            "  --connections <num>          number of connections (default: 4)\n" +
+            "  --threads <num>              number of client io threads (default: number of connections)\n" +
+            "  --rate <num>                 target request rate per second for all connections (default: 50000)\n" +
+            "  --pipeline <num>             max outstanding requests per connection (default: 16)\n" +
+            "  --duration <sec>             measured run duration (default: 30)\n" +
+            "  --warmup <sec>               unmeasured warmup before the run (default: 5)\n" +
+            "  --keys <num>                 key space size (default: 100000)\n" +
+            "  --key-prefix <str>           key prefix (default: key:)\n" +
+            "  --distribution <name>        uniform or zipfian (default: zipfian)\n" +
+            "  --zipf-exponent <num>        zipfian exponent in (0, 1) (default: 0.99)\n" +
+            "  --value-size <n|min-max>     value size, fixed or uniform range (default: 100)\n" +
+            "  --read-ratio <0..1>          fraction of get requests (default: 0.9)\n" +
+            "  --tls <true|false>           connect over tls, server certificate is not verified (default: false)\n" +
+            "  --auth <user:password>       authenticate connections before the run\n" +
+            "  --csv <file>                 write csv report to file\n" +
+            "  --json <file>                write json report to file";
+
+    private List<InetSocketAddress> servers = AddrUtil.getAddresses("127.0.0.1:11211");
+    private int connections = 4;
+    private int threads = 0;
+    private long rate = 50000;
+    private int pipelineDepth = 16;
+    private int durationSec = 30;
+    private int warmupSec = 5;
+    private long keySpace = 100000;
+    private String keyPrefix = "key:";
+    private String distribution = "zipfian";
+    private double zipfExponent = 0.99;
+    private ValueSizeDistribution valueSize = new ValueSizeDistribution(100, 100);
+    private double readRatio = 0.9;
+    private boolean tls;
+    private String auth;
+    private String csvFile;
+    private String jsonFile;
+
+    public static BenchmarkConfig parse(String[] args) {
+        BenchmarkConfig config = new BenchmarkConfig();
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if ("--help".equals(arg) || "-h".equals(arg)) {
+                throw new IllegalArgumentException(USAGE);
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg + "\n" + USAGE);
+            }
+            final String value = args[++i];
+            switch (arg) {
+                case "--servers": config.servers = AddrUtil.getAddresses(value); break;
+                case "--connections": config.connections = Integer.parseInt(value); break;
+                case "--threads": config.threads = Integer.parseInt(value); break;
+                case "--rate": config.rate = Long.parseLong(value); break;
+                case "--pipeline": config.pipelineDepth = Integer.parseInt(value); break;
+                case "--duration": config.durationSec = Integer.parseInt(value); break;
+                case "--warmup": config.warmupSec = Integer.parseInt(value); break;
+                case "--keys": config.keySpace = Long.parseLong(value); break;
+                case "--key-prefix": config.keyPrefix = value; break;
+                case "--distribution": config.distribution = value.toLowerCase(); break;
+                case "--zipf-exponent": config.zipfExponent = Double.parseDouble(value); break;
+                case "--value-size": config.valueSize = ValueSizeDistribution.parse(value); break;
+                case "--read-ratio": config.readRatio = Double.parseDouble(value); break;
+                case "--tls": config.tls = Boolean.parseBoolean(value); break;
+                case "--auth": config.auth = value; break;
+                case "--csv": config.csvFile = value; break;
+                case "--json": config.jsonFile = value; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + arg + "\n" + USAGE);
+            }
+        }
+        config.validate();
+        return config;
+    }
+
+    private void validate() {
+        if (connections < 1 || threads < 0 || rate < connections || pipelineDepth < 1 || durationSec < 1
+                || warmupSec < 0 || keySpace < 1 || readRatio < 0 || readRatio > 1
+                || (auth != null && auth.indexOf(':') < 1)) {
+            throw new IllegalArgumentException("Invalid benchmark parameters: " + this + "\n" + USAGE);
+        }
+        if (!"uniform".equals(distribution) && !"zipfian".equals(distribution)) {
+            throw new IllegalArgumentException("Unknown key distribution: " + distribution + "\n" + USAGE);
+        }
+        if ("zipfian".equals(distribution) && (keySpace < 2 || !(zipfExponent > 0 && zipfExponent < 1))) {
+            throw new IllegalArgumentException("Zipfian distribution requires at least 2 keys and an exponent"
+                    + " in (0, 1)\n" + USAGE);
+        }
+    }
+
+    /**
+     * Builds the key distribution; zipfian one takes O(key space) time, so it should be built once per run
+     */
+    public KeyDistribution newKeyDistribution() {
+        switch (distribution) {
+            case "uniform": return KeyDistribution.uniform(keySpace);
+            case "zipfian": return KeyDistribution.zipfian(keySpace, zipfExponent);
+            default: throw new IllegalArgumentException("Unknown key distribution: " + distribution + "\n" + USAGE);
+        }
+    }
+
+    public List<InetSocketAddress> getServers() {
+        return servers;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getThreads() {
+        return threads > 0 ? threads : connections;
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public int getDurationSec() {
+        return durationSec;
+    }
+
+    public int getWarmupSec() {
+        return warmupSec;
+    }
+
+    public long getKeySpace() {
+        return keySpace;
+    }
+
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    public ValueSizeDistribution getValueSize() {
+        return valueSize;
+    }
+
+    public double getReadRatio() {
+        return readRatio;
+    }
+
+    public boolean isTls() {
+        return tls;
+    }
+
+    /**
+     * @return "user:password" or null if connections are not authenticated
+     */
+    public String getAuth() {
+        return auth;
+    }
+
+    public String getCsvFile() {
+        return csvFile;
+    }
+
+    public String getJsonFile() {
+        return jsonFile;
+    }
+
+    @Override
+    public String toString() {
+        return "BenchmarkConfig{" +
+                "servers=" + servers +
+                ", connections=" + connections +
+                ", threads=" + getThreads() +
+                ", rate=" + rate +
+                ", pipelineDepth=" + pipelineDepth +
+                ", durationSec=" + durationSec +
+                ", warmupSec=" + warmupSec +
+                ", keySpace=" + keySpace +
+                ", keyPrefix='" + keyPrefix + '\'' +
+                ", distribution=" + distribution +
+                ", zipfExponent=" + zipfExponent +
+                ", valueSize=" + valueSize +
+                ", readRatio=" + readRatio +
+                ", tls=" + tls +
+                ", auth=" + (auth != null) +
+                '}';
+    }
+}
@@ -0,0 +1,236 @@
+package svs.memcached.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Open-loop load generator bound to a single connection
+ *
+ * Requests are scheduled at fixed intervals regardless of server responses. Every request has an intended start time
+ * and latency is measured from it, not from the moment request was actually written. So if server (or pipeline depth
+ * limit) delays requests, queueing time is accounted in the latency and the results don't suffer from coordinated
+ * omission.
+ *
+ * All state is confined to the channel event loop.
+ */
+public class BenchmarkConnection extends SimpleChannelInboundHandler<MemcacheResponseDecoder.Response> {
+
+    private static final Logger logger = LogManager.getLogger(BenchmarkConnection.class);
+
+    private static final long TICK_MICROS = 200;
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final byte[] GET = "get ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SET = "set ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SET_FLAGS = " 0 0 ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final BenchmarkConfig config;
+    private final KeyDistribution keys;
+    private final byte[] valueData;
+    private final long intervalNanos;
+    private final long startNanos;
+    private final long measureStartNanos;
+    private final long endNanos;
+    private final Recorder getRecorder;
+    private final Recorder setRecorder;
+    private final Stats stats;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    // requests which are due but not sent yet because of pipeline depth limit; intended time relative to start
+    private final LongQueue backlog = new LongQueue();
+    // sent requests waiting for response; (intended time relative to start) << 1 | (1 for get)
+    private final LongQueue outstanding = new LongQueue();
+    private long issued;
+    private ChannelHandlerContext ctx;
+    private ScheduledFuture<?> ticker;
+
+    public BenchmarkConnection(BenchmarkConfig config, KeyDistribution keys, long ratePerConnection,
+                               long startNanos, Recorder getRecorder, Recorder setRecorder, Stats stats) {
+        this.config = config;
+        this.keys = keys;
+        this.valueData = new byte[config.getValueSize().getMax()];
+        Arrays.fill(valueData, (byte) 'x');
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerConnection;
+        this.startNanos = startNanos;
+        this.measureStartNanos = startNanos + TimeUnit.SECONDS.toNanos(config.getWarmupSec());
+        this.endNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(config.getDurationSec());
+        this.getRecorder = getRecorder;
+        this.setRecorder = setRecorder;
+        this.stats = stats;
+    }
+
+    /**
+     * @return future completed when all scheduled requests are answered (or connection is closed)
+     */
+    public CompletableFuture<Void> getDone() {
+        return done;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        long delay = Math.max(0, startNanos - System.nanoTime());
+        ticker = ctx.executor().scheduleAtFixedRate(this::tick, TimeUnit.NANOSECONDS.toMicros(delay), TICK_MICROS,
+                TimeUnit.MICROSECONDS);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stopTicker();
+        if (!done.isDone()) {
+            logger.warn("Connection {} closed with {} outstanding requests", ctx.channel(), outstanding.size());
+            done.complete(null);
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long due = Math.min(now, endNanos) - startNanos;
+        if (due >= 0) {
+            long dueCount = due / intervalNanos + 1;
+            for (; issued < dueCount; issued++) {
+                backlog.add(issued * intervalNanos);
+            }
+        }
+        sendBacklog();
+        if (now >= endNanos && (outstanding.isEmpty() || now >= endNanos + DRAIN_TIMEOUT_NANOS)) {
+            if (!outstanding.isEmpty() || !backlog.isEmpty()) {
+                logger.warn("Connection {} gave up waiting for {} responses; {} requests were never sent",
+                        ctx.channel(), outstanding.size(), backlog.size());
+            }
+            stopTicker();
+            done.complete(null);
+        }
+    }
+
+    private void sendBacklog() {
+        boolean written = false;
+        while (!backlog.isEmpty() && outstanding.size() < config.getPipelineDepth()) {
+            long intended = backlog.poll();
+            boolean isGet = ThreadLocalRandom.current().nextDouble() < config.getReadRatio();
+            writeRequest(isGet);
+            outstanding.add(intended << 1 | (isGet ? 1 : 0));
+            written = true;
+        }
+        if (written) {
+            ctx.flush();
+        }
+    }
+
+    private void writeRequest(boolean isGet) {
+        byte[] key = (config.getKeyPrefix() + keys.nextIndex()).getBytes(StandardCharsets.US_ASCII);
+        if (isGet) {
+            ByteBuf buf = ctx.alloc().ioBuffer(GET.length + key.length + CRLF.length);
+            buf.writeBytes(GET).writeBytes(key).writeBytes(CRLF);
+            ctx.write(buf, ctx.voidPromise());
+        } else {
+            int size = config.getValueSize().nextSize();
+            byte[] sizeBytes = Integer.toString(size).getBytes(StandardCharsets.US_ASCII);
+            ByteBuf buf = ctx.alloc().ioBuffer(SET.length + key.length + SET_FLAGS.length + sizeBytes.length
+                    + size + CRLF.length * 2);
+            buf.writeBytes(SET).writeBytes(key).writeBytes(SET_FLAGS).writeBytes(sizeBytes).writeBytes(CRLF)
+                    .writeBytes(valueData, 0, size).writeBytes(CRLF);
+            ctx.write(buf, ctx.voidPromise());
+        }
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, MemcacheResponseDecoder.Response response)
+            throws Exception {
+        if (outstanding.isEmpty()) {
+            logger.error("Unexpected response {} on {}", response, ctx.channel());
+            return;
+        }
+        long now = System.nanoTime();
+        long request = outstanding.poll();
+        long intended = startNanos + (request >> 1);
+        if (intended >= measureStartNanos) {
+            long latencyMicros = TimeUnit.NANOSECONDS.toMicros(now - intended);
+            if ((request & 1) == 1) {
+                getRecorder.recordValue(latencyMicros);
+            } else {
+                setRecorder.recordValue(latencyMicros);
+            }
+            switch (response) {
+                case HIT: stats.hits.increment(); break;
+                case MISS: stats.misses.increment(); break;
+                case ERROR: stats.errors.increment(); break;
+                default: break;
+            }
+        }
+        sendBacklog();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        logger.error("Error on connection " + ctx.channel(), cause);
+        ctx.close();
+    }
+
+    private void stopTicker() {
+        if (ticker != null) {
+            ticker.cancel(false);
+        }
+    }
+
+    /**
+     * Counters shared between connections
+     */
+    public static class Stats {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * Growable ring buffer of primitive longs to avoid boxing on the hot path
+     */
+    static class LongQueue {
+        private long[] elements = new long[64];
+        private int head;
+        private int size;
+
+        void add(long value) {
+            if (size == elements.length) {
+                long[] grown = new long[elements.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grown[i] = elements[(head + i) & (elements.length - 1)];
+                }
+                elements = grown;
+                head = 0;
+            }
+            elements[(head + size) & (elements.length - 1)] = value;
+            size++;
+        }
+
+        long poll() {
+            long value = elements[head];
+            head = (head + 1) & (elements.length - 1);
+            size--;
+            return value;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package svs.memcached.client;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latency / throughput report of the benchmark run
+ * All latencies are in microseconds and measured from intended request start time
+ */
+public class BenchmarkReport {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999", "p9999"};
+
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private final long durationMs;
+    private final long hits;
+    private final long misses;
+    private final long errors;
+
+    public BenchmarkReport(Histogram get, Histogram set, long durationMs, long hits, long misses, long errors) {
+        Histogram all = get.copy();
+        all.add(set);
+        histograms.put("get", get);
+        histograms.put("set", set);
+        histograms.put("all", all);
+        this.durationMs = durationMs;
+        this.hits = hits;
+        this.misses = misses;
+        this.errors = errors;
+    }
+
+    public void print(PrintStream out) {
+        out.println(String.format(Locale.ROOT, "Duration: %d ms, hits: %d, misses: %d, hit ratio: %.4f, errors: %d",
+                durationMs, hits, misses, hits + misses == 0 ? 0.0 : (double) hits / (hits + misses), errors));
+        out.println(String.format(Locale.ROOT, "%-5s %12s %12s %10s %10s %10s %10s %10s %10s %10s", "op", "count",
+                "ops/sec", "mean_us", "p50_us", "p90_us", "p99_us", "p999_us", "p9999_us", "max_us"));
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram h = entry.getValue();
+            out.print(String.format(Locale.ROOT, "%-5s %12d %12.1f %10.1f", entry.getKey(), h.getTotalCount(),
+                    throughput(h), h.getMean()));
+            for (double percentile : PERCENTILES) {
+                out.print(String.format(Locale.ROOT, " %10d", h.getValueAtPercentile(percentile)));
+            }
+            out.println(String.format(Locale.ROOT, " %10d", h.getMaxValue()));
+        }
+    }
+
+    public void writeCsv(String file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8))) {
+            StringBuilder header = new StringBuilder("operation,count,ops_per_sec,mean_us");
+            for (String name : PERCENTILE_NAMES) {
+                header.append(',').append(name).append("_us");
+            }
+            out.println(header.append(",max_us,duration_ms,hits,misses,errors"));
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                Histogram h = entry.getValue();
+                StringBuilder row = new StringBuilder(entry.getKey()).append(',').append(h.getTotalCount())
+                        .append(',').append(format(throughput(h))).append(',').append(format(h.getMean()));
+                for (double percentile : PERCENTILES) {
+                    row.append(',').append(h.getValueAtPercentile(percentile));
+                }
+                row.append(',').append(h.getMaxValue()).append(',').append(durationMs)
+                        .append(',').append(hits).append(',').append(misses).append(',').append(errors);
+                out.println(row);
+            }
+        }
+    }
+
+    public void writeJson(String file) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"durationMs\": ").append(durationMs).append(",\n");
+        json.append("  \"hits\": ").append(hits).append(",\n");
+        json.append("  \"misses\": ").append(misses).append(",\n");
+        json.append("  \"errors\": ").append(errors).append(",\n");
+        json.append("  \"operations\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram h = entry.getValue();
+            json.append(separator).append("    \"").append(entry.getKey()).append("\": {");
+            json.append("\"count\": ").append(h.getTotalCount());
+            json.append(", \"opsPerSec\": ").append(format(throughput(h)));
+            json.append(", \"meanUs\": ").append(format(h.getMean()));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                json.append(", \"").append(PERCENTILE_NAMES[i]).append("Us\": ")
+                        .append(h.getValueAtPercentile(PERCENTILES[i]));
+            }
+            json.append(", \"maxUs\": ").append(h.getMaxValue()).append('}');
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        Files.write(Paths.get(file), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private double throughput(Histogram h) {
+        return durationMs == 0 ? 0 : h.getTotalCount() * 1000.0 / durationMs;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}
@@ -0,0 +1,24 @@
+package svs.memcached.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distribution of key indexes within a key space of given size
+ *
+ * Implementations must be thread safe, one instance is shared by all connections
+ */
+public interface KeyDistribution {
+
+    /**
+     * @return next key index in [0, keySpace)
+     */
+    long nextIndex();
+
+    static KeyDistribution uniform(long keySpace) {
+        return () -> ThreadLocalRandom.current().nextLong(keySpace);
+    }
+
+    static KeyDistribution zipfian(long keySpace, double exponent) {
+        return new ZipfianKeyDistribution(keySpace, exponent);
+    }
+}
@@ -0,0 +1,179 @@
+package svs.memcached.client;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open-loop memcached benchmark
+ *
+ * Unlike MemcacheClientLoadTest it doesn't verify results. It generates requests at the target rate over raw netty
+ * connections with bounded pipelining and reports latency percentiles corrected for coordinated omission
+ * (see BenchmarkConnection)
+ */
+public class MemcacheBenchmark {
+
+    private static final Logger logger = LogManager.getLogger(MemcacheBenchmark.class);
+
+    // histograms are auto-resizing: an overloaded open-loop run can produce arbitrarily large latencies
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final long START_DELAY_MS = 500; // time to establish all connections before the load starts
+
+    private final BenchmarkConfig config;
+
+    public MemcacheBenchmark(BenchmarkConfig config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final BenchmarkConfig config;
+        try {
+            config = BenchmarkConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        logger.info("Starting benchmark with {}", config);
+        BenchmarkReport report = new MemcacheBenchmark(config).run();
+        report.print(System.out);
+        if (config.getCsvFile() != null) {
+            report.writeCsv(config.getCsvFile());
+            logger.info("CSV report is written to {}", config.getCsvFile());
+        }
+        if (config.getJsonFile() != null) {
+            report.writeJson(config.getJsonFile());
+            logger.info("JSON report is written to {}", config.getJsonFile());
+        }
+    }
+
+    public BenchmarkReport run() throws InterruptedException, SSLException {
+        final Recorder getRecorder = new Recorder(SIGNIFICANT_DIGITS);
+        final Recorder setRecorder = new Recorder(SIGNIFICANT_DIGITS);
+        final BenchmarkConnection.Stats stats = new BenchmarkConnection.Stats();
+        // zipfian setup is O(key space), so the distribution is built once and shared by all connections
+        final KeyDistribution keys = config.newKeyDistribution();
+        final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(START_DELAY_MS);
+        final long measureStartNanos = startNanos + TimeUnit.SECONDS.toNanos(config.getWarmupSec());
+        final long endNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(config.getDurationSec());
+
+        // the same context for all connections, so reconnects to the same server resume tls sessions
+        final SslContext sslContext = config.isTls() ? SslContextBuilder.forClient()
+                .trustManager(InsecureTrustManagerFactory.INSTANCE).build() : null;
+        NioEventLoopGroup group = new NioEventLoopGroup(config.getThreads());
+        List<Channel> channels = new ArrayList<>();
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        try {
+            for (int i = 0; i < config.getConnections(); i++) {
+                // spread the rate evenly; first connections take the remainder
+                long rate = config.getRate() / config.getConnections()
+                        + (i < config.getRate() % config.getConnections() ? 1 : 0);
+                final BenchmarkConnection connection = new BenchmarkConnection(config, keys, rate,
+                        startNanos, getRecorder, setRecorder, stats);
+                done.add(connection.getDone());
+                final InetSocketAddress address = config.getServers().get(i % config.getServers().size());
+                Bootstrap bootstrap = new Bootstrap()
+                        .group(group)
+                        .channel(NioSocketChannel.class)
+                        .option(ChannelOption.TCP_NODELAY, true)
+                        .handler(new ChannelInitializer<SocketChannel>() {
+                            @Override
+                            protected void initChannel(SocketChannel ch) throws Exception {
+                                if (sslContext != null) {
+                                    ch.pipeline().addLast(sslContext.newHandler(ch.alloc(), address.getHostString(),
+                                            address.getPort()));
+                                }
+                                ch.pipeline().addLast(new MemcacheResponseDecoder());
+                                if (config.getAuth() != null) {
+                                    ch.pipeline().addLast(new Authenticator(config.getAuth()));
+                                }
+                                ch.pipeline().addLast(connection);
+                            }
+                        });
+                channels.add(bootstrap.connect(address).sync().channel());
+            }
+            logger.info("{} connections established, warming up for {} sec", channels.size(), config.getWarmupSec());
+
+            // report progress every second
+            Histogram getTotal = new Histogram(SIGNIFICANT_DIGITS);
+            Histogram setTotal = new Histogram(SIGNIFICANT_DIGITS);
+            CompletableFuture<Void> all = CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[done.size()]));
+            Histogram getInterval = null;
+            Histogram setInterval = null;
+            while (!all.isDone()) {
+                Thread.sleep(1000);
+                getInterval = getRecorder.getIntervalHistogram(getInterval);
+                setInterval = setRecorder.getIntervalHistogram(setInterval);
+                getTotal.add(getInterval);
+                setTotal.add(setInterval);
+                long count = getInterval.getTotalCount() + setInterval.getTotalCount();
+                if (count > 0) {
+                    logger.info("Interval: {} ops, get p99={} us, set p99={} us, max={} us", count,
+                            getInterval.getValueAtPercentile(99), setInterval.getValueAtPercentile(99),
+                            Math.max(getInterval.getMaxValue(), setInterval.getMaxValue()));
+                }
+            }
+            getTotal.add(getRecorder.getIntervalHistogram(getInterval));
+            setTotal.add(setRecorder.getIntervalHistogram(setInterval));
+            long durationMs = TimeUnit.NANOSECONDS.toMillis(endNanos - measureStartNanos);
+            return new BenchmarkReport(getTotal, setTotal, durationMs, stats.hits.sum(), stats.misses.sum(),
+                    stats.errors.sum());
+        } finally {
+            for (Channel channel : channels) {
+                channel.close();
+            }
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    /**
+     * Sends credentials ahead of the load and swallows the response, so the connection sees only its own responses
+     */
+    private static class Authenticator extends ChannelInboundHandlerAdapter {
+
+        private final byte[] header;
+        private final byte[] data;
+
+        Authenticator(String auth) {
+            this.data = auth.replaceFirst(":", " ").getBytes(StandardCharsets.UTF_8);
+            this.header = ("set auth 0 0 " + data.length + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ByteBuf buf = ctx.alloc().buffer(header.length + data.length + 2);
+            ctx.writeAndFlush(buf.writeBytes(header).writeBytes(data).writeByte('\r').writeByte('\n'));
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg != MemcacheResponseDecoder.Response.STORED) {
+                logger.error("Authentication failed on {}", ctx.channel());
+            }
+            ctx.pipeline().remove(this);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package svs.memcached.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ByteProcessor;
+
+import java.util.List;
+
+/**
+ * Minimal decoder of memcache text protocol responses for the benchmark
+ * It doesn't materialize values, it only emits one Response per completed request
+ */
+public class MemcacheResponseDecoder extends ByteToMessageDecoder {
+
+    /**
+     * Outcome of a single request; enum constants are used so decoding doesn't allocate
+     */
+    public enum Response {
+        HIT,
+        MISS,
+        STORED,
+        OTHER,
+        ERROR
+    }
+
+    private static final byte[] ERROR = {'E', 'R', 'R', 'O', 'R'};
+
+    private boolean valueSeen;
+    private int pendingDataBytes = -1; // number of data bytes (+ \r\n) to skip after VALUE line
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        while (true) {
+            if (pendingDataBytes >= 0) {
+                if (in.readableBytes() < pendingDataBytes) {
+                    return;
+                }
+                in.skipBytes(pendingDataBytes);
+                pendingDataBytes = -1;
+            }
+            int lf = in.forEachByte(ByteProcessor.FIND_LF);
+            if (lf < 0) {
+                return;
+            }
+            int start = in.readerIndex();
+            int end = lf > start && in.getByte(lf - 1) == '\r' ? lf - 1 : lf; // exclusive
+            in.readerIndex(lf + 1);
+            switch (in.getByte(start)) {
+                case 'V': { // VALUE <key> <flags> <bytes> [<cas>]
+                    valueSeen = true;
+                    pendingDataBytes = lastNumber(in, start, end) + 2;
+                    break;
+                }
+                case 'E': {
+                    if (end - start == 3) { // END
+                        out.add(valueSeen ? Response.HIT : Response.MISS);
+                        valueSeen = false;
+                    } else {
+                        // ERROR may carry a message (e.g. "ERROR Too many open connections"), EXISTS is not an error
+                        out.add(startsWith(in, start, end, ERROR) ? Response.ERROR : Response.OTHER);
+                    }
+                    break;
+                }
+                case 'S': {
+                    out.add(in.getByte(start + 1) == 'T' ? Response.STORED : Response.ERROR); // SERVER_ERROR
+                    break;
+                }
+                case 'C': {
+                    out.add(Response.ERROR); // CLIENT_ERROR
+                    break;
+                }
+                default: {
+                    out.add(Response.OTHER);
+                }
+            }
+        }
+    }
+
+    private static boolean startsWith(ByteBuf in, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (in.getByte(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses number of data bytes from the VALUE line. Optional cas unique value is not expected
+     */
+    private static int lastNumber(ByteBuf in, int start, int end) {
+        int i = end;
+        while (i > start && in.getByte(i - 1) != ' ') {
+            i--;
+        }
+        int result = 0;
+        for (; i < end; i++) {
+            result = result * 10 + (in.getByte(i) - '0');
+        }
+        return result;
+    }
+}
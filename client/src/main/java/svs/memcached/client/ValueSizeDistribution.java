@@ -0,0 +1,44 @@
+package svs.memcached.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distribution of value sizes used for set commands
+ * Supported specs: "100" (fixed size) and "16-4096" (uniform in range, inclusive)
+ */
+public class ValueSizeDistribution {
+
+    private final int min;
+    private final int max;
+
+    public ValueSizeDistribution(int min, int max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid value size range: " + min + "-" + max);
+        }
+        this.min = min;
+        this.max = max;
+    }
+
+    public static ValueSizeDistribution parse(String spec) {
+        int idx = spec.indexOf('-');
+        if (idx < 0) {
+            int size = Integer.parseInt(spec.trim());
+            return new ValueSizeDistribution(size, size);
+        }
+        return new ValueSizeDistribution(Integer.parseInt(spec.substring(0, idx).trim()),
+                Integer.parseInt(spec.substring(idx + 1).trim()));
+    }
+
+    public int nextSize() {
+        return min == max ? min : ThreadLocalRandom.current().nextInt(min, max + 1);
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return min == max ? Integer.toString(min) : min + "-" + max;
+    }
+}
@@ -0,0 +1,64 @@
+package svs.memcached.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Zipfian key distribution: index 0 is the most popular one, popularity of index i is proportional to 1/(i+1)^exponent
+ *
+ * Uses the rejection-free algorithm from "Quickly Generating Billion-Record Synthetic Databases" (Gray et al.),
+ * the same one YCSB uses; it is only valid for exponents in (0, 1). Zeta constant is computed once in O(keySpace),
+ * next index is O(1)
+ */
+public class ZipfianKeyDistribution implements KeyDistribution {
+
+    private final long keySpace;
+    private final double exponent;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final double secondThreshold;
+
+    public ZipfianKeyDistribution(long keySpace, double exponent) {
+        if (keySpace < 2) {
+            throw new IllegalArgumentException("Key space must contain at least 2 keys: " + keySpace);
+        }
+        if (!(exponent > 0 && exponent < 1)) {
+            // the generator is only valid for 0 < exponent < 1
+            throw new IllegalArgumentException("Zipfian exponent must be in (0, 1): " + exponent);
+        }
+        this.keySpace = keySpace;
+        this.exponent = exponent;
+        this.zetaN = zeta(keySpace, exponent);
+        double zeta2 = zeta(2, exponent);
+        this.alpha = 1.0 / (1.0 - exponent);
+        this.eta = (1 - Math.pow(2.0 / keySpace, 1 - exponent)) / (1 - zeta2 / zetaN);
+        this.secondThreshold = 1 + Math.pow(0.5, exponent);
+    }
+
+    private static double zeta(long n, double exponent) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, exponent);
+        }
+        return sum;
+    }
+
+    @Override
+    public long nextIndex() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < secondThreshold) {
+            return 1;
+        }
+        long index = (long) (keySpace * Math.pow(eta * u - eta + 1, alpha));
+        return Math.min(index, keySpace - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "zipfian(" + keySpace + ", " + exponent + ")";
+    }
+}
@@ -0,0 +1,60 @@
+package svs.memcached.client;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import svs.memcached.client.MemcacheResponseDecoder.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests for classification of server responses by the benchmark
+ */
+public class MemcacheResponseDecoderTest {
+
+    private static final String RESPONSES = "VALUE key 0 6\r\na\r\nEND\r\nEND\r\n" // data looks like a response
+            + "END\r\n"
+            + "STORED\r\n"
+            + "ERROR\r\n"
+            + "ERROR Too many open connections\r\n"
+            + "EXISTS\r\n"
+            + "SERVER_ERROR out of memory\r\n"
+            + "CLIENT_ERROR bad data chunk\r\n"
+            + "NOT_FOUND\r\n";
+
+    private static final List<Response> EXPECTED = Arrays.asList(Response.HIT, Response.MISS, Response.STORED,
+            Response.ERROR, Response.ERROR, Response.OTHER, Response.ERROR, Response.ERROR, Response.OTHER);
+
+    @Test
+    public void testResponsesAreClassified() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MemcacheResponseDecoder());
+        channel.writeInbound(Unpooled.copiedBuffer(RESPONSES, StandardCharsets.US_ASCII));
+        assertEquals(EXPECTED, readAll(channel));
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testResponsesSplitAtEveryByte() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MemcacheResponseDecoder());
+        for (byte b : RESPONSES.getBytes(StandardCharsets.US_ASCII)) {
+            channel.writeInbound(Unpooled.wrappedBuffer(new byte[]{b}));
+        }
+        assertEquals(EXPECTED, readAll(channel));
+        assertFalse(channel.finish());
+    }
+
+    private static List<Response> readAll(EmbeddedChannel channel) {
+        List<Response> responses = new ArrayList<>();
+        Response response;
+        while ((response = channel.readInbound()) != null) {
+            responses.add(response);
+        }
+        return responses;
+    }
+}
@@ -0,0 +1,46 @@
+package svs.memcached.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for value size specs of the benchmark
+ */
+public class ValueSizeDistributionTest {
+
+    @Test
+    public void testFixedSize() {
+        ValueSizeDistribution sizes = ValueSizeDistribution.parse("100");
+        for (int i = 0; i < 100; i++) {
+            assertEquals(100, sizes.nextSize());
+        }
+        assertEquals(100, sizes.getMax());
+        assertEquals("100", sizes.toString());
+    }
+
+    @Test
+    public void testRangeIsInclusive() {
+        ValueSizeDistribution sizes = ValueSizeDistribution.parse("1 - 3");
+        int[] counts = new int[4];
+        for (int i = 0; i < 3000; i++) {
+            int size = sizes.nextSize();
+            assertTrue("size " + size, size >= 1 && size <= 3);
+            counts[size]++;
+        }
+        assertTrue(counts[1] > 800 && counts[2] > 800 && counts[3] > 800);
+        assertEquals(3, sizes.getMax());
+        assertEquals("1-3", sizes.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReversedRangeIsRejected() {
+        ValueSizeDistribution.parse("4096-16");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedSpecIsRejected() {
+        ValueSizeDistribution.parse("large");
+    }
+}
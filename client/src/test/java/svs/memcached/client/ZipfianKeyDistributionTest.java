@@ -0,0 +1,63 @@
+package svs.memcached.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the zipfian key generator
+ */
+public class ZipfianKeyDistributionTest {
+
+    private static final int SAMPLES = 1000000;
+
+    @Test
+    public void testFrequenciesFollowZipfLaw() {
+        final int keySpace = 1000;
+        final double exponent = 0.99;
+        final KeyDistribution distribution = new ZipfianKeyDistribution(keySpace, exponent);
+        final int[] counts = new int[keySpace];
+        for (int i = 0; i < SAMPLES; i++) {
+            long index = distribution.nextIndex();
+            assertTrue("index " + index, index >= 0 && index < keySpace);
+            counts[(int) index]++;
+        }
+        double zeta = 0;
+        for (int i = 1; i <= keySpace; i++) {
+            zeta += 1 / Math.pow(i, exponent);
+        }
+        // the generator is exact for the two most popular keys and approximates the tail
+        for (int i = 0; i < 2; i++) {
+            double expected = SAMPLES / Math.pow(i + 1, exponent) / zeta;
+            assertEquals("key " + i, expected, counts[i], expected * 0.05);
+        }
+        int head = 0;
+        for (int i = 0; i < 10; i++) {
+            head += counts[i];
+        }
+        int tail = 0;
+        for (int i = keySpace - 10; i < keySpace; i++) {
+            tail += counts[i];
+        }
+        assertTrue("head " + head + ", tail " + tail, head > 50 * tail);
+    }
+
+    @Test
+    public void testExponentOutsideOfValidRangeIsRejected() {
+        for (double exponent : new double[]{0, -0.5, 1.0, 1.2, Double.NaN}) {
+            try {
+                new ZipfianKeyDistribution(1000, exponent);
+                fail("exponent " + exponent);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSingleKeyIsRejected() {
+        new ZipfianKeyDistribution(1, 0.5);
+    }
+}
@@ -0,0 +1,22 @@
+package svs.memcached.cache;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Source of entries missing in the cache (database, another service etc.) used by ReadThroughCache
+ *
+ * Implementations must not block the calling thread: the load is expected to run on the loader's own threads
+ * (or non-blocking client) and complete the future. Implementations are instantiated by class name, so they need
+ * a public no-arg constructor.
+ */
+public interface CacheLoader {
+
+    /**
+     * @param key cache key
+     * @return future completed with new value (the cache takes ownership of it) or null if there is no such key
+     *         in the source
+     */
+    @Nonnull
+    CompletableFuture<StoredValue> load(@Nonnull String key);
+}
@@ -0,0 +1,108 @@
+package svs.memcached.cache;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Dump of the entries resident in memory, used to hand the cache over to the next server process on restart
+ *
+ * Format: magic, then one record per entry (key length, data length, flags, expiration time, key, data) and -1
+ * instead of key length at the end, so a truncated file is detected. The file is written next to the target and
+ * renamed when complete, so readers never see a partial snapshot.
+ */
+public final class CacheSnapshot {
+
+    private static final int MAGIC = 0x4D435331; // "MCS1"
+    private static final int END = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Writes live entries of the cache to the file, replacing it atomically
+     * @return number of entries written
+     */
+    public static int write(@Nonnull ICache<StoredValue> cache, @Nonnull Path file) throws IOException {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        final int nowSec = (int) (System.currentTimeMillis() / 1000);
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp),
+                BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            final Iterator<Map.Entry<String, StoredValue>> entries = cache.entries();
+            while (entries.hasNext()) {
+                final Map.Entry<String, StoredValue> entry = entries.next();
+                final StoredValue value = entry.getValue();
+                if (isExpired(value, nowSec) || !value.tryRetain()) {
+                    continue; // expired or evicted meanwhile
+                }
+                try {
+                    final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    final byte[] data = value.getData();
+                    out.writeInt(key.length);
+                    out.writeInt(data.length);
+                    out.writeInt(value.getFlags());
+                    out.writeInt(value.getTargetTimeSec());
+                    out.write(key);
+                    out.write(data);
+                } finally {
+                    value.release();
+                }
+                count++;
+            }
+            out.writeInt(END);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Loads entries from the file; entries expired meanwhile are skipped and keys present in the cache are kept
+     * @return number of entries loaded
+     */
+    public static int read(@Nonnull Path file, @Nonnull ICache<StoredValue> cache) throws IOException {
+        final int nowSec = (int) (System.currentTimeMillis() / 1000);
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a cache snapshot: " + file);
+            }
+            int keyLength;
+            while ((keyLength = in.readInt()) != END) {
+                final byte[] key = new byte[keyLength];
+                final byte[] data = new byte[in.readInt()];
+                final int flags = in.readInt();
+                final int targetTimeSec = in.readInt();
+                in.readFully(key);
+                in.readFully(data);
+                final StoredValue value = new StoredValue(data, flags, targetTimeSec);
+                if (isExpired(value, nowSec)) {
+                    continue;
+                }
+                if (cache.putIfAbsent(new String(key, StandardCharsets.UTF_8), value) == null) {
+                    count++;
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated cache snapshot: " + file, e);
+        }
+        return count;
+    }
+
+    private static boolean isExpired(StoredValue value, int nowSec) {
+        return value.getTargetTimeSec() != 0 && value.getTargetTimeSec() < nowSec;
+    }
+}
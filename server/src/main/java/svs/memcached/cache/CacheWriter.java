@@ -0,0 +1,28 @@
+package svs.memcached.cache;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Destination of cache writes flushed behind by ReadThroughCache
+ * A CacheLoader implementing this interface receives writes too when write-behind is enabled.
+ */
+public interface CacheWriter {
+
+    /**
+     * Stores batch of entries; only the latest value of every key is passed
+     * Values are released when the returned future completes, so they must be copied to be kept
+     * @return future completed when the batch is stored
+     */
+    @Nonnull
+    CompletableFuture<Void> writeAll(@Nonnull Map<String, StoredValue> entries);
+
+    /**
+     * Deletes batch of keys
+     * @return future completed when the keys are deleted
+     */
+    @Nonnull
+    CompletableFuture<Void> deleteAll(@Nonnull Set<String> keys);
+}
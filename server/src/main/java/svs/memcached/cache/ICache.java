@@ -2,12 +2,17 @@ package svs.memcached.cache;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Simple Cache Interface
+ * Reference counted values (see StoredValue) are owned by the cache once stored: set and successful putIfAbsent take
+ * the caller's reference, removed entries are released. Returned values are not retained.
  * Created by ssmirnov on 2/4/17.
  */
-public interface ICache<T> {
+public interface ICache<T> extends AutoCloseable {
     /**
      * Put entry in the cache
      * @param key - cache key
@@ -24,5 +29,56 @@ public interface ICache<T> {
     T get(@Nonnull String key);
 
 
+    /**
+     * Put entry in the cache unless there is one already
+     * @param key - cache key
+     * @param value - Value to put
+     * @return current value or null if the value was stored (otherwise the caller still owns the value)
+     */
+    @Nullable
+    T putIfAbsent(@Nonnull String key, @Nonnull T value);
+
+    /**
+     * Put entry in the cache only if there is one already, atomically (a concurrent remove either wins or is applied
+     * to the new value)
+     * @param key - cache key
+     * @param value - Value to put
+     * @return true if the value was stored (otherwise the caller still owns the value)
+     */
+    boolean replace(@Nonnull String key, @Nonnull T value);
+
     void remove(@Nonnull String key);
+
+    /**
+     * Remove entry only if it is still mapped to the given value instance (e.g. expired value nobody replaced yet)
+     * @return true if the entry was removed
+     */
+    boolean remove(@Nonnull String key, @Nonnull T value);
+
+    /**
+     * Iterates over entries resident in memory without locking the cache or copying its key set
+     * The iterator is weakly consistent: it never throws ConcurrentModificationException and may or may not reflect
+     * modifications made after it was created. Iteration doesn't count as access for eviction.
+     * @return iterator over key / value pairs
+     */
+    @Nonnull
+    Iterator<Map.Entry<String, T>> entries();
+
+    /**
+     * Looks the entry up in slower storage (e.g. disk tier) after get(key) returned null
+     * Memory-only caches don't need to override it
+     * @param key cache key
+     * @return future completed with the value (or null if not found); null if entry is known to be absent
+     */
+    @Nullable
+    default CompletableFuture<T> fetchAsync(@Nonnull String key) {
+        return null;
+    }
+
+    /**
+     * Releases resources held by the cache (files, threads); entries may be lost
+     */
+    @Override
+    default void close() {
+    }
 }
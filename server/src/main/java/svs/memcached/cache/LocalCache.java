@@ -2,11 +2,15 @@ package svs.memcached.cache;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.Weigher;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -16,14 +20,47 @@ import java.util.concurrent.TimeUnit;
 public class LocalCache implements ICache<StoredValue> {
 
     private static final Logger logger = LogManager.getLogger(LocalCache.class);
+
+    // rough per-entry bookkeeping cost (guava entry, key String, StoredValue, array headers)
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    /**
+     * Approximates the heap footprint of a cache entry; used when cache is bounded by memory rather than item count
+     */
+    static final Weigher<String, StoredValue> MEMORY_WEIGHER = (key, value) ->
+            ENTRY_OVERHEAD_BYTES + key.length() * 2 + value.getSize();
+
     private final Cache<String, StoredValue> cache;
 
     public LocalCache(int maxSize, long maxIdleTimeMs, int concurrencyLevel, boolean expireOnMemoryPressure) {
-        logger.info("Initializing cache with maxSize={}, maxIdleTimeMs={}, concurrencyLevel={}, expireOnMemoryPressure={}",
-                maxSize, maxIdleTimeMs, concurrencyLevel, expireOnMemoryPressure);
+        this(maxSize, 0, maxIdleTimeMs, concurrencyLevel, expireOnMemoryPressure);
+    }
+
+    /**
+     * @param maxSize - max number of entries; ignored if maxMemoryBytes is positive
+     * @param maxMemoryBytes - approximate memory budget of the cache (see MEMORY_WEIGHER); 0 means bounded by maxSize only
+     */
+    public LocalCache(int maxSize, long maxMemoryBytes, long maxIdleTimeMs, int concurrencyLevel,
+                      boolean expireOnMemoryPressure) {
+        this(maxSize, maxMemoryBytes, maxIdleTimeMs, concurrencyLevel, expireOnMemoryPressure, null);
+    }
+
+    /**
+     * @param removalListener - notified synchronously about every removed entry (e.g. to spill evicted entries)
+     *                        before the value is released; it has to retain the value to use its data later
+     */
+    public LocalCache(int maxSize, long maxMemoryBytes, long maxIdleTimeMs, int concurrencyLevel,
+                      boolean expireOnMemoryPressure, @Nullable RemovalListener<String, StoredValue> removalListener) {
+        logger.info("Initializing cache with maxSize={}, maxMemoryBytes={}, maxIdleTimeMs={}, concurrencyLevel={}, " +
+                        "expireOnMemoryPressure={}",
+                maxSize, maxMemoryBytes, maxIdleTimeMs, concurrencyLevel, expireOnMemoryPressure);
         CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
-        builder.maximumSize(maxSize).
-                expireAfterAccess(maxIdleTimeMs, TimeUnit.MILLISECONDS).
+        if (maxMemoryBytes > 0) {
+            builder.maximumWeight(maxMemoryBytes).weigher(MEMORY_WEIGHER);
+        } else {
+            builder.maximumSize(maxSize);
+        }
+        builder.expireAfterAccess(maxIdleTimeMs, TimeUnit.MILLISECONDS).
                 concurrencyLevel(concurrencyLevel);
         // Soft values can save from OOMs but generally not recommended because
         // they can have additional performance impact.
@@ -31,7 +68,18 @@ public class LocalCache implements ICache<StoredValue> {
         if (expireOnMemoryPressure) {
             builder.softValues();
         }
-        cache = builder.<String, StoredValue>build();
+        // removed values go back to the buffer pool; values collected as soft references are not pooled
+        cache = builder.removalListener((RemovalListener<String, StoredValue>) notification -> {
+            try {
+                if (removalListener != null) {
+                    removalListener.onRemoval(notification);
+                }
+            } finally {
+                if (notification.getValue() != null) {
+                    notification.getValue().release();
+                }
+            }
+        }).build();
     }
 
     @Override
@@ -45,9 +93,45 @@ public class LocalCache implements ICache<StoredValue> {
     public StoredValue get(@Nonnull String key) {
         final StoredValue result = cache.getIfPresent(key);
         logger.debug("Get:: for Key={} returned Value={}", key, result);
+        if (result != null) {
+            result.recordAccess((int) (System.currentTimeMillis() / 1000));
+        }
         return result;
     }
 
+    @Nullable
+    @Override
+    public StoredValue putIfAbsent(@Nonnull String key, @Nonnull StoredValue value) {
+        final StoredValue result = cache.asMap().putIfAbsent(key, value);
+        logger.debug("PutIfAbsent:: Key={}, Value={}, Current={}", key, value, result);
+        return result;
+    }
+
+    @Override
+    public boolean replace(@Nonnull String key, @Nonnull StoredValue value) {
+        final boolean replaced = cache.asMap().replace(key, value) != null;
+        logger.debug("Replace:: Key={}, Value={}, Replaced={}", key, value, replaced);
+        return replaced;
+    }
+
+    @Override
+    public boolean remove(@Nonnull String key, @Nonnull StoredValue value) {
+        // by identity: StoredValue equality compares the data, and a newer value with the same data must stay
+        final boolean[] removed = new boolean[1];
+        cache.asMap().computeIfPresent(key, (k, current) -> {
+            removed[0] = current == value;
+            return removed[0] ? null : current;
+        });
+        logger.debug("Remove:: Key={}, Value={}, Removed={}", key, value, removed[0]);
+        return removed[0];
+    }
+
+    @Nonnull
+    @Override
+    public Iterator<Map.Entry<String, StoredValue>> entries() {
+        return cache.asMap().entrySet().iterator(); // weakly consistent, doesn't touch access order
+    }
+
     @Override
     public void remove(@Nonnull String key) {
         cache.invalidate(key);
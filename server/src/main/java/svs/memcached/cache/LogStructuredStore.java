@@ -0,0 +1,340 @@
+package svs.memcached.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only store of cache entries on local disk (SSD)
+ *
+ * Entries are appended to fixed size segment files and located through in-memory index, so every write is
+ * sequential and every read is a single positional read. Overwritten and removed entries leave garbage in their
+ * segments: a segment with enough garbage is compacted (live entries are copied to the active segment and the file
+ * is deleted). When the store outgrows its budget the oldest segment is dropped with all its entries, which
+ * approximates FIFO eviction of the disk tier.
+ *
+ * Record layout: keyLength(int) dataLength(int) flags(int) targetTimeSec(int) key(utf-8) data
+ *
+ * Threading: append() and close() must be called from a single writer thread; read(), remove() and contains()
+ * are thread safe. The content is not preserved between restarts.
+ */
+public class LogStructuredStore implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(LogStructuredStore.class);
+
+    static final int HEADER_BYTES = 16;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    static final class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private volatile long size; // written by the writer thread only
+        private final AtomicLong liveBytes = new AtomicLong();
+
+        private Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Position of the latest record of the key; compared by identity
+     */
+    static final class Location {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+
+        private Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final double compactionGarbageRatio;
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    // writer thread only
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private Segment active;
+    private long nextSegmentId;
+    private volatile long totalBytes;
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong droppedSegments = new AtomicLong();
+
+    /**
+     * @param directory directory for segment files; stale segments found there are deleted
+     * @param maxBytes disk budget; oldest segments are dropped when it is exceeded
+     * @param segmentBytes size of a single segment file
+     * @param compactionGarbageRatio share of dead bytes (0..1) which makes sealed segment eligible for compaction
+     */
+    public LogStructuredStore(@Nonnull Path directory, long maxBytes, long segmentBytes,
+                              double compactionGarbageRatio) throws IOException {
+        if (segmentBytes <= HEADER_BYTES || maxBytes < segmentBytes) {
+            throw new IllegalArgumentException("Invalid disk tier size: maxBytes=" + maxBytes
+                    + ", segmentBytes=" + segmentBytes);
+        }
+        logger.info("Initializing disk store in {} with maxBytes={}, segmentBytes={}, compactionGarbageRatio={}",
+                directory, maxBytes, segmentBytes, compactionGarbageRatio);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        this.compactionGarbageRatio = compactionGarbageRatio;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stale) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Writes the entry replacing previous one of the same key
+     * Writer thread only
+     */
+    public void append(@Nonnull String key, @Nonnull StoredValue value) throws IOException {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] data = value.getData();
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + data.length);
+        record.putInt(keyBytes.length).putInt(data.length).putInt(value.getFlags()).putInt(value.getTargetTimeSec());
+        record.put(keyBytes).put(data).flip();
+        final boolean rolled = active == null || active.size + record.remaining() > segmentBytes;
+        release(index.put(key, write(record)));
+        if (rolled) {
+            compact();
+        }
+        enforceLimit();
+    }
+
+    /**
+     * Reads the entry with blocking IO
+     * @return stored value or null if there is no such key
+     */
+    @Nullable
+    public StoredValue read(@Nonnull String key) throws IOException {
+        Location location = index.get(key);
+        ByteBuffer record;
+        while (true) {
+            if (location == null) {
+                return null;
+            }
+            record = ByteBuffer.allocate(location.length);
+            try {
+                readFully(location.segment.channel, record, location.offset);
+                break;
+            } catch (ClosedChannelException e) {
+                // segment was dropped or compacted meanwhile, compaction moves the record
+                final Location current = index.get(key);
+                if (current == location) {
+                    return null;
+                }
+                location = current;
+            }
+        }
+        record.flip();
+        final int keyLength = record.getInt();
+        final int dataLength = record.getInt();
+        final int flags = record.getInt();
+        final int targetTimeSec = record.getInt();
+        final byte[] keyBytes = new byte[keyLength];
+        record.get(keyBytes);
+        if (!key.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+            throw new IOException("Corrupted disk tier record of key " + key + " in " + location.segment.path);
+        }
+        final byte[] data = new byte[dataLength];
+        record.get(data);
+        return new StoredValue(data, flags, targetTimeSec);
+    }
+
+    public boolean contains(@Nonnull String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return opaque token which changes whenever the entry is written, moved or removed; null if there is no entry
+     */
+    @Nullable
+    public Object version(@Nonnull String key) {
+        return index.get(key);
+    }
+
+    /**
+     * Forgets the entry; its record becomes garbage
+     */
+    public void remove(@Nonnull String key) {
+        release(index.remove(key));
+    }
+
+    public int getItemCount() {
+        return index.size();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    public long getDroppedSegments() {
+        return droppedSegments.get();
+    }
+
+    /**
+     * Writer thread only
+     */
+    @Override
+    public void close() throws IOException {
+        index.clear();
+        for (Segment segment : segments) {
+            deleteSegment(segment);
+        }
+        segments.clear();
+        active = null;
+    }
+
+    private Location write(ByteBuffer record) throws IOException {
+        final int length = record.remaining();
+        if (active == null || active.size + length > segmentBytes) {
+            final long id = nextSegmentId++;
+            final Path path = directory.resolve(String.format("%012d%s", id, SEGMENT_SUFFIX));
+            active = new Segment(id, path, FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segments.add(active);
+            logger.debug("Started disk segment {}", path);
+        }
+        final long offset = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size += length;
+        active.liveBytes.addAndGet(length);
+        totalBytes += length;
+        return new Location(active, offset, length);
+    }
+
+    private void release(@Nullable Location location) {
+        if (location != null) {
+            location.segment.liveBytes.addAndGet(-location.length);
+        }
+    }
+
+    /**
+     * Copies live records of sealed segments with too much garbage into the active segment
+     */
+    private void compact() throws IOException {
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment == active || segment.size == 0
+                    || segment.size - segment.liveBytes.get() < segment.size * compactionGarbageRatio) {
+                continue;
+            }
+            final int now = (int) (System.currentTimeMillis() / 1000);
+            final long liveBefore = segment.liveBytes.get();
+            for (Record record : scan(segment)) {
+                final ByteBuffer buffer = ByteBuffer.allocate(record.location.length);
+                readFully(segment.channel, buffer, record.location.offset);
+                buffer.flip();
+                final int targetTimeSec = buffer.getInt(12);
+                if (targetTimeSec != 0 && targetTimeSec < now) {
+                    index.remove(record.key, record.location); // expired, don't carry it over
+                    continue;
+                }
+                final Location moved = write(buffer);
+                if (!index.replace(record.key, record.location, moved)) {
+                    release(moved); // removed or overwritten meanwhile
+                }
+            }
+            segments.remove(segment);
+            deleteSegment(segment);
+            compactions.incrementAndGet();
+            logger.debug("Compacted disk segment {}: {} of {} bytes were live", segment.path, liveBefore,
+                    segment.size);
+        }
+    }
+
+    /**
+     * Drops oldest sealed segments until the store fits into its budget
+     */
+    private void enforceLimit() throws IOException {
+        while (totalBytes > maxBytes && segments.peekFirst() != active) {
+            final Segment oldest = segments.pollFirst();
+            for (Record record : scan(oldest)) {
+                index.remove(record.key, record.location);
+            }
+            deleteSegment(oldest);
+            droppedSegments.incrementAndGet();
+            logger.debug("Dropped disk segment {} to fit into {} bytes", oldest.path, maxBytes);
+        }
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        totalBytes -= segment.size;
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+    }
+
+    private static final class Record {
+        private final String key;
+        private final Location location;
+
+        private Record(String key, Location location) {
+            this.key = key;
+            this.location = location;
+        }
+    }
+
+    /**
+     * @return records of the segment which are still referenced by the index
+     */
+    private List<Record> scan(Segment segment) throws IOException {
+        final List<Record> live = new ArrayList<>();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long offset = 0;
+        while (offset < segment.size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            final int keyLength = header.getInt(0);
+            final int length = HEADER_BYTES + keyLength + header.getInt(4);
+            final ByteBuffer keyBytes = ByteBuffer.allocate(keyLength);
+            readFully(segment.channel, keyBytes, offset + HEADER_BYTES);
+            final String key = new String(keyBytes.array(), StandardCharsets.UTF_8);
+            final Location location = index.get(key);
+            if (location != null && location.segment == segment && location.offset == offset) {
+                live.add(new Record(key, location));
+            }
+            offset += length;
+        }
+        return live;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new IOException("Unexpected end of disk segment");
+            }
+        }
+    }
+}
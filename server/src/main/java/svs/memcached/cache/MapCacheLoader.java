@@ -0,0 +1,87 @@
+package svs.memcached.cache;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process source backed by a map, for tests and local experiments (loader.class=svs.memcached.cache.MapCacheLoader)
+ * Optional latency simulates slow origin without blocking callers.
+ */
+public class MapCacheLoader implements CacheLoader, CacheWriter {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "map-loader-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, StoredValue> source = new ConcurrentHashMap<>();
+    private final long latencyMs;
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong writtenBatches = new AtomicLong();
+
+    public MapCacheLoader() {
+        this(0);
+    }
+
+    public MapCacheLoader(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    @Nonnull
+    @Override
+    public CompletableFuture<StoredValue> load(@Nonnull String key) {
+        loads.incrementAndGet();
+        if (latencyMs == 0) {
+            return CompletableFuture.completedFuture(copy(source.get(key)));
+        }
+        final CompletableFuture<StoredValue> result = new CompletableFuture<>();
+        TIMER.schedule(() -> result.complete(copy(source.get(key))), latencyMs, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    @Nonnull
+    @Override
+    public CompletableFuture<Void> writeAll(@Nonnull Map<String, StoredValue> entries) {
+        writtenBatches.incrementAndGet();
+        entries.forEach((key, value) -> source.put(key, copy(value)));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Nonnull
+    @Override
+    public CompletableFuture<Void> deleteAll(@Nonnull Set<String> keys) {
+        writtenBatches.incrementAndGet();
+        source.keySet().removeAll(keys);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Every loaded value is a new instance, as the cache releases values it owns
+     */
+    private static StoredValue copy(StoredValue value) {
+        return value == null ? null : new StoredValue(value.getData(), value.getFlags(), value.getTargetTimeSec());
+    }
+
+    /**
+     * @return backing map; changes are visible to subsequent loads
+     */
+    public Map<String, StoredValue> getSource() {
+        return source;
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getWrittenBatches() {
+        return writtenBatches.get();
+    }
+}
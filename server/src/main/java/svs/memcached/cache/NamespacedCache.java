@@ -0,0 +1,229 @@
+package svs.memcached.cache;
+
+import com.google.common.collect.Iterators;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-tenant cache: keys are mapped to namespaces by prefix (e.g. "tenantA:user:42" belongs to "tenantA" when
+ * separator is ':'). Every namespace has its own cache instance, so it has separate memory budget and eviction
+ * domain and a noisy tenant can only evict its own entries. Keys without a known prefix go to the default namespace.
+ *
+ * Namespace lookup doesn't allocate: prefix hash is computed while scanning for the separator and resolved through
+ * a small open addressing table.
+ */
+public class NamespacedCache<T> implements ICache<T> {
+
+    private static final Logger logger = LogManager.getLogger(NamespacedCache.class);
+
+    public static final String DEFAULT_NAMESPACE = "default";
+
+    /**
+     * Namespace cache with its counters
+     */
+    public static class Namespace<T> {
+        private final String name;
+        private final ICache<T> cache;
+        private final LongAdder getHits = new LongAdder();
+        private final LongAdder getMisses = new LongAdder();
+        private final LongAdder sets = new LongAdder();
+        private final LongAdder removes = new LongAdder();
+
+        Namespace(@Nonnull String name, @Nonnull ICache<T> cache) {
+            this.name = name;
+            this.cache = cache;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ICache<T> getCache() {
+            return cache;
+        }
+
+        public long getGetHits() {
+            return getHits.sum();
+        }
+
+        public long getGetMisses() {
+            return getMisses.sum();
+        }
+
+        public long getSets() {
+            return sets.sum();
+        }
+
+        public long getRemoves() {
+            return removes.sum();
+        }
+    }
+
+    private final char separator;
+    private final Namespace<T> defaultNamespace;
+    private final List<Namespace<T>> namespaces = new ArrayList<>();
+    // open addressing table: prefix hash -> namespace
+    private final Namespace<T>[] table;
+    private final int[] hashes;
+
+    /**
+     * @param separator character separating namespace prefix from the rest of the key
+     * @param defaultCache cache for keys which don't belong to any namespace
+     * @param namespaceCaches cache of every namespace by name
+     */
+    @SuppressWarnings("unchecked")
+    public NamespacedCache(char separator, @Nonnull ICache<T> defaultCache,
+                           @Nonnull Map<String, ICache<T>> namespaceCaches) {
+        logger.info("Initializing namespaced cache with separator='{}', namespaces={}", separator,
+                namespaceCaches.keySet());
+        this.separator = separator;
+        this.defaultNamespace = new Namespace<>(DEFAULT_NAMESPACE, defaultCache);
+        int capacity = Integer.highestOneBit(Math.max(1, namespaceCaches.size()) * 4);
+        this.table = (Namespace<T>[]) new Namespace<?>[capacity];
+        this.hashes = new int[capacity];
+        namespaces.add(defaultNamespace);
+        for (Map.Entry<String, ICache<T>> entry : namespaceCaches.entrySet()) {
+            String name = entry.getKey();
+            if (name.isEmpty() || name.indexOf(separator) >= 0 || DEFAULT_NAMESPACE.equals(name)) {
+                throw new IllegalArgumentException("Invalid namespace name: '" + name + "'");
+            }
+            Namespace<T> namespace = new Namespace<>(name, entry.getValue());
+            namespaces.add(namespace);
+            int hash = name.hashCode();
+            int idx = hash & (capacity - 1);
+            while (table[idx] != null) {
+                idx = (idx + 1) & (capacity - 1);
+            }
+            table[idx] = namespace;
+            hashes[idx] = hash;
+        }
+    }
+
+    /**
+     * @return namespace owning the key, default namespace if key has no known prefix
+     */
+    @Nonnull
+    public Namespace<T> namespaceOf(@Nonnull String key) {
+        int hash = 0;
+        final int length = key.length();
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c == separator) {
+                // same as key.substring(0, i).hashCode() without allocation
+                int idx = hash & (table.length - 1);
+                Namespace<T> namespace;
+                while ((namespace = table[idx]) != null) {
+                    if (hashes[idx] == hash && namespace.name.length() == i
+                            && key.regionMatches(0, namespace.name, 0, i)) {
+                        return namespace;
+                    }
+                    idx = (idx + 1) & (table.length - 1);
+                }
+                return defaultNamespace;
+            }
+            hash = 31 * hash + c;
+        }
+        return defaultNamespace;
+    }
+
+    /**
+     * @return namespace of the keys without known prefix
+     */
+    public Namespace<T> getDefaultNamespace() {
+        return defaultNamespace;
+    }
+
+    /**
+     * @return all namespaces including default one
+     */
+    public List<Namespace<T>> getNamespaces() {
+        return Collections.unmodifiableList(namespaces);
+    }
+
+    @Override
+    public void set(@Nonnull String key, @Nonnull T value) {
+        Namespace<T> namespace = namespaceOf(key);
+        namespace.sets.increment();
+        namespace.cache.set(key, value);
+    }
+
+    @Nullable
+    @Override
+    public T get(@Nonnull String key) {
+        Namespace<T> namespace = namespaceOf(key);
+        T result = namespace.cache.get(key);
+        if (result != null) {
+            namespace.getHits.increment();
+        } else {
+            namespace.getMisses.increment();
+        }
+        return result;
+    }
+
+    @Nullable
+    @Override
+    public T putIfAbsent(@Nonnull String key, @Nonnull T value) {
+        Namespace<T> namespace = namespaceOf(key);
+        T current = namespace.cache.putIfAbsent(key, value);
+        if (current == null) {
+            namespace.sets.increment();
+        }
+        return current;
+    }
+
+    @Override
+    public boolean replace(@Nonnull String key, @Nonnull T value) {
+        Namespace<T> namespace = namespaceOf(key);
+        boolean replaced = namespace.cache.replace(key, value);
+        if (replaced) {
+            namespace.sets.increment();
+        }
+        return replaced;
+    }
+
+    @Override
+    public void remove(@Nonnull String key) {
+        Namespace<T> namespace = namespaceOf(key);
+        namespace.removes.increment();
+        namespace.cache.remove(key);
+    }
+
+    @Override
+    public boolean remove(@Nonnull String key, @Nonnull T value) {
+        Namespace<T> namespace = namespaceOf(key);
+        boolean removed = namespace.cache.remove(key, value);
+        if (removed) {
+            namespace.removes.increment();
+        }
+        return removed;
+    }
+
+    @Nonnull
+    @Override
+    public Iterator<Map.Entry<String, T>> entries() {
+        return Iterators.concat(Iterators.transform(namespaces.iterator(), namespace -> namespace.cache.entries()));
+    }
+
+    @Nullable
+    @Override
+    public CompletableFuture<T> fetchAsync(@Nonnull String key) {
+        return namespaceOf(key).cache.fetchAsync(key);
+    }
+
+    @Override
+    public void close() {
+        for (Namespace<T> namespace : namespaces) {
+            namespace.cache.close();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package svs.memcached.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache decorator loading missing entries from CacheLoader (read-through) and optionally writing changes to
+ * CacheWriter in batches (write-behind), so clients don't need to implement cache-aside logic
+ *
+ * Loads are asynchronous (see fetchAsync) and concurrent misses of the same key share one load. Failed or timed out
+ * loads are reported as misses. Loaded entries are put into the cache unless the key was written or deleted after
+ * the load started: a load completing after a delete is reported as a miss, so the deleted value doesn't come back.
+ *
+ * Writes are coalesced by key in a buffer which is flushed by a background thread when it reaches the batch size
+ * or every flush interval; only one batch is in flight at a time so writes of a key reach the writer in order.
+ * Buffered writes are lost if the process dies before they are flushed.
+ */
+public class ReadThroughCache implements ICache<StoredValue> {
+
+    private static final Logger logger = LogManager.getLogger(ReadThroughCache.class);
+
+    private static final Object DELETED = new Object();
+    private static final long SHUTDOWN_TIMEOUT_SEC = 10;
+
+    private final ICache<StoredValue> delegate;
+    private final CacheLoader loader;
+    private final CacheWriter writer;
+    private final long loadTimeoutMs;
+    private final int batchSize;
+    private final ScheduledExecutorService timer;
+    private final ScheduledExecutorService flusher;
+    // loads in progress, shared by concurrent misses
+    private final ConcurrentHashMap<String, Load> loads = new ConcurrentHashMap<>();
+    // key -> latest StoredValue or DELETED, not flushed yet
+    private final ConcurrentHashMap<String, Object> writes = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder coalescedLoads = new LongAdder();
+    private final LongAdder loadHits = new LongAdder();
+    private final LongAdder loadMisses = new LongAdder();
+    private final LongAdder loadErrors = new LongAdder();
+    private final LongAdder flushedWrites = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+
+    /**
+     * @param delegate cache holding the entries
+     * @param loader source of missing entries
+     * @param writer destination of write-behind batches; null disables write-behind
+     * @param loadTimeoutMs time after which load is reported as miss
+     * @param batchSize max number of keys in write-behind batch; full buffer triggers flush
+     * @param flushIntervalMs max time writes stay in the buffer
+     */
+    public ReadThroughCache(@Nonnull ICache<StoredValue> delegate, @Nonnull CacheLoader loader,
+                            @Nullable CacheWriter writer, long loadTimeoutMs, int batchSize, long flushIntervalMs) {
+        logger.info("Initializing read-through cache with loader={}, writeBehind={}, loadTimeoutMs={}, batchSize={}, " +
+                "flushIntervalMs={}", loader.getClass().getName(), writer != null, loadTimeoutMs, batchSize,
+                flushIntervalMs);
+        this.delegate = delegate;
+        this.loader = loader;
+        this.writer = writer;
+        this.loadTimeoutMs = loadTimeoutMs;
+        this.batchSize = batchSize;
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThread("read-through-timer"));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(daemonThread("write-behind"));
+        if (writer != null) {
+            flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void set(@Nonnull String key, @Nonnull StoredValue value) {
+        retainForWriter(value); // before the cache may release it
+        delegate.set(key, value);
+        writeBehind(key, value);
+    }
+
+    @Nullable
+    @Override
+    public StoredValue get(@Nonnull String key) {
+        return delegate.get(key);
+    }
+
+    @Nullable
+    @Override
+    public StoredValue putIfAbsent(@Nonnull String key, @Nonnull StoredValue value) {
+        retainForWriter(value);
+        final StoredValue current = delegate.putIfAbsent(key, value);
+        if (current == null) {
+            writeBehind(key, value);
+        } else if (writer != null) {
+            value.release();
+        }
+        return current;
+    }
+
+    @Override
+    public boolean replace(@Nonnull String key, @Nonnull StoredValue value) {
+        retainForWriter(value);
+        final boolean replaced = delegate.replace(key, value);
+        if (replaced) {
+            writeBehind(key, value);
+        } else if (writer != null) {
+            value.release();
+        }
+        return replaced;
+    }
+
+    @Override
+    public void remove(@Nonnull String key) {
+        final Load load = loads.get(key);
+        if (load != null) {
+            load.deleted = true; // before the removal, so the load either sees the flag or gets removed
+        }
+        delegate.remove(key);
+        writeBehind(key, DELETED);
+    }
+
+    /**
+     * Used for expiration, so it isn't propagated to the writer
+     */
+    @Override
+    public boolean remove(@Nonnull String key, @Nonnull StoredValue value) {
+        return delegate.remove(key, value);
+    }
+
+    @Nonnull
+    @Override
+    public Iterator<Map.Entry<String, StoredValue>> entries() {
+        return delegate.entries();
+    }
+
+    @Nullable
+    @Override
+    public CompletableFuture<StoredValue> fetchAsync(@Nonnull String key) {
+        final CompletableFuture<StoredValue> fetch = delegate.fetchAsync(key);
+        if (fetch != null) {
+            return fetch.thenCompose(value -> value != null ? CompletableFuture.completedFuture(value) : load(key));
+        }
+        return load(key);
+    }
+
+    /**
+     * Flushes buffered writes waiting for at most SHUTDOWN_TIMEOUT_SEC, then stops the timer; loads still in progress
+     * are reported as misses
+     */
+    @Override
+    public void close() {
+        logger.info("Closing read-through cache");
+        try {
+            if (writer != null) {
+                flusher.execute(this::flush); // the last task, periodic flushes are cancelled by shutdown
+            }
+        } catch (RejectedExecutionException e) {
+            logger.debug("Write-behind is closed");
+        }
+        flusher.shutdown();
+        try {
+            // the timer keeps running meanwhile, so loads still time out
+            if (!flusher.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                logger.warn("Write-behind buffer wasn't flushed in {} sec, {} writes are lost", SHUTDOWN_TIMEOUT_SEC,
+                        writes.size());
+            }
+            timer.shutdownNow();
+            if (!timer.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                logger.warn("Read-through timer didn't stop in {} sec", SHUTDOWN_TIMEOUT_SEC);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            flusher.shutdownNow(); // interrupts the batch in flight, if any
+            timer.shutdownNow();
+        }
+        for (Map.Entry<String, Load> load : loads.entrySet()) {
+            finishLoad(load.getKey(), load.getValue(), null, new CancellationException("Cache is closed"));
+        }
+        delegate.close();
+    }
+
+    public ICache<StoredValue> getDelegate() {
+        return delegate;
+    }
+
+    public long getLoads() {
+        return loadCount.sum();
+    }
+
+    public long getCoalescedLoads() {
+        return coalescedLoads.sum();
+    }
+
+    public long getLoadHits() {
+        return loadHits.sum();
+    }
+
+    public long getLoadMisses() {
+        return loadMisses.sum();
+    }
+
+    public long getLoadErrors() {
+        return loadErrors.sum();
+    }
+
+    public int getBufferedWrites() {
+        return writes.size();
+    }
+
+    public long getFlushedWrites() {
+        return flushedWrites.sum();
+    }
+
+    public long getWriteErrors() {
+        return writeErrors.sum();
+    }
+
+    @Nullable
+    private CompletableFuture<StoredValue> load(String key) {
+        final Object buffered = writes.get(key);
+        if (buffered == DELETED) {
+            return null; // deleted, the source may still have the old value
+        }
+        if (buffered != null) {
+            return CompletableFuture.completedFuture((StoredValue) buffered); // evicted before it was flushed
+        }
+        Load result = loads.get(key);
+        if (result == null) {
+            final Load promise = new Load();
+            result = loads.putIfAbsent(key, promise);
+            if (result == null) {
+                startLoad(key, promise);
+                return promise;
+            }
+        }
+        coalescedLoads.increment();
+        return result;
+    }
+
+    private void startLoad(String key, Load promise) {
+        loadCount.increment();
+        final ScheduledFuture<?> timeout = timer.schedule(() -> finishLoad(key, promise, null,
+                new TimeoutException("Load timed out after " + loadTimeoutMs + " ms")),
+                loadTimeoutMs, TimeUnit.MILLISECONDS);
+        CompletableFuture<StoredValue> source;
+        try {
+            source = loader.load(key);
+        } catch (RuntimeException e) {
+            source = new CompletableFuture<>();
+            source.completeExceptionally(e);
+        }
+        source.whenComplete((value, error) -> {
+            timeout.cancel(false);
+            finishLoad(key, promise, value, error);
+        });
+    }
+
+    private void finishLoad(String key, Load promise, @Nullable StoredValue value, @Nullable Throwable error) {
+        if (!promise.finished.compareAndSet(false, true)) {
+            if (value != null) {
+                value.release();
+            }
+            return; // already finished by timeout or loader
+        }
+        StoredValue result = null;
+        if (error != null) {
+            loadErrors.increment();
+            logger.warn("Failed to load key {}: {}", key, error.toString());
+        } else if (value == null || promise.deleted) {
+            loadMisses.increment();
+            if (value != null) {
+                value.release(); // deleted after the load started
+            }
+        } else {
+            final StoredValue current = delegate.putIfAbsent(key, value);
+            if (current != null) {
+                loadHits.increment();
+                value.release(); // don't override value set meanwhile
+                result = current;
+            } else if (!promise.deleted) {
+                loadHits.increment();
+                result = value;
+            } else {
+                // deleted while it was being stored, the delete may have missed it
+                loadMisses.increment();
+                delegate.remove(key, value); // by identity, a value set meanwhile stays even if its data is the same
+            }
+        }
+        // only now, so a delete racing with the store above finds the load and flags it
+        loads.remove(key, promise);
+        promise.complete(result);
+    }
+
+    private void retainForWriter(StoredValue value) {
+        if (writer != null) {
+            value.retain();
+        }
+    }
+
+    /**
+     * Buffers the write; the buffer owns a reference to the value until it is flushed or overwritten
+     */
+    private void writeBehind(String key, Object value) {
+        if (writer == null) {
+            return;
+        }
+        final Object previous = writes.put(key, value);
+        if (previous instanceof StoredValue) {
+            ((StoredValue) previous).release();
+        }
+        if (writes.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                logger.debug("Write-behind is closed");
+            }
+        }
+    }
+
+    /**
+     * Sends buffered writes in batches, waiting for every batch; flusher thread only
+     */
+    private void flush() {
+        flushRequested.set(false);
+        Map<String, StoredValue> updates = new HashMap<>();
+        Set<String> deletes = new HashSet<>();
+        for (String key : writes.keySet()) {
+            final Object value = writes.remove(key);
+            if (value == DELETED) {
+                deletes.add(key);
+            } else if (value != null) {
+                updates.put(key, (StoredValue) value);
+            }
+            if (updates.size() + deletes.size() >= batchSize) {
+                send(updates, deletes);
+                updates = new HashMap<>();
+                deletes = new HashSet<>();
+            }
+        }
+        send(updates, deletes);
+    }
+
+    private void send(Map<String, StoredValue> updates, Set<String> deletes) {
+        try {
+            sendBatch(updates, deletes);
+        } finally {
+            updates.values().forEach(StoredValue::release);
+        }
+    }
+
+    private void sendBatch(Map<String, StoredValue> updates, Set<String> deletes) {
+        try {
+            if (!updates.isEmpty()) {
+                writer.writeAll(updates).get(loadTimeoutMs, TimeUnit.MILLISECONDS);
+                flushedWrites.add(updates.size());
+            }
+            if (!deletes.isEmpty()) {
+                writer.deleteAll(deletes).get(loadTimeoutMs, TimeUnit.MILLISECONDS);
+                flushedWrites.add(deletes.size());
+            }
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            writeErrors.add(updates.size() + deletes.size());
+            logger.error("Write-behind batch failed, " + (updates.size() + deletes.size()) + " writes are lost", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Load in progress; flagged when the key is deleted meanwhile
+     */
+    private static final class Load extends CompletableFuture<StoredValue> {
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile boolean deleted;
+    }
+
+    private static ThreadFactory daemonThread(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,109 @@
+package svs.memcached.cache;
+
+import com.google.common.collect.Iterators;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+
+/**
+ * Cache partitioned by key hash into independent shards
+ *
+ * In shared-nothing mode every shard is owned by a single event loop and only accessed from it
+ * (see ShardedCommandHandler), so shards don't share locks or cache lines.
+ * ICache methods route to the owning shard directly and are safe to call from any thread as long as shards are
+ * thread safe themselves.
+ */
+public class ShardedCache<T> implements ICache<T> {
+
+    private static final Logger logger = LogManager.getLogger(ShardedCache.class);
+
+    private final ICache<T>[] shards;
+
+    @SuppressWarnings("unchecked")
+    public ShardedCache(int shardCount, @Nonnull IntFunction<ICache<T>> shardFactory) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+        logger.info("Initializing sharded cache with shardCount={}", shardCount);
+        shards = (ICache<T>[]) new ICache<?>[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = shardFactory.apply(i);
+        }
+    }
+
+    /**
+     * @return index of the shard owning the key
+     */
+    public int shardIndex(@Nonnull String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16); // spread high bits, String hash is weak in low bits for short keys
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Nonnull
+    public ICache<T> getShard(int index) {
+        return shards[index];
+    }
+
+    @Override
+    public void set(@Nonnull String key, @Nonnull T value) {
+        shards[shardIndex(key)].set(key, value);
+    }
+
+    @Nullable
+    @Override
+    public T get(@Nonnull String key) {
+        return shards[shardIndex(key)].get(key);
+    }
+
+    @Nullable
+    @Override
+    public T putIfAbsent(@Nonnull String key, @Nonnull T value) {
+        return shards[shardIndex(key)].putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean replace(@Nonnull String key, @Nonnull T value) {
+        return shards[shardIndex(key)].replace(key, value);
+    }
+
+    @Override
+    public void remove(@Nonnull String key) {
+        shards[shardIndex(key)].remove(key);
+    }
+
+    @Override
+    public boolean remove(@Nonnull String key, @Nonnull T value) {
+        return shards[shardIndex(key)].remove(key, value);
+    }
+
+    @Nonnull
+    @Override
+    public Iterator<Map.Entry<String, T>> entries() {
+        return Iterators.concat(Iterators.transform(Arrays.asList(shards).iterator(), ICache::entries));
+    }
+
+    @Nullable
+    @Override
+    public CompletableFuture<T> fetchAsync(@Nonnull String key) {
+        return shards[shardIndex(key)].fetchAsync(key);
+    }
+
+    @Override
+    public void close() {
+        for (ICache<T> shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -1,27 +1,93 @@
 package svs.memcached.cache;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Wrapper to store byte data along with flags
  * We need flags to support client serialization
  *
+ * Besides immutable data it keeps meta protocol state: TTL can be updated in place and the value can be marked
+ * stale / hand out a single recache ("win") token. This state is not preserved by the disk tier.
+ *
+ * Data is either a byte array or a (pooled) ByteBuf which is returned to the pool when the value is released.
+ * Reference counting follows netty rules: the creator owns the value, ICache takes the reference on set and
+ * releases it when the entry is removed. Values returned by the cache are not retained: metadata can always be read,
+ * but data may only be read after tryRetain succeeds (and the value must be released afterwards).
+ *
  * Created by ssmirnov on 2/5/17.
  *
  */
-public class StoredValue {
-    final byte[] data;
+public class StoredValue implements ReferenceCounted {
+    private static final int STALE = 1;
+    private static final int WIN_TOKEN_SENT = 2;
+    private static final int FETCHED = 4;
+    private static final AtomicIntegerFieldUpdater<StoredValue> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(StoredValue.class, "state");
+    private static final AtomicIntegerFieldUpdater<StoredValue> REF_CNT =
+            AtomicIntegerFieldUpdater.newUpdater(StoredValue.class, "refCnt");
+
+    final byte[] data; // null if data is in the buffer
+    private final ByteBuf content;
+    private final int size;
     final int flags;
-    final int targetTimeSec;
+    volatile int targetTimeSec;
+    private volatile int state;
+    private volatile int refCnt = 1;
+    private int lastAccessSec; // introspection only, races are harmless
 
     public StoredValue(byte[] data, int flags, int targetTimeSec) {
+        this(data, null, data.length, flags, targetTimeSec);
+    }
+
+    /**
+     * @param content readable bytes of the buffer are the data; the value takes ownership of the buffer
+     */
+    public StoredValue(ByteBuf content, int flags, int targetTimeSec) {
+        this(null, content, content.readableBytes(), flags, targetTimeSec);
+    }
+
+    private StoredValue(byte[] data, ByteBuf content, int size, int flags, int targetTimeSec) {
         this.data = data;
+        this.content = content;
+        this.size = size;
         this.flags = flags;
         this.targetTimeSec = targetTimeSec;
+        this.lastAccessSec = (int) (System.currentTimeMillis() / 1000);
     }
 
+    /**
+     * @return the data; copy if the value is backed by a buffer, so prefer writeTo on hot paths
+     */
     public byte[] getData() {
-        return data;
+        if (data != null) {
+            return data;
+        }
+        final byte[] copy = new byte[size];
+        content.getBytes(content.readerIndex(), copy);
+        return copy;
+    }
+
+    /**
+     * Copies the data to the buffer without intermediate arrays
+     */
+    public void writeTo(ByteBuf out) {
+        if (data != null) {
+            out.writeBytes(data);
+        } else {
+            out.writeBytes(content, content.readerIndex(), size);
+        }
+    }
+
+    /**
+     * @return data length in bytes; can be read without retaining the value
+     */
+    public int getSize() {
+        return size;
     }
 
     public int getFlags() {
@@ -32,10 +98,150 @@ public class StoredValue {
         return targetTimeSec;
     }
 
+    /**
+     * Updates expiration time of the stored value (touch)
+     */
+    public void setTargetTimeSec(int targetTimeSec) {
+        this.targetTimeSec = targetTimeSec;
+    }
+
+    /**
+     * @return true if the value was invalidated but is still served until it is recached
+     */
+    public boolean isStale() {
+        return (state & STALE) != 0;
+    }
+
+    /**
+     * Marks the value stale; the next reader wins recache token again
+     */
+    public void markStale() {
+        int current;
+        do {
+            current = state;
+        } while (!STATE.compareAndSet(this, current, (current & FETCHED) | STALE)); // resets win token
+    }
+
+    /**
+     * Records read access; cheap enough for the hot path as it only writes when something changes
+     */
+    public void recordAccess(int nowSec) {
+        if (lastAccessSec != nowSec) {
+            lastAccessSec = nowSec;
+        }
+        int current = state;
+        if ((current & FETCHED) == 0) {
+            STATE.compareAndSet(this, current, current | FETCHED);
+        }
+    }
+
+    /**
+     * @return unix time of the last read (or creation if it was never read)
+     */
+    public int getLastAccessSec() {
+        return lastAccessSec;
+    }
+
+    /**
+     * @return true if the value was read since it was stored
+     */
+    public boolean isFetched() {
+        return (state & FETCHED) != 0;
+    }
+
+    public boolean isWinTokenSent() {
+        return (state & WIN_TOKEN_SENT) != 0;
+    }
+
+    /**
+     * Hands out recache token; only one caller gets it
+     * @return true if the caller won the token
+     */
+    public boolean acquireWinToken() {
+        int current;
+        do {
+            current = state;
+            if ((current & WIN_TOKEN_SENT) != 0) {
+                return false;
+            }
+        } while (!STATE.compareAndSet(this, current, current | WIN_TOKEN_SENT));
+        return true;
+    }
+
+    @Override
+    public int refCnt() {
+        return refCnt;
+    }
+
+    @Override
+    public StoredValue retain() {
+        return retain(1);
+    }
+
+    @Override
+    public StoredValue retain(int increment) {
+        int current;
+        do {
+            current = refCnt;
+            if (current == 0) {
+                throw new IllegalReferenceCountException(0, increment);
+            }
+        } while (!REF_CNT.compareAndSet(this, current, current + increment));
+        return this;
+    }
+
+    /**
+     * Retains the value unless it is already released (e.g. removed from the cache by concurrent request)
+     * @return true if the value is retained and its data can be read
+     */
+    public boolean tryRetain() {
+        int current;
+        do {
+            current = refCnt;
+            if (current == 0) {
+                return false;
+            }
+        } while (!REF_CNT.compareAndSet(this, current, current + 1));
+        return true;
+    }
+
+    @Override
+    public StoredValue touch() {
+        return this;
+    }
+
+    @Override
+    public StoredValue touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return release(1);
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        int current;
+        do {
+            current = refCnt;
+            if (current < decrement) {
+                throw new IllegalReferenceCountException(current, -decrement);
+            }
+        } while (!REF_CNT.compareAndSet(this, current, current - decrement));
+        if (current == decrement) {
+            if (content != null) {
+                content.release();
+            }
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public String toString() {
         return "StoredValue{" +
-                "data=" + Arrays.toString(data) +
+                "data=" + (data != null ? Arrays.toString(data) : size + " bytes") +
                 ", flags=" + flags +
                 ", targetTimeSec=" + targetTimeSec +
                 '}';
@@ -48,12 +254,33 @@ public class StoredValue {
 
         StoredValue that = (StoredValue) o;
 
-        return Arrays.equals(data, that.data);
-
+        if (data != null && that.data != null) {
+            return Arrays.equals(data, that.data);
+        }
+        if (size != that.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (byteAt(i) != that.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(data);
+        if (data != null) {
+            return Arrays.hashCode(data);
+        }
+        int result = 1; // same as Arrays.hashCode, so equal values of both kinds have equal hashes
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + byteAt(i);
+        }
+        return result;
+    }
+
+    private byte byteAt(int index) {
+        return data != null ? data[index] : content.getByte(content.readerIndex() + index);
     }
 }
@@ -0,0 +1,364 @@
+package svs.memcached.cache;
+
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Two level cache: hot entries in memory, entries evicted from memory for size spill to LogStructuredStore
+ *
+ * Tiers are exclusive: an entry found on disk is promoted back to memory and removed from disk. Spills and
+ * invalidations are applied in order by a single writer thread and memory misses are read by a small reader pool
+ * (see fetchAsync). putIfAbsent and replace read the disk on the calling thread if the key is there, so callers
+ * which must not block fetch the key first, as the command processor does; then only a key spilled in between is
+ * read synchronously.
+ *
+ * Entries queued for the writer are kept in a pending map, so reads observe spilled values and removals before
+ * they reach the disk. Spills are dropped (the entry is simply evicted) if the writer falls too far behind.
+ */
+public class TieredCache implements ICache<StoredValue> {
+
+    private static final Logger logger = LogManager.getLogger(TieredCache.class);
+
+    private static final Object TOMBSTONE = new Object();
+    private static final long SHUTDOWN_TIMEOUT_SEC = 10;
+
+    private final ICache<StoredValue> memory;
+    private final LogStructuredStore disk;
+    private final int maxQueuedSpills;
+    private final ThreadPoolExecutor writer;
+    private final ExecutorService readers;
+    // key -> spilled StoredValue or TOMBSTONE, not yet applied by the writer
+    private final ConcurrentHashMap<String, Object> pending = new ConcurrentHashMap<>();
+
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder droppedSpills = new LongAdder();
+    private final LongAdder diskReads = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder diskErrors = new LongAdder();
+
+    /**
+     * @param memoryFactory creates memory tier notifying the given listener about removed entries
+     * @param disk disk tier; owned by this cache and closed with it
+     * @param readThreads number of threads reading from disk
+     * @param maxQueuedSpills max number of writer tasks before spills are dropped
+     */
+    public TieredCache(@Nonnull Function<RemovalListener<String, StoredValue>, ICache<StoredValue>> memoryFactory,
+                       @Nonnull LogStructuredStore disk, int readThreads, int maxQueuedSpills) {
+        logger.info("Initializing tiered cache with readThreads={}, maxQueuedSpills={}", readThreads, maxQueuedSpills);
+        this.memory = memoryFactory.apply(notification -> {
+            if (notification.getCause() == RemovalCause.SIZE) {
+                spill(notification.getKey(), notification.getValue());
+            }
+        });
+        this.disk = disk;
+        this.maxQueuedSpills = maxQueuedSpills;
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                daemonThreads("disk-tier-writer"));
+        this.readers = Executors.newFixedThreadPool(readThreads, daemonThreads("disk-tier-reader"));
+    }
+
+    @Override
+    public void set(@Nonnull String key, @Nonnull StoredValue value) {
+        memory.set(key, value);
+        invalidateDisk(key);
+    }
+
+    /**
+     * Looks up memory tier only, disk is read by fetchAsync
+     */
+    @Nullable
+    @Override
+    public StoredValue get(@Nonnull String key) {
+        return memory.get(key);
+    }
+
+    /**
+     * May block on disk read if the key is on disk, see fetchAsync
+     */
+    @Nullable
+    @Override
+    public StoredValue putIfAbsent(@Nonnull String key, @Nonnull StoredValue value) {
+        StoredValue current = memory.get(key);
+        if (current == null) {
+            current = readPending(key);
+        }
+        if (current == null && disk.contains(key)) {
+            current = readDisk(key);
+        }
+        return current != null ? current : memory.putIfAbsent(key, value);
+    }
+
+    /**
+     * May block on disk read if the key is on disk (see fetchAsync): the entry is promoted first, so that the replace is
+     * atomic in the memory tier
+     */
+    @Override
+    public boolean replace(@Nonnull String key, @Nonnull StoredValue value) {
+        if (memory.get(key) == null) {
+            promote(key);
+        }
+        if (!memory.replace(key, value)) {
+            return false;
+        }
+        invalidateDisk(key);
+        return true;
+    }
+
+    @Override
+    public void remove(@Nonnull String key) {
+        memory.remove(key);
+        invalidateDisk(key);
+    }
+
+    /**
+     * Removes memory entry only, disk copy of the key can't exist while it is in memory
+     */
+    @Override
+    public boolean remove(@Nonnull String key, @Nonnull StoredValue value) {
+        return memory.remove(key, value);
+    }
+
+    /**
+     * Memory tier only: disk entries are cold and reading them all would thrash the disk
+     */
+    @Nonnull
+    @Override
+    public Iterator<Map.Entry<String, StoredValue>> entries() {
+        return memory.entries();
+    }
+
+    @Nullable
+    @Override
+    public CompletableFuture<StoredValue> fetchAsync(@Nonnull String key) {
+        final Object queued = pending.get(key);
+        if (queued == TOMBSTONE) {
+            // removed, or promoted to memory by concurrent read after the caller missed memory
+            final StoredValue promoted = memory.get(key);
+            return promoted != null ? CompletableFuture.completedFuture(promoted) : null;
+        }
+        if (queued != null) {
+            return CompletableFuture.completedFuture((StoredValue) queued); // spilled, not written yet
+        }
+        if (!disk.contains(key)) {
+            return null;
+        }
+        diskReads.increment();
+        return CompletableFuture.supplyAsync(() -> readDisk(key), readers);
+    }
+
+    @Override
+    public void close() {
+        logger.info("Closing tiered cache");
+        writer.shutdown();
+        readers.shutdown();
+        try {
+            if (!writer.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)
+                    || !readers.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                logger.warn("Disk tier threads didn't stop in {} sec", SHUTDOWN_TIMEOUT_SEC);
+            }
+            disk.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Failed to close disk tier", e);
+        }
+        memory.close();
+    }
+
+    public LogStructuredStore getDisk() {
+        return disk;
+    }
+
+    public long getSpills() {
+        return spills.sum();
+    }
+
+    public long getDroppedSpills() {
+        return droppedSpills.sum();
+    }
+
+    public long getDiskReads() {
+        return diskReads.sum();
+    }
+
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    public long getDiskErrors() {
+        return diskErrors.sum();
+    }
+
+    private void spill(String key, StoredValue value) {
+        if (value == null || value.getTargetTimeSec() < 0) {
+            return;
+        }
+        if (writer.getQueue().size() >= maxQueuedSpills) {
+            droppedSpills.increment();
+            return;
+        }
+        value.retain(); // memory tier releases the value right after notification
+        pending.put(key, value);
+        submit(() -> {
+            try {
+                if (pending.get(key) == value) {
+                    disk.append(key, value);
+                    spills.increment();
+                }
+            } finally {
+                pending.compute(key, (k, v) -> v == value ? null : v);
+                value.release();
+            }
+        }, value::release);
+    }
+
+    /**
+     * Removes disk copy of the key if there could be one; ordered after previously queued spills
+     */
+    private void invalidateDisk(String key) {
+        if (!disk.contains(key) && !pending.containsKey(key)) {
+            return;
+        }
+        pending.put(key, TOMBSTONE);
+        submit(() -> {
+            disk.remove(key);
+            pending.compute(key, (k, v) -> v == TOMBSTONE ? null : v);
+        });
+    }
+
+    @Nullable
+    private StoredValue readPending(String key) {
+        final Object queued = pending.get(key);
+        return queued instanceof StoredValue ? (StoredValue) queued : null;
+    }
+
+    /**
+     * Reads the key from disk and promotes it to memory
+     * The value is only promoted if the key wasn't written meanwhile: a newer value may have been set and evicted
+     * while the old one was being read, and promoting the old one would resurrect it. The value read is still
+     * returned, as it was current when the read was requested.
+     * The read is retried for as long as the record keeps moving: every retry follows progress of the writer, and
+     * giving up would report a miss for a key which is present.
+     */
+    @Nullable
+    private StoredValue readDisk(String key) {
+        while (true) {
+            final Object version = disk.version(key);
+            final StoredValue value;
+            try {
+                value = disk.read(key);
+            } catch (IOException e) {
+                diskErrors.increment();
+                logger.error("Failed to read key " + key + " from disk tier", e);
+                return null;
+            }
+            if (value == null) {
+                return memory.get(key); // removed from disk meanwhile, possibly promoted by concurrent read
+            }
+            if (pending.get(key) != null) {
+                return value; // written, removed or promoted meanwhile; heap value, the caller may just drop it
+            }
+            if (disk.version(key) != version) {
+                value.release();
+                continue; // moved by compaction or rewritten
+            }
+            value.retain(); // kept for the caller if the memory tier drops the value
+            final StoredValue current = memory.putIfAbsent(key, value);
+            if (current != null) {
+                value.release(2);
+                return current; // set meanwhile
+            }
+            if (pending.get(key) != null || disk.version(key) != version) {
+                memory.remove(key, value); // lost the race with a write
+                return value;
+            }
+            diskHits.increment();
+            invalidateDisk(key); // tiers are exclusive
+            value.release(); // owned by the memory tier now
+            return value;
+        }
+    }
+
+    /**
+     * Moves spilled entry of the key back to memory, unless it is written or removed meanwhile
+     */
+    private void promote(String key) {
+        final StoredValue queued = readPending(key);
+        if (queued == null) {
+            if (disk.contains(key)) {
+                readDisk(key);
+            }
+            return;
+        }
+        if (!queued.tryRetain()) {
+            promote(key); // written to disk and released meanwhile
+            return;
+        }
+        if (memory.putIfAbsent(key, queued) != null) {
+            queued.release(); // set meanwhile
+            return;
+        }
+        final Object current = pending.get(key);
+        if (current == null && disk.contains(key)) {
+            invalidateDisk(key); // written to disk meanwhile, tiers are exclusive
+        } else if (current != queued) {
+            memory.remove(key, queued); // lost the race with a write
+        }
+    }
+
+    private interface DiskTask {
+        void run() throws IOException;
+    }
+
+    private void submit(DiskTask task) {
+        submit(task, () -> { });
+    }
+
+    /**
+     * @param onReject cleanup if the task is dropped because the cache is closed
+     */
+    private void submit(DiskTask task, Runnable onReject) {
+        try {
+            writer.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    diskErrors.increment();
+                    logger.error("Disk tier write failed", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Disk tier is closed, task is dropped");
+            onReject.run();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
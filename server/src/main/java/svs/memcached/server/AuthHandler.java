@@ -0,0 +1,58 @@
+package svs.memcached.server;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import svs.memcached.cache.StoredValue;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Authenticates connection before any command reaches the cache (memcached text protocol authentication)
+ *
+ * Client authenticates with a set of any key whose data is "<username> <password>" (the same credentials as SASL
+ * PLAIN), which is answered with STORED; anything else is rejected until then. The handler removes itself from the
+ * pipeline once the connection is authenticated, so it costs nothing afterwards.
+ */
+public class AuthHandler extends SimpleChannelInboundHandler<MemcacheInboundCommand> {
+
+    private static final Logger logger = LogManager.getLogger(AuthHandler.class);
+
+    static final String UNAUTHENTICATED = MemcacheOutboundCommand.CLIENT_ERROR + "unauthenticated";
+    static final String AUTH_FAILURE = MemcacheOutboundCommand.CLIENT_ERROR + "authentication failure";
+
+    private final Credentials credentials;
+
+    public AuthHandler(Credentials credentials) {
+        this.credentials = credentials;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, MemcacheInboundCommand command) throws Exception {
+        final StoredValue value = command.getValue();
+        try {
+            if (command.getType() == CommandType.ERROR) {
+                ctx.writeAndFlush(MemcacheOutboundCommand.newErrorResult(command.getArgument()));
+            } else if (command.getType() != CommandType.SET) {
+                ctx.writeAndFlush(MemcacheOutboundCommand.newErrorResult(UNAUTHENTICATED));
+            } else if (authenticate(new String(value.getData(), StandardCharsets.UTF_8))) {
+                // commands already decoded after this one go straight to the command handler
+                ctx.pipeline().remove(this);
+                ctx.writeAndFlush(MemcacheOutboundCommand.newSetCommandResult());
+            } else {
+                logger.warn("Authentication failed for {}", ctx.channel().remoteAddress());
+                ctx.writeAndFlush(MemcacheOutboundCommand.newErrorResult(AUTH_FAILURE));
+            }
+        } finally {
+            if (value != null) {
+                value.release();
+            }
+        }
+    }
+
+    private boolean authenticate(String data) {
+        int idx = data.indexOf(' ');
+        return idx > 0 && credentials.check(data.substring(0, idx), data.substring(idx + 1));
+    }
+}
@@ -7,5 +7,12 @@ package svs.memcached.server;
  */
 public enum CommandType {
     GET,
-    SET
+    SET,
+    STATS,
+    META_GET, // mg
+    META_SET, // ms
+    META_DELETE, // md
+    META_NOOP, // mn
+    METADUMP, // lru_crawler metadump
+    ERROR // malformed or unsupported input, reported back to the client in order
 }
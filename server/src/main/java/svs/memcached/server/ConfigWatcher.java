@@ -0,0 +1,70 @@
+package svs.memcached.server;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls config file for modifications and applies reloadable settings
+ * Changes of the settings which require restart are only reported
+ */
+public class ConfigWatcher implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(ConfigWatcher.class);
+
+    private final RuntimeSettings settings;
+    private final File file;
+    private final ScheduledExecutorService scheduler;
+    private ServerConfig config;
+    private long lastModified;
+
+    public ConfigWatcher(@Nonnull ServerConfig config, @Nonnull RuntimeSettings settings) {
+        this.config = config;
+        this.settings = settings;
+        this.file = new File(config.getConfigFile());
+        this.lastModified = file.lastModified();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "config-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        logger.info("Watching config file {} every {} ms", file, config.getConfigReloadIntervalMs());
+        scheduler.scheduleWithFixedDelay(this::checkForUpdates, config.getConfigReloadIntervalMs(),
+                config.getConfigReloadIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    void checkForUpdates() {
+        long modified = file.lastModified();
+        if (modified == lastModified) {
+            return;
+        }
+        lastModified = modified;
+        try {
+            ServerConfig fresh = config.reload();
+            settings.apply(fresh);
+            Set<String> ignored = config.restartRequiredChanges(fresh);
+            if (!ignored.isEmpty()) {
+                logger.warn("Config file {} contains changes which require restart: {}", file, ignored);
+            }
+            config = fresh;
+            logger.info("Config reloaded: {}", fresh);
+        } catch (Exception e) {
+            // keep running with previous configuration
+            logger.error("Unable to reload config file " + file, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
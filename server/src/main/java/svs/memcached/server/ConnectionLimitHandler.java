@@ -0,0 +1,68 @@
+package svs.memcached.server;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rejects connections above the configured limit (memcached -c option)
+ * The limit is taken from RuntimeSettings so it can be changed without restart
+ */
+@ChannelHandler.Sharable
+public class ConnectionLimitHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger logger = LogManager.getLogger(ConnectionLimitHandler.class);
+
+    private static final String TOO_MANY_CONNECTIONS = "ERROR Too many open connections\r\n";
+
+    private static final AttributeKey<Boolean> REJECTED = AttributeKey.valueOf(ConnectionLimitHandler.class, "rejected");
+
+    private final RuntimeSettings settings;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public ConnectionLimitHandler(RuntimeSettings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        if (connections.incrementAndGet() > settings.getMaxConnections()) {
+            logger.warn("Too many open connections, rejecting {}", ctx.channel().remoteAddress());
+            // the client must not get any command executed before the connection is closed
+            ctx.channel().attr(REJECTED).set(Boolean.TRUE);
+            ctx.channel().config().setAutoRead(false);
+            // encoder is not reachable from the head of the pipeline so write raw bytes
+            ctx.writeAndFlush(ctx.alloc().buffer().writeBytes(TOO_MANY_CONNECTIONS.getBytes()))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (ctx.channel().hasAttr(REJECTED)) {
+            // bytes which were already read when the connection got rejected
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        connections.decrementAndGet();
+        super.channelInactive(ctx);
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+}
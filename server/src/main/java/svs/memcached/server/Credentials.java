@@ -0,0 +1,63 @@
+package svs.memcached.server;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Users allowed to connect when authentication is enabled
+ * Loaded from memcached compatible auth file (-Y): one "username:password" pair per line, # starts a comment
+ */
+public class Credentials {
+
+    private final Map<String, byte[]> passwords;
+
+    private Credentials(Map<String, byte[]> passwords) {
+        this.passwords = passwords;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the file is malformed or has no users
+     * @throws IOException if the file can't be read
+     */
+    public static Credentials load(@Nonnull Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    static Credentials parse(@Nonnull List<String> lines) {
+        final Map<String, byte[]> passwords = new HashMap<>();
+        for (String line : lines) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            int idx = line.indexOf(':');
+            if (idx < 1) {
+                throw new IllegalArgumentException("Auth file line must be in username:password format");
+            }
+            passwords.put(line.substring(0, idx), line.substring(idx + 1).getBytes(StandardCharsets.UTF_8));
+        }
+        if (passwords.isEmpty()) {
+            throw new IllegalArgumentException("Auth file has no users");
+        }
+        return new Credentials(passwords);
+    }
+
+    /**
+     * @return true if the user exists and the password matches
+     */
+    public boolean check(@Nonnull String user, @Nonnull String password) {
+        final byte[] expected = passwords.get(user);
+        // constant time comparison, so response time doesn't reveal the password prefix
+        return expected != null && MessageDigest.isEqual(expected, password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int size() {
+        return passwords.size();
+    }
+}
@@ -7,7 +7,7 @@ package svs.memcached.server;
  * Created by ssmirnov on 2/5/17.
  */
 public class DecodingException extends Exception {
-    public DecodingException(Exception e) {
-        super(e);
+    public DecodingException(String message) {
+        super(message);
     }
 }
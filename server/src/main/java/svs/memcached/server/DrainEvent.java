@@ -0,0 +1,13 @@
+package svs.memcached.server;
+
+/**
+ * User event asking the command handler to close the connection once responses to all commands received so far
+ * are written (graceful shutdown); reads are stopped before it is fired
+ */
+final class DrainEvent {
+
+    static final DrainEvent INSTANCE = new DrainEvent();
+
+    private DrainEvent() {
+    }
+}
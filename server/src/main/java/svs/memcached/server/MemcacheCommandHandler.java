@@ -1,5 +1,6 @@
 package svs.memcached.server;
 
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import org.apache.logging.log4j.LogManager;
@@ -7,51 +8,123 @@ import org.apache.logging.log4j.Logger;
 import svs.memcached.cache.ICache;
 import svs.memcached.cache.StoredValue;
 
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  *
  * Main Command handler
  * Performs actual cache operations
  *
+ * Commands are executed in the order they are received. A command waiting for an asynchronous result (e.g. disk
+ * read) doesn't stall the connection, but later commands with the same key are deferred until it completes, so
+ * they can't overtake it (e.g. a get must not see the value a pipelined delete is about to remove).
+ *
  * Created by ssmirnov on 2/4/17.
  */
 public class MemcacheCommandHandler extends SimpleChannelInboundHandler<MemcacheInboundCommand> {
 
 
-    private final ICache<StoredValue> cache;
+    private final MemcacheCommandProcessor processor;
+    private final PendingResponses pending = new PendingResponses();
+    // keys of commands waiting for asynchronous results -> commands of the same key received after them
+    private final Map<String, ArrayDeque<Deferred>> inFlight = new HashMap<>();
 
     private static final Logger logger = LogManager.getLogger(MemcacheCommandHandler.class);
 
     public MemcacheCommandHandler(ICache<StoredValue> cache) {
-        this.cache = cache;
+        this(cache, null);
+    }
+
+    /**
+     * @param slowLog slowlog reported by stats, null if tracing is disabled
+     */
+    public MemcacheCommandHandler(ICache<StoredValue> cache, @Nullable SlowLog slowLog) {
+        this.processor = new MemcacheCommandProcessor(cache, slowLog);
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MemcacheInboundCommand command) throws Exception {
         logger.debug("Processing command: {}", command);
-
-        switch (command.getType()) {
-            case GET: {
-                StoredValue value = cache.get(command.getKey());
-                if (value != null && value.getTargetTimeSec() != 0
-                        && value.getTargetTimeSec() * 1000l < System.currentTimeMillis()) {
-                    value = null; // expired
-                    cache.remove(command.getKey()); // TODO synchronization for concurrent access
-                }
-                ctx.writeAndFlush(MemcacheOutboundCommand.newGetCommandResult(command, value));
-                break;
+        final ArrayDeque<Deferred> deferred = command.getKey() != null ? inFlight.get(command.getKey()) : null;
+        if (deferred != null) {
+            deferred.add(new Deferred(command, pending.reserve(command.getTrace())));
+            return;
+        }
+        final MemcacheOutboundCommand result;
+        try {
+            result = processor.process(command);
+        } catch (Throwable e) {
+            // reported after the responses of earlier commands
+            pending.fail(ctx, pending.reserve(command.getTrace()), e);
+            return;
+        }
+        if (result.isImmediate() && pending.isEmpty()) {
+            final ChannelFuture future = ctx.writeAndFlush(result);
+            if (command.getTrace() != null) {
+                future.addListener(command.getTrace());
             }
-            case SET: {
-                if (command.getValue().getTargetTimeSec() < 0) { // If a negative value is given the item is immediately expired.
-                    cache.remove(command.getKey());
-                } else {
-                    cache.set(command.getKey(), command.getValue());
-                }
-                ctx.writeAndFlush(MemcacheOutboundCommand.newSetCommandResult());
-                break;
+            return;
+        }
+        // asynchronous or streamed result (or an earlier one is still pending): keep responses in request order
+        complete(ctx, command, pending.reserve(command.getTrace()), result);
+    }
+
+    private void complete(ChannelHandlerContext ctx, MemcacheInboundCommand command, PendingResponses.Slot slot,
+                          MemcacheOutboundCommand result) {
+        if (result.getPending() != null && command.getKey() != null) {
+            final String key = command.getKey();
+            inFlight.put(key, new ArrayDeque<>());
+            pending.completeWhenDone(ctx, slot, result.getPending(), () -> resume(ctx, key));
+        } else {
+            pending.completeResult(ctx, slot, result);
+        }
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == DrainEvent.INSTANCE) {
+            pending.whenEmpty(() -> {
+                ctx.flush();
+                ctx.close();
+            });
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    /**
+     * Executes commands deferred behind completed asynchronous command until one of them is asynchronous again
+     */
+    private void resume(ChannelHandlerContext ctx, String key) {
+        final ArrayDeque<Deferred> deferred = inFlight.remove(key);
+        Deferred next;
+        while ((next = deferred.poll()) != null) {
+            final MemcacheOutboundCommand result;
+            try {
+                result = processor.process(next.command);
+            } catch (Throwable e) {
+                pending.fail(ctx, next.slot, e);
+                continue;
             }
-            default : {
-                throw new IllegalArgumentException("Unsupported command type: " + command.getType());
+            complete(ctx, next.command, next.slot, result);
+            final ArrayDeque<Deferred> blocked = inFlight.get(key);
+            if (blocked != null) {
+                blocked.addAll(deferred);
+                return;
             }
         }
     }
+
+    private static final class Deferred {
+        private final MemcacheInboundCommand command;
+        private final PendingResponses.Slot slot;
+
+        private Deferred(MemcacheInboundCommand command, PendingResponses.Slot slot) {
+            this.command = command;
+            this.slot = slot;
+        }
+    }
 }
@@ -0,0 +1,397 @@
+package svs.memcached.server;
+
+import svs.memcached.cache.ICache;
+import svs.memcached.cache.NamespacedCache;
+import svs.memcached.cache.ReadThroughCache;
+import svs.memcached.cache.StoredValue;
+import svs.memcached.cache.TieredCache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * Executes decoded commands against the cache
+ * Shared by command handlers so the same protocol semantics apply regardless of threading model
+ */
+public class MemcacheCommandProcessor {
+
+    static final String STATS_NAMESPACES = "namespaces";
+    static final String STATS_TIER = "tier";
+    static final String STATS_LOADER = "loader";
+    static final String STATS_SLOWLOG = "slowlog";
+
+    private static final byte[] EMPTY_DATA = new byte[0];
+
+    private final ICache<StoredValue> cache;
+    private final SlowLog slowLog;
+
+    public MemcacheCommandProcessor(@Nonnull ICache<StoredValue> cache) {
+        this(cache, null);
+    }
+
+    /**
+     * @param slowLog slowlog reported by stats, null if tracing is disabled
+     */
+    public MemcacheCommandProcessor(@Nonnull ICache<StoredValue> cache, @Nullable SlowLog slowLog) {
+        this.cache = cache;
+        this.slowLog = slowLog;
+    }
+
+    /**
+     * Performs cache operation of the command
+     * @param command decoded inbound command
+     * @return response to send back to the client; may be a pending result (see MemcacheOutboundCommand#getPending)
+     */
+    @Nonnull
+    public MemcacheOutboundCommand process(@Nonnull MemcacheInboundCommand command) {
+        final RequestTrace trace = command.getTrace();
+        if (trace == null) {
+            return execute(command);
+        }
+        trace.dispatched();
+        final MemcacheOutboundCommand result = execute(command);
+        if (result.getPending() != null) {
+            result.getPending().whenComplete((r, e) -> trace.processed(r));
+        } else {
+            trace.processed(result);
+        }
+        return result;
+    }
+
+    private MemcacheOutboundCommand execute(MemcacheInboundCommand command) {
+        switch (command.getType()) {
+            case GET: {
+                return withValue(command, this::getResult);
+            }
+            case SET: {
+                if (command.getValue().getTargetTimeSec() < 0) { // If a negative value is given the item is immediately expired.
+                    cache.remove(command.getKey());
+                    command.getValue().release();
+                } else {
+                    cache.set(command.getKey(), command.getValue());
+                }
+                return MemcacheOutboundCommand.newSetCommandResult();
+            }
+            case META_GET: {
+                return withValue(command, this::metaGetResult);
+            }
+            case META_SET: {
+                return metaSet(command);
+            }
+            case META_DELETE: {
+                // not through withValue: deleting a key must not fetch it, let alone load it from the origin
+                return metaDeleteResult(command, cache.get(command.getKey()));
+            }
+            case META_NOOP: {
+                return MemcacheOutboundCommand.newMetaResult(CommandType.META_NOOP, "MN", null);
+            }
+            case METADUMP: {
+                return MemcacheOutboundCommand.newStreamResult(new MetadumpStream(cache.entries()));
+            }
+            case STATS: {
+                return MemcacheOutboundCommand.newStatsCommandResult(stats(command.getArgument()));
+            }
+            case ERROR: {
+                return MemcacheOutboundCommand.newErrorResult(command.getArgument());
+            }
+            default : {
+                throw new IllegalArgumentException("Unsupported command type: " + command.getType());
+            }
+        }
+    }
+
+    /**
+     * Looks the key up and builds the result, asynchronously if the value has to be fetched from slower storage
+     */
+    private MemcacheOutboundCommand withValue(MemcacheInboundCommand command,
+            BiFunction<MemcacheInboundCommand, StoredValue, MemcacheOutboundCommand> result) {
+        final StoredValue value = cache.get(command.getKey());
+        if (value == null) {
+            // not in memory, the cache may still have it in slower storage
+            final CompletableFuture<StoredValue> fetch = cache.fetchAsync(command.getKey());
+            if (fetch != null) {
+                return MemcacheOutboundCommand.newPendingResult(fetch.thenApply(v -> result.apply(command, v)));
+            }
+        }
+        return result.apply(command, value);
+    }
+
+    /**
+     * @return the value or null if it is expired (expired value is removed unless it was replaced meanwhile)
+     */
+    @Nullable
+    private StoredValue live(String key, @Nullable StoredValue value) {
+        if (value != null && value.getTargetTimeSec() != 0
+                && value.getTargetTimeSec() * 1000l < System.currentTimeMillis()) {
+            cache.remove(key, value); // by identity, a value set meanwhile stays even if its data is the same
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * @return the value retained for the encoder or null if it was removed (and released) meanwhile
+     */
+    @Nullable
+    private static StoredValue retained(@Nullable StoredValue value) {
+        return value != null && value.tryRetain() ? value : null;
+    }
+
+    private MemcacheOutboundCommand getResult(MemcacheInboundCommand command, @Nullable StoredValue value) {
+        return MemcacheOutboundCommand.newGetCommandResult(command, retained(live(command.getKey(), value)));
+    }
+
+    // mg: VA <size> <flags>* / HD <flags>* on hit, EN on miss
+    private MemcacheOutboundCommand metaGetResult(MemcacheInboundCommand command, @Nullable StoredValue value) {
+        final MetaFlags meta = command.getMeta();
+        final String key = command.getKey();
+        value = live(key, value);
+        if (meta.isValue()) {
+            value = retained(value); // data block is written by the encoder
+        }
+        boolean won = false;
+        if (value == null) {
+            if (meta.getVivifyTtl() == MetaFlags.NONE) {
+                return metaMissResult(command);
+            }
+            // create empty placeholder, the first client to miss gets the token to fill it
+            final StoredValue vivified = new StoredValue(EMPTY_DATA, 0,
+                    MemcacheDecoder.targetTimeSec(meta.getVivifyTtl()));
+            final StoredValue current = cache.putIfAbsent(key, vivified);
+            if (current == null) {
+                won = vivified.acquireWinToken();
+                value = vivified;
+            } else {
+                vivified.release();
+                value = current;
+            }
+            if (meta.isValue() && retained(value) == null) {
+                return metaMissResult(command); // evicted right away
+            }
+        }
+        if (!won) {
+            // stale value or value about to expire: one client recaches, the others are served the current value
+            final boolean recacheDue = meta.getRecacheTtl() != MetaFlags.NONE && value.getTargetTimeSec() != 0
+                    && value.getTargetTimeSec() - System.currentTimeMillis() / 1000 < meta.getRecacheTtl();
+            won = (value.isStale() || recacheDue) && value.acquireWinToken();
+        }
+        if (meta.getTtl() != MetaFlags.NONE) {
+            value.setTargetTimeSec(MemcacheDecoder.targetTimeSec(meta.getTtl()));
+        }
+        final StringBuilder line = meta.isValue()
+                ? new StringBuilder("VA ").append(value.getSize()) : new StringBuilder("HD");
+        appendReturnFlags(line, meta, key, value);
+        if (won) {
+            line.append(" W");
+        }
+        if (value.isStale()) {
+            line.append(" X");
+        }
+        if (!won && value.isWinTokenSent()) {
+            line.append(" Z");
+        }
+        return metaResult(command, line, meta.isValue() ? value : null);
+    }
+
+    private MemcacheOutboundCommand metaMissResult(MemcacheInboundCommand command) {
+        final MetaFlags meta = command.getMeta();
+        return meta.isQuiet() ? quietResult(command)
+                : metaResult(command, appendReturnFlags(new StringBuilder("EN"), meta, command.getKey(), null), null);
+    }
+
+    // ms: HD when stored, NS when not stored because of the mode (add / replace)
+    private MemcacheOutboundCommand metaSet(MemcacheInboundCommand command) {
+        final MetaFlags meta = command.getMeta();
+        final String key = command.getKey();
+        final StoredValue value = command.getValue();
+        switch (meta.getMode()) {
+            case MetaFlags.MODE_ADD: {
+                // through withValue, so a copy in slower storage is fetched off the calling thread before the store
+                return withValue(command, (c, fetched) -> {
+                    StoredValue current = live(key, fetched) != null ? fetched : cache.putIfAbsent(key, value);
+                    if (current != null && live(key, current) == null) {
+                        current = cache.putIfAbsent(key, value); // expired one is removed, try once more
+                    }
+                    if (current != null) {
+                        value.release();
+                    }
+                    return metaSetResult(c, current == null);
+                });
+            }
+            case MetaFlags.MODE_REPLACE: {
+                return withValue(command, (c, current) -> {
+                    // expired value is removed by live(), so it is not replaced
+                    final boolean stored = live(key, current) != null && cache.replace(key, value);
+                    if (!stored) {
+                        value.release();
+                    }
+                    return metaSetResult(c, stored);
+                });
+            }
+            default: {
+                if (value.getTargetTimeSec() < 0) {
+                    cache.remove(key);
+                    value.release();
+                } else {
+                    cache.set(key, value);
+                }
+                return metaSetResult(command, true);
+            }
+        }
+    }
+
+    private MemcacheOutboundCommand metaSetResult(MemcacheInboundCommand command, boolean stored) {
+        final MetaFlags meta = command.getMeta();
+        if (stored && meta.isQuiet()) {
+            return quietResult(command);
+        }
+        return metaResult(command,
+                appendReturnFlags(new StringBuilder(stored ? "HD" : "NS"), meta, command.getKey(), null), null);
+    }
+
+    // md: HD when deleted (or marked stale with I flag), NF when not found
+    private MemcacheOutboundCommand metaDeleteResult(MemcacheInboundCommand command, @Nullable StoredValue value) {
+        final MetaFlags meta = command.getMeta();
+        final String key = command.getKey();
+        value = live(key, value);
+        if (value != null && meta.isInvalidate()) {
+            value.markStale(); // keep serving it until the winner of recache token sets a new one
+            if (meta.getTtl() != MetaFlags.NONE) {
+                value.setTargetTimeSec(MemcacheDecoder.targetTimeSec(meta.getTtl()));
+            }
+        } else if (!meta.isInvalidate()) {
+            // also when it isn't in memory: a copy in slower storage is dropped, reported as NF though
+            cache.remove(key);
+        }
+        if (meta.isQuiet()) {
+            return quietResult(command);
+        }
+        return metaResult(command, appendReturnFlags(new StringBuilder(value != null ? "HD" : "NF"), meta, key, null),
+                null);
+    }
+
+    /**
+     * Appends requested return flags; value flags (f, t, s, c) are skipped when there is no value
+     */
+    private static StringBuilder appendReturnFlags(StringBuilder line, MetaFlags meta, String key,
+                                                   @Nullable StoredValue value) {
+        final CharSequence flags = meta.getReturnFlags();
+        for (int i = 0; i < flags.length(); i++) {
+            final char flag = flags.charAt(i);
+            switch (flag) {
+                case 'O': line.append(" O").append(meta.getOpaque()); break;
+                case 'k': line.append(" k").append(key); break;
+                default: {
+                    if (value == null) {
+                        break;
+                    }
+                    switch (flag) {
+                        case 'f': line.append(" f").append(Integer.toUnsignedString(value.getFlags())); break;
+                        case 's': line.append(" s").append(value.getSize()); break;
+                        case 'c': line.append(" c0"); break; // CAS is not supported
+                        case 't': {
+                            final int target = value.getTargetTimeSec();
+                            line.append(" t").append(target == 0 ? -1
+                                    : Math.max(0, target - System.currentTimeMillis() / 1000));
+                            break;
+                        }
+                        default: break;
+                    }
+                }
+            }
+        }
+        return line;
+    }
+
+    private static MemcacheOutboundCommand metaResult(MemcacheInboundCommand command, CharSequence line,
+                                                      @Nullable StoredValue value) {
+        return MemcacheOutboundCommand.newMetaResult(command.getType(), line.toString(), value);
+    }
+
+    private static MemcacheOutboundCommand quietResult(MemcacheInboundCommand command) {
+        return MemcacheOutboundCommand.newMetaResult(command.getType(), null, null);
+    }
+
+    /**
+     * @param group stats group; null means all groups
+     * @return stats in output order; empty for unknown group
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, String> stats(@Nullable String group) {
+        final Map<String, String> stats = new LinkedHashMap<>();
+        if (group == null) {
+            RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+            String name = runtime.getName(); // pid@host
+            stats.put("pid", name.contains("@") ? name.substring(0, name.indexOf('@')) : name);
+            stats.put("uptime", Long.toString(runtime.getUptime() / 1000));
+            stats.put("time", Long.toString(System.currentTimeMillis() / 1000));
+        }
+        final NamespacedCache<StoredValue> namespaced = find(NamespacedCache.class);
+        if ((group == null || STATS_NAMESPACES.equals(group)) && namespaced != null) {
+            for (NamespacedCache.Namespace<StoredValue> namespace : namespaced.getNamespaces()) {
+                String prefix = "ns:" + namespace.getName() + ":";
+                stats.put(prefix + "get_hits", Long.toString(namespace.getGetHits()));
+                stats.put(prefix + "get_misses", Long.toString(namespace.getGetMisses()));
+                stats.put(prefix + "cmd_set", Long.toString(namespace.getSets()));
+                stats.put(prefix + "removes", Long.toString(namespace.getRemoves()));
+            }
+        }
+        final TieredCache tiered = find(TieredCache.class);
+        if ((group == null || STATS_TIER.equals(group)) && tiered != null) {
+            stats.put("tier_spills", Long.toString(tiered.getSpills()));
+            stats.put("tier_dropped_spills", Long.toString(tiered.getDroppedSpills()));
+            stats.put("tier_disk_reads", Long.toString(tiered.getDiskReads()));
+            stats.put("tier_disk_hits", Long.toString(tiered.getDiskHits()));
+            stats.put("tier_disk_errors", Long.toString(tiered.getDiskErrors()));
+            stats.put("tier_disk_items", Integer.toString(tiered.getDisk().getItemCount()));
+            stats.put("tier_disk_bytes", Long.toString(tiered.getDisk().getTotalBytes()));
+            stats.put("tier_disk_compactions", Long.toString(tiered.getDisk().getCompactions()));
+            stats.put("tier_disk_dropped_segments", Long.toString(tiered.getDisk().getDroppedSegments()));
+        }
+        final ReadThroughCache readThrough = find(ReadThroughCache.class);
+        if ((group == null || STATS_LOADER.equals(group)) && readThrough != null) {
+            stats.put("loader_loads", Long.toString(readThrough.getLoads()));
+            stats.put("loader_coalesced", Long.toString(readThrough.getCoalescedLoads()));
+            stats.put("loader_hits", Long.toString(readThrough.getLoadHits()));
+            stats.put("loader_misses", Long.toString(readThrough.getLoadMisses()));
+            stats.put("loader_errors", Long.toString(readThrough.getLoadErrors()));
+            stats.put("write_behind_buffered", Integer.toString(readThrough.getBufferedWrites()));
+            stats.put("write_behind_flushed", Long.toString(readThrough.getFlushedWrites()));
+            stats.put("write_behind_errors", Long.toString(readThrough.getWriteErrors()));
+        }
+        if ((group == null || STATS_SLOWLOG.equals(group)) && slowLog != null) {
+            stats.put("trace_commands", Long.toString(slowLog.getTraced()));
+            stats.put("slowlog_commands", Long.toString(slowLog.getRecorded()));
+            if (group != null) {
+                slowLog.appendTo(stats);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Looks for the cache decorator or backend of given type, also behind read-through and as default namespace cache
+     * @return found cache or null if there is none
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <C> C find(Class<? super C> type) {
+        ICache<StoredValue> candidate = cache;
+        while (!type.isInstance(candidate)) {
+            if (candidate instanceof ReadThroughCache) {
+                candidate = ((ReadThroughCache) candidate).getDelegate();
+            } else if (candidate instanceof NamespacedCache) {
+                candidate = ((NamespacedCache<StoredValue>) candidate).getDefaultNamespace().getCache();
+            } else {
+                return null;
+            }
+        }
+        return (C) candidate;
+    }
+}
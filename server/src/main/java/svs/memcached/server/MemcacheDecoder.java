@@ -5,83 +5,412 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ReplayingDecoder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import svs.memcached.cache.StoredValue;
 
-import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Memcached text command decoder
  *
- * It is based on ReplayingDecoder for simplicity. As the result there may be some performance overhead
- * especially for large messages (e.g. decoding parts of the message multiple times)
+ * It is based on ReplayingDecoder for simplicity. Command line is decoded first, then data block of the set
+ * command is read in a separate state, so the command line is not decoded again while waiting for large values.
  *
+ * Malformed lines are consumed and reported as error commands in the same order as other commands, so
+ * the connection stays usable after CLIENT_ERROR/ERROR and pipelined responses are not reordered.
+ *
+ * Command lines are split into tokens in place, as offsets into the input buffer. get and set are parsed straight
+ * from the buffer, so the key is the only string they create; less frequent commands get their tokens as strings.
+ *
+ * Data blocks are copied either to exact size arrays or to buffers of the channel allocator (pooled values), which are
+ * returned to the pool when the value is removed from the cache instead of becoming garbage.
  *
  * Created by ssmirnov on 2/4/17.
  */
-public class MemcacheDecoder extends ReplayingDecoder<Void> {
+public class MemcacheDecoder extends ReplayingDecoder<MemcacheDecoder.State> {
 
     private static final Logger logger = LogManager.getLogger(MemcacheDecoder.class);
     private static final int SECONDS_IN_30_DAYS = 60 * 60 * 24 * 30;
 
+    static final int MAX_LINE_LENGTH = 2048;
+    static final int MAX_KEY_LENGTH = 250;
+    static final int MAX_DATA_SIZE = 1024 * 1024; // same as default memcached item size limit
+    // keys are arbitrary bytes: one char per byte, so distinct keys never decode to the same string
+    static final Charset KEY_CHARSET = StandardCharsets.ISO_8859_1;
+    private static final int MAX_SWALLOWED_SIZE = Integer.MAX_VALUE - 2; // data block and \r\n must fit int
+
+    enum State {
+        READ_COMMAND,
+        READ_DATA,
+        SKIP_LINE,
+        SKIP_DATA
+    }
+
+    private static final byte[] GET = "get".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SET = "set".getBytes(StandardCharsets.US_ASCII);
+
+    // start and end offsets of the tokens of the command line in the input buffer, reused for every line
+    private int[] tokenBounds = new int[16];
+    private int tokenCount;
+
+    // set command waiting for its data block
+    private String key;
+    private int flags;
+    private int targetTime;
+    private int dataSize;
+    private MetaFlags meta; // flags of ms command, null for set
+    private RequestTrace trace; // of the command being decoded if it is sampled
+    private RequestTrace connectionTrace; // reused for sampled commands, see SlowLog#newTrace
+
+    private final boolean pooledValues;
+    private final SlowLog slowLog;
+    private int untilSample; // commands until the next sampled one
+
+    public MemcacheDecoder() {
+        this(false, null);
+    }
+
+    /**
+     * @param pooledValues store data blocks in buffers of the channel allocator rather than in byte arrays
+     * @param slowLog sampler of commands to trace, null disables tracing
+     */
+    public MemcacheDecoder(boolean pooledValues, @Nullable SlowLog slowLog) {
+        super(State.READ_COMMAND);
+        this.pooledValues = pooledValues;
+        this.slowLog = slowLog;
+        this.untilSample = slowLog != null ? slowLog.nextSampleDistance() : 0;
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-
+        final int decoded = out.size();
         try {
-            int length = in.bytesBefore((byte) ' ');
-            final String command = readString(in, length);
-            in.skipBytes(1);  // space
-            switch (command) {
-                case "get": {
-                    decodeGetCommand(in, out);
-                    break;
-                }
-                case "set": {
-                    decodeSetCommand(in, out);
-                    break;
+            decodeInState(ctx, in, out);
+        } catch (DecodingException e) {
+            logger.debug("Malformed input: {}", e.getMessage());
+            out.add(MemcacheInboundCommand.newErrorCommand(MemcacheOutboundCommand.CLIENT_ERROR + e.getMessage()));
+        } catch (UnsupportedCommandException e) {
+            logger.debug(e.getMessage());
+            out.add(MemcacheInboundCommand.newErrorCommand(MemcacheOutboundCommand.UNSUPPORTED_COMMAND_ERROR));
+        } finally {
+            if (trace != null && out.size() > decoded) {
+                final MemcacheInboundCommand command = (MemcacheInboundCommand) out.get(decoded);
+                trace.decoded(command);
+                command.setTrace(trace);
+                trace = null;
+            }
+        }
+    }
+
+    private void decodeInState(ChannelHandlerContext ctx, ByteBuf in, List<Object> out)
+            throws DecodingException, UnsupportedCommandException {
+        switch (state()) {
+            case READ_COMMAND: {
+                decodeCommand(in, out);
+                break;
+            }
+            case READ_DATA: {
+                decodeData(ctx, in, out);
+                break;
+            }
+            case SKIP_LINE: {
+                // swallow the rest of too long line
+                int length = internalBuffer().bytesBefore((byte) '\n');
+                if (length < 0) {
+                    in.skipBytes(actualReadableBytes());
+                } else {
+                    in.skipBytes(length + 1);
+                    checkpoint(State.READ_COMMAND);
                 }
-                default: {
-                    throw new UnsupportedCommandException(command);
+                break;
+            }
+            case SKIP_DATA: {
+                // swallow data block of rejected set command
+                int length = Math.min(dataSize, actualReadableBytes());
+                in.skipBytes(length);
+                dataSize -= length;
+                if (dataSize == 0) {
+                    checkpoint(State.READ_COMMAND);
                 }
+                break;
             }
-        } catch (Exception e){
-            if (!(e instanceof UnsupportedCommandException)){
-                throw new DecodingException(e);
-            } else {
-                throw e; // rethrowing UnsupportedCommandException
+            default: {
+                throw new IllegalStateException("Unknown decoder state: " + state());
             }
         }
+    }
 
+    private void decodeCommand(ByteBuf in, List<Object> out) throws DecodingException, UnsupportedCommandException {
+        if (internalBuffer().bytesBefore((byte) '\n') < 0 && actualReadableBytes() > MAX_LINE_LENGTH) {
+            in.skipBytes(actualReadableBytes());
+            checkpoint(State.SKIP_LINE);
+            throw new DecodingException("line too long");
+        }
+        int length = in.bytesBefore((byte) '\n'); // replays until the whole line is received
+        if (length > MAX_LINE_LENGTH) {
+            // same as if the line was received in parts, so the response doesn't depend on fragmentation
+            in.skipBytes(length + 1);
+            checkpoint();
+            throw new DecodingException("line too long");
+        }
+        final ByteBuf line = internalBuffer(); // offsets stay valid until decode() returns
+        final int lineStart = in.readerIndex();
+        final int lineLength = length > 0 && line.getByte(lineStart + length - 1) == '\r' ? length - 1 : length;
+        tokenize(line, lineStart, lineStart + lineLength);
+        in.skipBytes(length + 1); // line and \n
+        checkpoint(); // line is consumed even if it turns out to be malformed
+        if (slowLog != null && --untilSample == 0) {
+            untilSample = slowLog.nextSampleDistance();
+            trace = slowLog.newTrace(connectionTrace);
+            if (connectionTrace == null) {
+                connectionTrace = trace;
+            }
+        }
+        if (tokenCount == 0) {
+            throw new UnsupportedCommandException("");
+        }
+        if (tokenEquals(line, 0, GET)) {
+            decodeGetCommand(line, out);
+            return;
+        }
+        if (tokenEquals(line, 0, SET)) {
+            decodeSetCommand(line);
+            return;
+        }
+        final List<String> tokens = tokens(line);
+        final String command = tokens.get(0);
+        switch (command) {
+            case "stats": {
+                out.add(MemcacheInboundCommand.newStatsCommand(tokens.size() > 1 ? tokens.get(1) : null));
+                break;
+            }
+            case "mg": {
+                out.add(MemcacheInboundCommand.newMetaGetCommand(metaKey(tokens),
+                        MetaFlags.parse(tokens, 2, MetaFlags.GET_FLAGS)));
+                break;
+            }
+            case "ms": {
+                decodeMetaSetCommand(tokens);
+                break;
+            }
+            case "md": {
+                out.add(MemcacheInboundCommand.newMetaDeleteCommand(metaKey(tokens),
+                        MetaFlags.parse(tokens, 2, MetaFlags.DELETE_FLAGS)));
+                break;
+            }
+            case "mn": {
+                out.add(MemcacheInboundCommand.newMetaNoopCommand());
+                break;
+            }
+            case "lru_crawler": {
+                // lru_crawler metadump <all|1>; there is a single item class
+                if (tokens.size() < 2 || !"metadump".equals(tokens.get(1)) || tokens.size() > 3
+                        || (tokens.size() == 3 && !"all".equals(tokens.get(2)) && !"1".equals(tokens.get(2)))) {
+                    throw new DecodingException("unsupported lru_crawler command");
+                }
+                out.add(MemcacheInboundCommand.newMetadumpCommand());
+                break;
+            }
+            default: {
+                throw new UnsupportedCommandException(command);
+            }
+        }
     }
 
-    private void decodeGetCommand(ByteBuf in, List<Object> out) {
+    private void decodeGetCommand(ByteBuf line, List<Object> out) throws DecodingException {
         logger.debug("Decoding Get command");
-        int length = in.bytesBefore((byte) '\r');
-        final String key = readString(in, length);
-        in.skipBytes(2); // \r\n
-        out.add(MemcacheInboundCommand.newGetCommand(key));
+        if (tokenCount != 2) {
+            throw new DecodingException("bad command line format");
+        }
+        out.add(MemcacheInboundCommand.newGetCommand(keyToken(line, 1)));
     }
 
-
-    private void decodeSetCommand(ByteBuf in, List<Object> out) {
+    // set <key> <flags> <exptime> <bytes>
+    private void decodeSetCommand(ByteBuf line) throws DecodingException {
         logger.debug("Decoding Set command");
-        int length;
-        length = in.bytesBefore((byte) ' ');
-        final String key = readString(in, length);
-        in.skipBytes(1); // space
-        length = in.bytesBefore((byte) ' ');
-        int flags = Integer.parseInt(readString(in, length)); // read flags; we will need them later for deserialization
-        in.skipBytes(1); // space
-        length = in.bytesBefore((byte) ' ');
-        int targetTime = targetTimeSec(Integer.parseInt(readString(in, length)));
-        in.skipBytes(1); // space
-        length = in.bytesBefore((byte) '\r');
-        int dataSize = Integer.parseInt(readString(in, length));
-        in.skipBytes(2); // \r\n
-        byte[] data = new byte[dataSize];
-        in.readBytes(data);
-        in.skipBytes(2); // \r\n
-        out.add(MemcacheInboundCommand.newSetCommand(key, data, flags, targetTime));
+        if (tokenCount != 5) {
+            throw new DecodingException("bad command line format");
+        }
+        meta = null;
+        final int size;
+        try {
+            key = keyToken(line, 1);
+            // read flags (32 bit unsigned); we will need them later for deserialization
+            flags = intToken(line, 2, true);
+            targetTime = targetTimeSec(intToken(line, 3, false));
+            size = intToken(line, 4, false);
+        } catch (NumberFormatException e) {
+            throw new DecodingException("bad command line format");
+        }
+        expectData(size);
+    }
+
+    // ms <key> <datalen> <flags>*
+    private void decodeMetaSetCommand(List<String> tokens) throws DecodingException {
+        logger.debug("Decoding Meta Set command");
+        if (tokens.size() < 3) {
+            throw new DecodingException("bad command line format");
+        }
+        final int size;
+        try {
+            size = Integer.parseInt(tokens.get(2));
+        } catch (NumberFormatException e) {
+            throw new DecodingException("bad data chunk");
+        }
+        try {
+            key = checkKey(tokens.get(1));
+            meta = MetaFlags.parse(tokens, 3, MetaFlags.SET_FLAGS);
+        } catch (DecodingException e) {
+            if (size >= 0 && size <= MAX_SWALLOWED_SIZE) {
+                dataSize = size + 2; // data block of the rejected command must not be taken for commands
+                checkpoint(State.SKIP_DATA);
+            }
+            throw e;
+        }
+        flags = meta.getClientFlags();
+        targetTime = meta.getTtl() == MetaFlags.NONE ? 0 : targetTimeSec(meta.getTtl());
+        expectData(size);
+    }
+
+    private void expectData(int size) throws DecodingException {
+        if (size < 0 || size > MAX_SWALLOWED_SIZE) {
+            throw new DecodingException("bad data chunk");
+        }
+        dataSize = size;
+        if (size > MAX_DATA_SIZE) {
+            dataSize = size + 2; // data + \r\n
+            checkpoint(State.SKIP_DATA);
+            throw new DecodingException("object too large for cache");
+        }
+        checkpoint(State.READ_DATA);
+    }
+
+    private void decodeData(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws DecodingException {
+        // wait for data with trailing \r\n
+        ByteBuf data = in.readSlice(dataSize);
+        byte cr = in.readByte();
+        byte lf = in.readByte();
+        checkpoint(State.READ_COMMAND);
+        if (cr != '\r' || lf != '\n') {
+            if (lf != '\n') {
+                checkpoint(State.SKIP_LINE); // resync on the next line
+            }
+            throw new DecodingException("bad data chunk");
+        }
+        final StoredValue value;
+        if (pooledValues && dataSize > 0) { // empty buffer of the allocator can't be written to
+            value = new StoredValue(ctx.alloc().heapBuffer(dataSize, dataSize).writeBytes(data), flags, targetTime);
+        } else {
+            byte[] bytes = new byte[dataSize];
+            data.readBytes(bytes);
+            value = new StoredValue(bytes, flags, targetTime);
+        }
+        if (meta != null) {
+            out.add(MemcacheInboundCommand.newMetaSetCommand(key, value, meta));
+        } else {
+            out.add(MemcacheInboundCommand.newSetCommand(key, value));
+        }
+        key = null;
+        meta = null;
+    }
+
+    private static String metaKey(List<String> tokens) throws DecodingException {
+        if (tokens.size() < 2) {
+            throw new DecodingException("bad command line format");
+        }
+        return checkKey(tokens.get(1));
+    }
+
+    private static String checkKey(String key) throws DecodingException {
+        if (key.length() > MAX_KEY_LENGTH) {
+            throw new DecodingException("key too long");
+        }
+        return key;
+    }
+
+    /**
+     * Splits command line by spaces ignoring repeated ones
+     */
+    private void tokenize(ByteBuf line, int from, int to) {
+        tokenCount = 0;
+        int start = -1;
+        for (int i = from; i <= to; i++) {
+            if (i == to || line.getByte(i) == ' ') {
+                if (start >= 0) {
+                    if (tokenBounds.length == tokenCount * 2) {
+                        tokenBounds = Arrays.copyOf(tokenBounds, tokenBounds.length * 2);
+                    }
+                    tokenBounds[tokenCount * 2] = start;
+                    tokenBounds[tokenCount * 2 + 1] = i;
+                    tokenCount++;
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+    }
+
+    private boolean tokenEquals(ByteBuf line, int index, byte[] expected) {
+        final int start = tokenBounds[index * 2];
+        if (tokenBounds[index * 2 + 1] - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (line.getByte(start + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String token(ByteBuf line, int index) {
+        final int start = tokenBounds[index * 2];
+        return line.toString(start, tokenBounds[index * 2 + 1] - start, KEY_CHARSET);
+    }
+
+    private String keyToken(ByteBuf line, int index) throws DecodingException {
+        if (tokenBounds[index * 2 + 1] - tokenBounds[index * 2] > MAX_KEY_LENGTH) {
+            throw new DecodingException("key too long");
+        }
+        return token(line, index);
+    }
+
+    /**
+     * Parses plain digits in place; anything else (sign, possible overflow) is left to Integer, which also rejects
+     * malformed numbers with NumberFormatException
+     */
+    private int intToken(ByteBuf line, int index, boolean unsigned) {
+        final int start = tokenBounds[index * 2];
+        final int end = tokenBounds[index * 2 + 1];
+        if (end - start <= 9) { // can't overflow
+            int value = 0;
+            int i = start;
+            for (; i < end; i++) {
+                final byte digit = line.getByte(i);
+                if (digit < '0' || digit > '9') {
+                    break;
+                }
+                value = value * 10 + digit - '0';
+            }
+            if (i == end) {
+                return value;
+            }
+        }
+        final String token = token(line, index);
+        return unsigned ? Integer.parseUnsignedInt(token) : Integer.parseInt(token);
+    }
+
+    private List<String> tokens(ByteBuf line) {
+        final List<String> tokens = new ArrayList<>(tokenCount);
+        for (int i = 0; i < tokenCount; i++) {
+            tokens.add(token(line, i));
+        }
+        return tokens;
     }
 
 //    <exptime> is expiration time. If it's 0, the item never expires
@@ -94,16 +423,10 @@ public class MemcacheDecoder extends ReplayingDecoder<Void> {
 //      or a number of seconds starting from current time. In the latter case, this number of seconds may not exceed 60*60*24*30
 //      (number of seconds in 30 days); if the number sent by a client is larger than that, the server will consider
 //      it to be real Unix time value rather than an offset from current time.
-    private int targetTimeSec(int expTime) {
+    static int targetTimeSec(int expTime) {
         return expTime < 1 ? expTime :
                 expTime > SECONDS_IN_30_DAYS ? expTime :
                         (int)(System.currentTimeMillis() / 1000) + expTime;
     }
 
-    private @Nonnull String readString(ByteBuf in, int length){
-        byte[] dest = new byte[length];
-        in.readBytes(dest);
-        return new String(dest, Charset.defaultCharset());
-    }
-
 }
@@ -1,6 +1,7 @@
 package svs.memcached.server;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 import org.apache.logging.log4j.LogManager;
@@ -8,12 +9,16 @@ import org.apache.logging.log4j.Logger;
 import svs.memcached.cache.StoredValue;
 
 import java.nio.charset.Charset;
+import java.util.Map;
 
 
 /**
  *
  * Encoder of memcache response messages
  *
+ * Hot path responses are written straight to the output buffer without intermediate strings or arrays.
+ * Values of the results are released by MessageToByteEncoder after encoding (see MemcacheOutboundCommand).
+ *
  * Created by ssmirnov on 2/4/17.
  *
  */
@@ -25,16 +30,10 @@ public class MemcacheEncoder extends MessageToByteEncoder<MemcacheOutboundComman
     private static final byte[] R_N_BYTES = R_N_STRING.getBytes(Charset.defaultCharset());
     private static final byte[] END_BYTES = "END\r\n".getBytes(Charset.defaultCharset());
     private static final byte[] STORED_BYTES = "STORED\r\n".getBytes(Charset.defaultCharset());
+    private static final byte[] VALUE_BYTES = "VALUE ".getBytes(Charset.defaultCharset());
+    private static final int MAX_INT_DIGITS = 11; // including sign
 
 
-    //    means some sort of client error in the input line, i.e. the input
-    //    doesn't conform to the protocol in some way. <error> is a
-    //    human-readable error string.
-    private static final String CLIENT_ERROR = "CLIENT_ERROR ";
-
-    //    means the client sent a nonexistent command name.
-    private static final String UNSUPPORTED_COMMAND_ERROR = "ERROR\r\n";
-
     //    means some sort of server error prevents the server from carrying
     //    out the command. <error> is a human-readable error string. In cases
     //    of severe server errors, which make it impossible to continue
@@ -51,9 +50,17 @@ public class MemcacheEncoder extends MessageToByteEncoder<MemcacheOutboundComman
             case GET: {
                 StoredValue value = msg.getValue();
                 if (value != null){
-                    out.writeBytes(String.format("VALUE %s %d %d\r\n",
-                            msg.getKey(), value.getFlags(), value.getData().length).getBytes());
-                    out.writeBytes(value.getData());
+                    // VALUE <key> <flags> <bytes>\r\n<data>\r\n
+                    out.ensureWritable(VALUE_BYTES.length + msg.getKey().length() * 3 + MAX_INT_DIGITS * 2 + 4
+                            + value.getSize() + R_N_BYTES.length + END_BYTES.length);
+                    out.writeBytes(VALUE_BYTES);
+                    out.writeCharSequence(msg.getKey(), MemcacheDecoder.KEY_CHARSET);
+                    out.writeByte(' ');
+                    writeUnsignedDecimal(out, value.getFlags());
+                    out.writeByte(' ');
+                    writeDecimal(out, value.getSize());
+                    out.writeBytes(R_N_BYTES);
+                    value.writeTo(out);
                     out.writeBytes(R_N_BYTES);
                 }
                 out.writeBytes(END_BYTES);
@@ -63,24 +70,81 @@ public class MemcacheEncoder extends MessageToByteEncoder<MemcacheOutboundComman
                 out.writeBytes(STORED_BYTES);
                 break;
             }
+            case STATS: {
+                for (Map.Entry<String, String> stat : msg.getStats().entrySet()) {
+                    out.writeBytes(("STAT " + stat.getKey() + " " + stat.getValue() + R_N_STRING)
+                            .getBytes(MemcacheDecoder.KEY_CHARSET)); // slowlog has keys
+                }
+                out.writeBytes(END_BYTES);
+                break;
+            }
+            case ERROR: {
+                out.writeBytes(msg.getErrorLine().getBytes());
+                out.writeBytes(R_N_BYTES);
+                break;
+            }
+            case META_GET:
+            case META_SET:
+            case META_DELETE:
+            case META_NOOP: {
+                if (msg.getMetaLine() == null) {
+                    break; // quiet mode
+                }
+                out.writeCharSequence(msg.getMetaLine(), MemcacheDecoder.KEY_CHARSET);
+                out.writeBytes(R_N_BYTES);
+                if (msg.getValue() != null) {
+                    msg.getValue().writeTo(out);
+                    out.writeBytes(R_N_BYTES);
+                }
+                break;
+            }
             default: {
                 throw new IllegalArgumentException("Unsupported Command type: " + msg.getType());
             }
         }
     }
 
+    /**
+     * Writes the number as 32 bit unsigned (memcached flags)
+     */
+    static void writeUnsignedDecimal(ByteBuf out, int number) {
+        if (number < 0) {
+            out.writeCharSequence(Integer.toUnsignedString(number), Charset.defaultCharset());
+        } else {
+            writeDecimal(out, number);
+        }
+    }
+
+    /**
+     * Writes ASCII decimal representation of the number without creating a String
+     */
+    static void writeDecimal(ByteBuf out, int number) {
+        if (number < 0) {
+            if (number == Integer.MIN_VALUE) {
+                out.writeCharSequence(Integer.toString(number), Charset.defaultCharset());
+                return;
+            }
+            out.writeByte('-');
+            number = -number;
+        }
+        int divisor = 1;
+        while (divisor <= number / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.writeByte('0' + number / divisor % 10);
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // protocol errors are reported by the decoder in order with other responses,
+        // so anything that gets here is a server side failure
         logger.error("Error processing command", cause);
         if (ctx.channel().isOpen()) {
-            if (cause instanceof DecodingException) {
-                ctx.channel().writeAndFlush(CLIENT_ERROR + cause.getCause().getMessage() + R_N_STRING);
-            } else if (cause instanceof UnsupportedCommandException) {
-                ctx.channel().writeAndFlush(UNSUPPORTED_COMMAND_ERROR);
-            } else {
-                ctx.channel().writeAndFlush(SERVER_ERROR + cause.getMessage() + R_N_STRING);
-                ctx.close();
-            }
+            byte[] error = (SERVER_ERROR + cause.getMessage() + R_N_STRING).getBytes();
+            ctx.writeAndFlush(ctx.alloc().buffer(error.length).writeBytes(error))
+                    .addListener(ChannelFutureListener.CLOSE);
         }
     }
 }
@@ -17,22 +17,81 @@ public class MemcacheInboundCommand {
     private final String key;
     private final StoredValue value;
     private final CommandType type;
+    private final String argument;
+    private final MetaFlags meta;
+    private RequestTrace trace; // set by the decoder for sampled commands
 
-
-    private MemcacheInboundCommand(@Nonnull String key, @Nullable StoredValue value, @Nonnull CommandType type){
+    private MemcacheInboundCommand(@Nullable String key, @Nullable StoredValue value, @Nonnull CommandType type,
+                                   @Nullable String argument, @Nullable MetaFlags meta){
         this.key = key;
         this.value = value;
         this.type = type;
+        this.argument = argument;
+        this.meta = meta;
+    }
+
+    private MemcacheInboundCommand(@Nullable String key, @Nullable StoredValue value, @Nonnull CommandType type,
+                                   @Nullable String argument){
+        this(key, value, type, argument, null);
     }
 
     public static MemcacheInboundCommand newSetCommand(String key, byte[] data, int flags, int targetTimeSec) {
-        return new MemcacheInboundCommand(key, new StoredValue(data, flags, targetTimeSec), CommandType.SET);
+        return newSetCommand(key, new StoredValue(data, flags, targetTimeSec));
+    }
+
+    /**
+     * @param value value to store; the command owns it until it is stored by the processor
+     */
+    public static MemcacheInboundCommand newSetCommand(String key, StoredValue value) {
+        return new MemcacheInboundCommand(key, value, CommandType.SET, null);
     }
 
     public static MemcacheInboundCommand newGetCommand(String key) {
-        return new MemcacheInboundCommand(key, null, CommandType.GET);
+        return new MemcacheInboundCommand(key, null, CommandType.GET, null);
+    }
+
+    /**
+     * @param group stats group (e.g. "namespaces") or null for general stats
+     */
+    public static MemcacheInboundCommand newStatsCommand(@Nullable String group) {
+        return new MemcacheInboundCommand(null, null, CommandType.STATS, group);
+    }
+
+    /**
+     * @param errorLine error response line to send back (e.g. "CLIENT_ERROR bad data chunk")
+     */
+    public static MemcacheInboundCommand newErrorCommand(String errorLine) {
+        return new MemcacheInboundCommand(null, null, CommandType.ERROR, errorLine);
+    }
+
+    public static MemcacheInboundCommand newMetaGetCommand(String key, MetaFlags meta) {
+        return new MemcacheInboundCommand(key, null, CommandType.META_GET, null, meta);
+    }
+
+    public static MemcacheInboundCommand newMetaSetCommand(String key, byte[] data, int targetTimeSec, MetaFlags meta) {
+        return newMetaSetCommand(key, new StoredValue(data, meta.getClientFlags(), targetTimeSec), meta);
+    }
+
+    public static MemcacheInboundCommand newMetaSetCommand(String key, StoredValue value, MetaFlags meta) {
+        return new MemcacheInboundCommand(key, value, CommandType.META_SET, null, meta);
     }
 
+    public static MemcacheInboundCommand newMetaDeleteCommand(String key, MetaFlags meta) {
+        return new MemcacheInboundCommand(key, null, CommandType.META_DELETE, null, meta);
+    }
+
+    public static MemcacheInboundCommand newMetaNoopCommand() {
+        return new MemcacheInboundCommand(null, null, CommandType.META_NOOP, null);
+    }
+
+    public static MemcacheInboundCommand newMetadumpCommand() {
+        return new MemcacheInboundCommand(null, null, CommandType.METADUMP, null);
+    }
+
+    /**
+     * @return key of the command or null if command is not bound to a key (stats, error)
+     */
+    @Nullable
     public String getKey() {
         return key;
     }
@@ -45,6 +104,34 @@ public class MemcacheInboundCommand {
         return type;
     }
 
+    /**
+     * @return command specific argument (stats group, error line)
+     */
+    @Nullable
+    public String getArgument() {
+        return argument;
+    }
+
+
+    /**
+     * @return flags of meta command, null for other commands
+     */
+    @Nullable
+    public MetaFlags getMeta() {
+        return meta;
+    }
+
+    /**
+     * @return stage timestamps of the command, null if it isn't sampled for tracing
+     */
+    @Nullable
+    RequestTrace getTrace() {
+        return trace;
+    }
+
+    void setTrace(@Nullable RequestTrace trace) {
+        this.trace = trace;
+    }
 
     @Override
     public String toString() {
@@ -52,6 +139,8 @@ public class MemcacheInboundCommand {
                 "type=" + type +
                 ", key='" + key + '\'' +
                 ", value=" + value +
+                ", argument='" + argument + '\'' +
+                ", meta=" + meta +
                 '}';
     }
 }
@@ -1,35 +1,72 @@
 package svs.memcached.server;
 
+import io.netty.util.ReferenceCounted;
 import svs.memcached.cache.StoredValue;
 
 import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Memcache Outbound Command
  * Represents the result of processed MemcacheInboundCommand
  *
+ * Reference counted through its value, so the value is released by netty once the result is encoded or dropped.
+ * Results without value are immutable and shared where possible.
+ *
  * Created by ssmirnov on 2/4/17.
  */
-public class MemcacheOutboundCommand {
+public class MemcacheOutboundCommand implements ReferenceCounted {
+
+    //    means some sort of client error in the input line, i.e. the input
+    //    doesn't conform to the protocol in some way. <error> is a
+    //    human-readable error string.
+    public static final String CLIENT_ERROR = "CLIENT_ERROR ";
+
+    //    means the client sent a nonexistent command name.
+    public static final String UNSUPPORTED_COMMAND_ERROR = "ERROR";
+
+    private static final MemcacheOutboundCommand SET_RESULT =
+            new MemcacheOutboundCommand(CommandType.SET, null, null, null, null);
+    private static final MemcacheOutboundCommand GET_MISS_RESULT =
+            new MemcacheOutboundCommand(CommandType.GET, null, null, null, null);
 
     private final CommandType type;
     private final String key;
     private final StoredValue value;
+    private final Map<String, String> stats;
+    private final String line; // error line or meta response line
+    private final CompletableFuture<MemcacheOutboundCommand> pending;
+    private final ResponseStream stream;
 
-    private MemcacheOutboundCommand(@Nullable CommandType type, @Nullable String key, @Nullable StoredValue value) {
+    private MemcacheOutboundCommand(@Nullable CommandType type, @Nullable String key, @Nullable StoredValue value,
+                                    @Nullable Map<String, String> stats, @Nullable String line,
+                                    @Nullable CompletableFuture<MemcacheOutboundCommand> pending,
+                                    @Nullable ResponseStream stream) {
         this.type = type;
         this.key = key;
         this.value = value;
+        this.stats = stats;
+        this.line = line;
+        this.pending = pending;
+        this.stream = stream;
+    }
+
+    private MemcacheOutboundCommand(@Nullable CommandType type, @Nullable String key, @Nullable StoredValue value,
+                                    @Nullable Map<String, String> stats, @Nullable String line) {
+        this(type, key, value, stats, line, null, null);
     }
 
     /**
      * Creates new Outbound Response Command for successful Get operation
      * @param command inbound Get command
-     * @param value value obtained from the cache
+     * @param value value obtained from the cache and retained for the result, null on miss
      * @return constructed MemcacheOutboundCommand
      */
-    public static MemcacheOutboundCommand newGetCommandResult(MemcacheInboundCommand command, StoredValue value) {
-        return new MemcacheOutboundCommand(CommandType.GET, command.getKey(), value);
+    public static MemcacheOutboundCommand newGetCommandResult(MemcacheInboundCommand command,
+                                                              @Nullable StoredValue value) {
+        return value == null ? GET_MISS_RESULT
+                : new MemcacheOutboundCommand(CommandType.GET, command.getKey(), value, null, null);
     }
 
     /**
@@ -37,7 +74,57 @@ public class MemcacheOutboundCommand {
      * @return constructed MemcacheOutboundCommand
      */
     public static MemcacheOutboundCommand newSetCommandResult() {
-        return new MemcacheOutboundCommand(CommandType.SET, null, null);
+        return SET_RESULT;
+    }
+
+    /**
+     * Creates new Outbound Response Command for Stats operation
+     * @param stats ordered stat names and values
+     * @return constructed MemcacheOutboundCommand
+     */
+    public static MemcacheOutboundCommand newStatsCommandResult(Map<String, String> stats) {
+        return new MemcacheOutboundCommand(CommandType.STATS, null, null, stats, null);
+    }
+
+    /**
+     * Creates new Outbound Response Command for malformed or unsupported command
+     * @param errorLine error line without trailing \r\n
+     * @return constructed MemcacheOutboundCommand
+     */
+    public static MemcacheOutboundCommand newErrorResult(String errorLine) {
+        return new MemcacheOutboundCommand(CommandType.ERROR, null, null, null, errorLine);
+    }
+
+    /**
+     * Creates new Outbound Response Command for meta command
+     * @param type meta command type
+     * @param line response line without trailing \r\n (e.g. "VA 2 t-1 W"); null means no response (quiet mode)
+     * @param value value retained for the result to send as data block after the line, null if line has no data block
+     * @return constructed MemcacheOutboundCommand
+     */
+    public static MemcacheOutboundCommand newMetaResult(CommandType type, @Nullable String line,
+                                                       @Nullable StoredValue value) {
+        return new MemcacheOutboundCommand(type, null, value, null, line);
+    }
+
+    /**
+     * Creates placeholder of the result which is not known yet (e.g. value is being read from disk)
+     * It is never written to the channel: handlers wait for the future and write its result instead
+     * @param result future result
+     * @return constructed MemcacheOutboundCommand
+     */
+    public static MemcacheOutboundCommand newPendingResult(CompletableFuture<MemcacheOutboundCommand> result) {
+        return new MemcacheOutboundCommand(null, null, null, null, null, result, null);
+    }
+
+    /**
+     * Creates result which is written in chunks by the stream (e.g. metadump)
+     * It is never passed to the encoder: PendingResponses starts the stream when it is its turn to be written
+     * @param stream response stream
+     * @return constructed MemcacheOutboundCommand
+     */
+    static MemcacheOutboundCommand newStreamResult(ResponseStream stream) {
+        return new MemcacheOutboundCommand(null, null, null, null, null, null, stream);
     }
 
     public CommandType getType() {
@@ -52,12 +139,91 @@ public class MemcacheOutboundCommand {
         return value;
     }
 
+    public Map<String, String> getStats() {
+        return stats;
+    }
+
+    public String getErrorLine() {
+        return line;
+    }
+
+    /**
+     * @return meta response line or null if nothing should be written
+     */
+    @Nullable
+    public String getMetaLine() {
+        return line;
+    }
+
+    /**
+     * @return future result if this is a placeholder of asynchronous result, null otherwise
+     */
+    @Nullable
+    public CompletableFuture<MemcacheOutboundCommand> getPending() {
+        return pending;
+    }
+
+    /**
+     * @return stream writing this response in chunks, null for ordinary results
+     */
+    @Nullable
+    ResponseStream getStream() {
+        return stream;
+    }
+
+    /**
+     * @return true if the result can be written right away (it is neither pending nor streamed)
+     */
+    public boolean isImmediate() {
+        return pending == null && stream == null;
+    }
+
+    @Override
+    public int refCnt() {
+        return value != null ? value.refCnt() : 1;
+    }
+
+    @Override
+    public MemcacheOutboundCommand retain() {
+        return retain(1);
+    }
+
+    @Override
+    public MemcacheOutboundCommand retain(int increment) {
+        if (value != null) {
+            value.retain(increment);
+        }
+        return this;
+    }
+
+    @Override
+    public MemcacheOutboundCommand touch() {
+        return this;
+    }
+
+    @Override
+    public MemcacheOutboundCommand touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return release(1);
+    }
+
+    @Override
+    public boolean release(int decrement) {
+        return value != null && value.release(decrement);
+    }
+
     @Override
     public String toString() {
         return "MemcacheOutboundCommand{" +
                 "type=" + type +
                 ", key='" + key + '\'' +
                 ", value=" + value +
+                ", stats=" + stats +
+                ", line='" + line + '\'' +
                 '}';
     }
 }
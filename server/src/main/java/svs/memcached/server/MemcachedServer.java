@@ -1,20 +1,57 @@
 package svs.memcached.server;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import svs.memcached.cache.CacheLoader;
+import svs.memcached.cache.CacheSnapshot;
+import svs.memcached.cache.CacheWriter;
 import svs.memcached.cache.ICache;
 import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.LogStructuredStore;
+import svs.memcached.cache.NamespacedCache;
+import svs.memcached.cache.ReadThroughCache;
+import svs.memcached.cache.ShardedCache;
 import svs.memcached.cache.StoredValue;
+import svs.memcached.cache.TieredCache;
+
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 /**
  *
@@ -31,77 +68,422 @@ public class MemcachedServer {
 
     private static final Logger logger = LogManager.getLogger(MemcachedServer.class);
 
-    private static final int DEFAULT_PORT = 11211;
-
-    // cache params
-    private static final int CACHE_MAX_SIZE = 1000000;
-    private static final int CACHE_MAX_IDLE_TIME_MS = 600000; // 10 min max idle
-    private static final int CACHE_CONCURRENCY_LEVEL = 32; // set higher concurrency level (default is 4)
-    private static final boolean CACHE_EXPIRE_ON_MEMORY_PRESSURE = true;
+    // max flushes of a read batch merged into one
+    private static final int FLUSH_CONSOLIDATION_LIMIT = 256;
+    private static final int PORT_CHECK_TIMEOUT_MS = 500;
+    private static final long POLL_INTERVAL_MS = 10;
 
-    private static final int WORKER_THREADS_COUNT = Runtime.getRuntime().availableProcessors() * 2;
-    private static final int SO_BACKLOG_VALUE = 128;
+    private final ServerConfig config;
+    private final RuntimeSettings settings;
+    // open client connections, closed ones are removed automatically
+    private final ChannelGroup connections = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile Channel serverChannel;
+    private volatile boolean started;
+    // set by stop(), aborts startup still waiting for the running server to release the port or hand the cache over
+    private volatile boolean stopped;
 
-    private final int port;
-
-    public MemcachedServer(int port) {
-        this.port = port;
+    public MemcachedServer(ServerConfig config) {
+        this.config = config;
+        this.settings = new RuntimeSettings(config);
     }
 
     public static void main(String[] args) {
-        final int port;
-        if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
-        } else {
-            port = DEFAULT_PORT;
+        final ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
         }
-        logger.info("Starting server on port {}", port);
-        MemcachedServer server = new MemcachedServer(port);
+        logger.info("Starting server with {}", config);
+        MemcachedServer server = new MemcachedServer(config);
+        // SIGTERM / SIGINT drain the connections instead of dropping them
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "shutdown"));
         try {
             server.bootstrapAndWait();
-        } catch (InterruptedException e) {
+        } catch (InterruptedException | IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void bootstrapAndWait() throws InterruptedException {
+    /**
+     * Stops accepting connections and waits until open connections are drained and the server is shut down
+     * Startup waiting for a cache handoff or the port is aborted
+     */
+    public void stop() {
+        stopped = true;
+        final Channel channel = serverChannel;
+        if (channel != null) {
+            logger.info("Stopping server...");
+            channel.close();
+        } else if (started) {
+            logger.info("Stopping server before it is ready...");
+        } else {
+            return; // not started
+        }
+        try {
+            terminated.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates cache backend selected by configuration
+     * @param ioThreads number of io event loops; sharded backend creates one shard per event loop
+     */
+    static ICache<StoredValue> createCache(ServerConfig config, int ioThreads) throws IOException {
+        switch (config.getCacheBackend()) {
+            case ServerConfig.BACKEND_LOCAL: {
+                final ICache<StoredValue> cache;
+                if (config.getTierDiskPath() != null) {
+                    // entries evicted from memory for size spill to disk
+                    final LogStructuredStore disk = new LogStructuredStore(Paths.get(config.getTierDiskPath()),
+                            config.getTierDiskMaxBytes(), config.getTierDiskSegmentBytes(),
+                            config.getTierDiskCompactionGarbageRatio());
+                    cache = new TieredCache(listener -> new LocalCache(config.getCacheMaxItems(),
+                            config.getCacheMaxMemoryBytes(), config.getCacheMaxIdleTimeMs(),
+                            config.getCacheConcurrencyLevel(), config.isCacheExpireOnMemoryPressure(), listener),
+                            disk, config.getTierDiskReadThreads(), config.getTierDiskMaxQueuedSpills());
+                } else {
+                    cache = new LocalCache(config.getCacheMaxItems(), config.getCacheMaxMemoryBytes(),
+                            config.getCacheMaxIdleTimeMs(), config.getCacheConcurrencyLevel(),
+                            config.isCacheExpireOnMemoryPressure());
+                }
+                if (config.getNamespaces().isEmpty()) {
+                    return withLoader(config, cache);
+                }
+                // every namespace gets its own eviction domain and budget, the cache above serves other keys
+                final Map<String, ICache<StoredValue>> namespaces = new LinkedHashMap<>();
+                for (String namespace : config.getNamespaces()) {
+                    namespaces.put(namespace, new LocalCache(config.getNamespaceMaxItems(namespace),
+                            config.getNamespaceMaxMemoryBytes(namespace), config.getCacheMaxIdleTimeMs(),
+                            config.getCacheConcurrencyLevel(), config.isCacheExpireOnMemoryPressure()));
+                }
+                return withLoader(config, new NamespacedCache<>(config.getNamespaceSeparator(), cache, namespaces));
+            }
+            case ServerConfig.BACKEND_SHARDED:
+                // every shard is accessed by its owner loop only, so single segment is enough
+                return new ShardedCache<>(ioThreads, i -> new LocalCache(
+                        Math.max(1, config.getCacheMaxItems() / ioThreads), config.getCacheMaxMemoryBytes() / ioThreads,
+                        config.getCacheMaxIdleTimeMs(), 1, config.isCacheExpireOnMemoryPressure()));
+            default:
+                throw new IllegalArgumentException("Unknown cache backend: " + config.getCacheBackend());
+        }
+    }
+
+    /**
+     * Wraps the cache into read-through (and write-behind) decorator if a loader is configured
+     */
+    private static ICache<StoredValue> withLoader(ServerConfig config, ICache<StoredValue> cache) {
+        if (config.getLoaderClass() == null) {
+            return cache;
+        }
+        final Object loader;
+        try {
+            loader = Class.forName(config.getLoaderClass()).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Can't instantiate cache loader " + config.getLoaderClass(), e);
+        }
+        if (!(loader instanceof CacheLoader)) {
+            throw new IllegalArgumentException(config.getLoaderClass() + " doesn't implement CacheLoader");
+        }
+        if (config.isWriteBehind() && !(loader instanceof CacheWriter)) {
+            throw new IllegalArgumentException(config.getLoaderClass() + " doesn't implement CacheWriter");
+        }
+        return new ReadThroughCache(cache, (CacheLoader) loader, config.isWriteBehind() ? (CacheWriter) loader : null,
+                config.getLoaderTimeoutMs(), config.getWriteBehindBatchSize(), config.getWriteBehindFlushIntervalMs());
+    }
+
+    /**
+     * Creates server TLS context: OpenSSL engine if netty-tcnative is available (unless jdk provider is forced),
+     * JDK engine otherwise. Sessions are cached so reconnecting clients resume them without full handshake.
+     * @return null if tls is disabled
+     */
+    @Nullable
+    static SslContext createSslContext(ServerConfig config) throws SSLException {
+        if (config.getTlsCertFile() == null) {
+            return null;
+        }
+        final SslProvider provider;
+        switch (config.getTlsProvider()) {
+            case ServerConfig.TLS_PROVIDER_OPENSSL:
+                if (!OpenSsl.isAvailable()) {
+                    throw new IllegalArgumentException("OpenSSL tls provider is not available: "
+                            + OpenSsl.unavailabilityCause());
+                }
+                provider = SslProvider.OPENSSL;
+                break;
+            case ServerConfig.TLS_PROVIDER_JDK:
+                provider = SslProvider.JDK;
+                break;
+            default:
+                provider = OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        }
+        logger.info("Enabling TLS with {} provider", provider);
+        return SslContextBuilder.forServer(new File(config.getTlsCertFile()), new File(config.getTlsKeyFile()))
+                .sslProvider(provider)
+                .sessionCacheSize(config.getTlsSessionCacheSize())
+                .sessionTimeout(config.getTlsSessionTimeoutSec())
+                .build();
+    }
+
+    /**
+     * Adds TLS handlers to the head of connection pipeline
+     */
+    static void addTlsHandlers(ChannelPipeline pipeline, SslContext sslContext) {
+        pipeline.addLast("ssl", sslContext.newHandler(pipeline.channel().alloc()));
+        // pipelined responses are flushed together and encrypted into as few records as possible
+        pipeline.addLast(new WriteCoalescingHandler());
+        pipeline.addLast(new FlushConsolidationHandler(FLUSH_CONSOLIDATION_LIMIT, true));
+    }
+
+    /**
+     * Stops reading from open connections and waits until they write responses to the commands received so far and
+     * close, or the drain timeout expires
+     */
+    private void drainConnections() {
+        if (connections.isEmpty()) {
+            return;
+        }
+        logger.info("Draining {} connections", connections.size());
+        for (Channel channel : connections) {
+            channel.eventLoop().execute(() -> {
+                channel.config().setAutoRead(false);
+                channel.pipeline().fireUserEventTriggered(DrainEvent.INSTANCE);
+            });
+        }
+        final long deadline = System.currentTimeMillis() + config.getShutdownDrainTimeoutMs();
+        try {
+            while (!connections.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!connections.isEmpty()) {
+            logger.warn("{} connections weren't drained in {} ms, closing them", connections.size(),
+                    config.getShutdownDrainTimeoutMs());
+            connections.close().awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * @return true if another process accepts connections on the server port (the server being restarted)
+     */
+    private boolean isPortInUse() {
+        final String host = config.getListenAddress() != null ? config.getListenAddress() : "127.0.0.1";
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, config.getPort()), PORT_CHECK_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Binds the server port; without SO_REUSEPORT retries until the running server releases it
+     * @return server channel or null if the server is stopped meanwhile
+     */
+    @Nullable
+    private Channel bind(ServerBootstrap bootstrap, boolean predecessor) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + config.getHandoffTimeoutMs();
+        while (!stopped) {
+            final ChannelFuture f = config.getListenAddress() != null
+                    ? bootstrap.bind(config.getListenAddress(), config.getPort()).await()
+                    : bootstrap.bind(config.getPort()).await();
+            if (f.isSuccess()) {
+                return f.channel();
+            }
+            if (!predecessor || config.isTcpReusePort() || System.currentTimeMillis() > deadline) {
+                f.syncUninterruptibly(); // rethrows bind failure
+            }
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        return null;
+    }
+
+    /**
+     * Loads the cache written by the previous server process; if it is still running waits until it is stopped
+     * and hands the cache over, so the entries it changes till the end are not lost
+     * @return false if the server is stopped while waiting for the handoff
+     */
+    private boolean importHandoff(ICache<StoredValue> cache, Path file, boolean predecessor)
+            throws InterruptedException {
+        try {
+            if (predecessor) {
+                Files.deleteIfExists(file); // left by an earlier restart, the running server writes a fresh one
+                logger.info("Waiting up to {} ms for the running server to hand the cache over through {}",
+                        config.getHandoffTimeoutMs(), file);
+                final long deadline = System.currentTimeMillis() + config.getHandoffTimeoutMs();
+                while (!Files.exists(file) && System.currentTimeMillis() < deadline) {
+                    if (stopped) {
+                        return false;
+                    }
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+            }
+            if (!Files.exists(file)) {
+                logger.info("No cache handoff found in {}, starting with empty cache", file);
+                return true;
+            }
+            // imported entries are not new writes, so they bypass write-behind
+            final ICache<StoredValue> target = cache instanceof ReadThroughCache
+                    ? ((ReadThroughCache) cache).getDelegate() : cache;
+            logger.info("Imported {} cache entries from {}", CacheSnapshot.read(file, target), file);
+            Files.delete(file);
+        } catch (IOException e) {
+            logger.error("Failed to import cache handoff " + file, e);
+        }
+        return true;
+    }
+
+    private void exportHandoff(ICache<StoredValue> cache, Path file) {
+        try {
+            logger.info("Handed {} cache entries over through {}", CacheSnapshot.write(cache, file), file);
+        } catch (IOException e) {
+            logger.error("Failed to write cache handoff " + file, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    void bootstrapAndWait() throws InterruptedException, IOException {
         logger.info("Bootstrapping Memcached Server");
-        NioEventLoopGroup bossGroup = new NioEventLoopGroup();
-        NioEventLoopGroup workerGroup = new NioEventLoopGroup();
+        final boolean epoll = config.isTcpReusePort();
+        if (epoll && !Epoll.isAvailable()) {
+            throw new IllegalArgumentException("Property " + ServerConfig.TCP_REUSE_PORT
+                    + " requires native epoll transport: " + Epoll.unavailabilityCause());
+        }
+        EventLoopGroup bossGroup = epoll ? new EpollEventLoopGroup() : new NioEventLoopGroup();
+        EventLoopGroup workerGroup = epoll ? new EpollEventLoopGroup(config.getIoThreads())
+                : new NioEventLoopGroup(config.getIoThreads());
+        final ICache<StoredValue> cache = createCache(config, executorCount(workerGroup));
+        final boolean sharded = cache instanceof ShardedCache;
         // business logic thread pool
         // It is probably overkill to use separate thread pool for cache access here but
-        // generally it is good practice to separate IO from business logic
-        final EventExecutorGroup mainGroup = new DefaultEventExecutorGroup(WORKER_THREADS_COUNT);
+        // generally it is good practice to separate IO from business logic.
+        // In shared-nothing (sharded) mode commands are executed on the io loops owning the shards instead
+        final EventExecutorGroup mainGroup = sharded ? null : new DefaultEventExecutorGroup(config.getWorkerThreads());
+        final ConnectionLimitHandler connectionLimitHandler = new ConnectionLimitHandler(settings);
+        final SslContext sslContext = createSslContext(config);
+        final Credentials credentials = config.getAuthFile() != null ? Credentials.load(Paths.get(config.getAuthFile()))
+                : null;
+        if (credentials != null) {
+            logger.info("Enabling authentication for {} users", credentials.size());
+        }
+        // created even if tracing is disabled, so it can be turned on by config reload
+        final SlowLog slowLog = new SlowLog(settings, config.getSlowlogSize());
+        final Path handoffFile = config.getHandoffFile() != null ? Paths.get(config.getHandoffFile()) : null;
+        ConfigWatcher configWatcher = null;
+        started = true; // terminated is counted down from now on
         try {
-            final ICache<StoredValue> cache = new LocalCache(CACHE_MAX_SIZE, CACHE_MAX_IDLE_TIME_MS,
-                    CACHE_CONCURRENCY_LEVEL, CACHE_EXPIRE_ON_MEMORY_PRESSURE);
+            final EventExecutor[] shardOwners;
+            final MemcacheCommandProcessor[] shardProcessors;
+            final MemcacheCommandProcessor globalProcessor = new MemcacheCommandProcessor(cache, slowLog);
+            if (sharded) {
+                shardOwners = new EventExecutor[executorCount(workerGroup)];
+                int i = 0;
+                for (EventExecutor executor : workerGroup) {
+                    shardOwners[i++] = executor;
+                }
+                shardProcessors = ShardedCommandHandler.newProcessors((ShardedCache<StoredValue>) cache);
+            } else {
+                shardOwners = null;
+                shardProcessors = null;
+            }
+            if (config.getConfigFile() != null && config.getConfigReloadIntervalMs() > 0) {
+                configWatcher = new ConfigWatcher(config, settings);
+                configWatcher.start();
+            }
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(bossGroup, workerGroup);
-            bootstrap.channel(NioServerSocketChannel.class);
+            bootstrap.channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class);
 
             bootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 protected void initChannel(SocketChannel ch) throws Exception {
+                    connections.add(ch);
                     ChannelPipeline pipeline = ch.pipeline();
-                    pipeline.addLast(new MemcacheDecoder());
+                    if (sslContext != null) {
+                        addTlsHandlers(pipeline, sslContext);
+                    }
+                    pipeline.addLast(connectionLimitHandler);
+                    pipeline.addLast(new MemcacheDecoder(config.isCachePooledValues(), slowLog));
                     pipeline.addLast(new MemcacheEncoder());
+                    if (credentials != null) {
+                        pipeline.addLast("auth", new AuthHandler(credentials));
+                    }
                     // Cache Operations Command Handler
-                    pipeline.addLast(mainGroup, "commandHandler", new MemcacheCommandHandler(cache));
+                    if (sharded) {
+                        pipeline.addLast("commandHandler", new ShardedCommandHandler(
+                                (ShardedCache<StoredValue>) cache, shardOwners, shardProcessors, globalProcessor));
+                    } else {
+                        pipeline.addLast(mainGroup, "commandHandler", new MemcacheCommandHandler(cache, slowLog));
+                    }
                 }
             });
 
-            bootstrap.option(ChannelOption.SO_BACKLOG, SO_BACKLOG_VALUE);
-            bootstrap.childOption(ChannelOption.SO_KEEPALIVE, true);
+            bootstrap.option(ChannelOption.SO_BACKLOG, config.getBacklog());
+            if (epoll) {
+                // the next server process can bind the port while this one is draining
+                bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+            bootstrap.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+            bootstrap.childOption(ChannelOption.SO_KEEPALIVE, config.isTcpKeepAlive());
+            bootstrap.childOption(ChannelOption.TCP_NODELAY, config.isTcpNoDelay());
 
-            ChannelFuture f = bootstrap.bind(port).sync();
-            logger.info("Server is ready <port={}>...", port);
-            f.channel().closeFuture().sync();
+            final boolean predecessor = handoffFile != null && isPortInUse();
+            if (handoffFile != null) {
+                // connections wait in the backlog until the cache is imported
+                bootstrap.option(ChannelOption.AUTO_READ, false);
+            }
+            final Channel channel = bind(bootstrap, predecessor);
+            if (channel == null) {
+                logger.info("Stopped while waiting for the port");
+                return;
+            }
+            if (handoffFile != null) {
+                if (!importHandoff(cache, handoffFile, predecessor)) {
+                    // serverChannel stays null, so the empty cache isn't handed over in place of the awaited one
+                    logger.info("Stopped while waiting for the cache handoff");
+                    channel.close();
+                    return;
+                }
+                channel.config().setAutoRead(true);
+            }
+            serverChannel = channel;
+            if (stopped) {
+                channel.close(); // stop() may have missed the channel
+            }
+            logger.info("Server is ready <address={}>...", channel.localAddress());
+            channel.closeFuture().sync();
         } finally {
             logger.info("Shutting down server...");
-            mainGroup.shutdownGracefully();
+            drainConnections();
+            if (configWatcher != null) {
+                configWatcher.close();
+            }
+            if (handoffFile != null && serverChannel != null) {
+                exportHandoff(cache, handoffFile);
+            }
+            if (mainGroup != null) {
+                mainGroup.shutdownGracefully();
+            }
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
+            cache.close();
+            terminated.countDown();
+        }
+    }
+
+    private static int executorCount(EventLoopGroup group) {
+        int count = 0;
+        for (EventExecutor ignored : group) {
+            count++;
         }
+        return count;
     }
 
 }
@@ -0,0 +1,144 @@
+package svs.memcached.server;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Flags of meta protocol command (mg/ms/md), e.g. "mg foo v t N30 O123"
+ *
+ * Every flag is a single character optionally followed by a token. Return flags (v, f, t, s, k, O, c) are echoed
+ * in response in the order they were requested.
+ */
+public class MetaFlags {
+
+    static final int NONE = Integer.MIN_VALUE;
+
+    static final String GET_FLAGS = "vtfskOqNRTc";
+    static final String SET_FLAGS = "TFqOkM";
+    static final String DELETE_FLAGS = "qOkIT";
+
+    static final char MODE_SET = 'S';
+    static final char MODE_ADD = 'E';
+    static final char MODE_REPLACE = 'R';
+
+    // flags echoed in the response, in request order
+    private final StringBuilder returnFlags = new StringBuilder(4);
+    private boolean value;
+    private boolean quiet;
+    private boolean invalidate;
+    private String opaque;
+    private int ttl = NONE;
+    private int vivifyTtl = NONE;
+    private int recacheTtl = NONE;
+    private int clientFlags;
+    private char mode = MODE_SET;
+
+    /**
+     * @param tokens command line tokens
+     * @param from index of the first flag token
+     * @param allowed flags supported by the command
+     */
+    static MetaFlags parse(List<String> tokens, int from, String allowed) throws DecodingException {
+        final MetaFlags flags = new MetaFlags();
+        for (int i = from; i < tokens.size(); i++) {
+            final String token = tokens.get(i);
+            final char flag = token.charAt(0);
+            if (allowed.indexOf(flag) < 0) {
+                throw new DecodingException("invalid flag");
+            }
+            final String argument = token.substring(1);
+            try {
+                switch (flag) {
+                    case 'v': flags.value = true; break;
+                    case 'q': flags.quiet = true; break;
+                    case 'I': flags.invalidate = true; break;
+                    case 'O': flags.opaque = argument; flags.returnFlags.append(flag); break;
+                    case 'T': flags.ttl = Integer.parseInt(argument); break;
+                    case 'N': flags.vivifyTtl = Integer.parseInt(argument); break;
+                    case 'R': flags.recacheTtl = Integer.parseInt(argument); break;
+                    case 'F': flags.clientFlags = Integer.parseUnsignedInt(argument); break;
+                    case 'M': {
+                        if (argument.length() != 1 || "SER".indexOf(Character.toUpperCase(argument.charAt(0))) < 0) {
+                            throw new DecodingException("invalid mode for ms");
+                        }
+                        flags.mode = Character.toUpperCase(argument.charAt(0));
+                        break;
+                    }
+                    default: flags.returnFlags.append(flag); // t, f, s, k, c
+                }
+            } catch (NumberFormatException e) {
+                throw new DecodingException("bad token in command line format");
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * @return return flags in request order
+     */
+    CharSequence getReturnFlags() {
+        return returnFlags;
+    }
+
+    boolean isValue() {
+        return value;
+    }
+
+    boolean isQuiet() {
+        return quiet;
+    }
+
+    boolean isInvalidate() {
+        return invalidate;
+    }
+
+    @Nullable
+    String getOpaque() {
+        return opaque;
+    }
+
+    /**
+     * @return T flag value (new TTL) or NONE
+     */
+    int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return N flag value (TTL of the item created on miss) or NONE
+     */
+    int getVivifyTtl() {
+        return vivifyTtl;
+    }
+
+    /**
+     * @return R flag value (remaining TTL which wins recache token) or NONE
+     */
+    int getRecacheTtl() {
+        return recacheTtl;
+    }
+
+    int getClientFlags() {
+        return clientFlags;
+    }
+
+    char getMode() {
+        return mode;
+    }
+
+    @Override
+    public String toString() {
+        return "MetaFlags{" +
+                "returnFlags=" + returnFlags +
+                ", value=" + value +
+                ", quiet=" + quiet +
+                ", invalidate=" + invalidate +
+                ", opaque='" + opaque + '\'' +
+                ", ttl=" + ttl +
+                ", vivifyTtl=" + vivifyTtl +
+                ", recacheTtl=" + recacheTtl +
+                ", clientFlags=" + clientFlags +
+                ", mode=" + mode +
+                '}';
+    }
+}
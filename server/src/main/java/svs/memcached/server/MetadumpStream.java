@@ -0,0 +1,114 @@
+package svs.memcached.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import svs.memcached.cache.StoredValue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streams "lru_crawler metadump" response: one line of metadata per resident entry, then END
+ *
+ *     key=<url encoded key> exp=<unix time or -1> la=<unix time> cas=0 fetch=<yes|no> cls=1 size=<bytes>
+ *
+ * Entries are read from the cache's weakly consistent iterator by a background crawler thread in small batches,
+ * so neither the key set is copied nor request processing is stalled. The next batch is only produced after the
+ * previous one is written to the socket, so a slow reader doesn't make the server buffer the whole dump.
+ */
+class MetadumpStream implements ResponseStream {
+
+    private static final Logger logger = LogManager.getLogger(MetadumpStream.class);
+
+    private static final int BATCH_SIZE = 256;
+    private static final byte[] END_BYTES = "END\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    // shared by all connections; dumps are rare and must not compete with request processing
+    private static final ExecutorService CRAWLER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lru-crawler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Iterator<Map.Entry<String, StoredValue>> entries;
+    private final StringBuilder line = new StringBuilder(128);
+
+    MetadumpStream(Iterator<Map.Entry<String, StoredValue>> entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public void start(ChannelHandlerContext ctx, Runnable done) {
+        CRAWLER.execute(() -> writeBatch(ctx, done));
+    }
+
+    private void writeBatch(ChannelHandlerContext ctx, Runnable done) {
+        final ByteBuf batch = ctx.alloc().buffer(BATCH_SIZE * 96);
+        final boolean last;
+        try {
+            final long now = System.currentTimeMillis() / 1000;
+            int count = 0;
+            while (count < BATCH_SIZE && entries.hasNext()) {
+                final Map.Entry<String, StoredValue> entry = entries.next();
+                final StoredValue value = entry.getValue();
+                final int targetTimeSec = value.getTargetTimeSec();
+                if (targetTimeSec != 0 && targetTimeSec < now) {
+                    continue; // expired, not removed yet
+                }
+                line.setLength(0);
+                line.append("key=");
+                urlEncode(entry.getKey(), line);
+                line.append(" exp=").append(targetTimeSec == 0 ? -1 : targetTimeSec)
+                        .append(" la=").append(value.getLastAccessSec())
+                        .append(" cas=0 fetch=").append(value.isFetched() ? "yes" : "no")
+                        .append(" cls=1 size=").append(entry.getKey().length() + value.getSize())
+                        .append('\n');
+                batch.writeCharSequence(line, StandardCharsets.US_ASCII);
+                count++;
+            }
+            last = !entries.hasNext();
+            if (last) {
+                batch.writeBytes(END_BYTES);
+            }
+        } catch (RuntimeException e) {
+            batch.release();
+            logger.error("Metadump failed", e);
+            ctx.executor().execute(() -> {
+                done.run();
+                ctx.pipeline().fireExceptionCaught(e);
+            });
+            return;
+        }
+        ctx.writeAndFlush(batch).addListener(future -> {
+            if (!future.isSuccess()) {
+                logger.debug("Metadump aborted: {}", future.cause().getMessage());
+                ctx.executor().execute(done);
+            } else if (last) {
+                ctx.executor().execute(done);
+            } else {
+                CRAWLER.execute(() -> writeBatch(ctx, done));
+            }
+        });
+    }
+
+    /**
+     * Percent-encodes everything but unreserved characters, same as memcached does for metadump keys
+     */
+    static void urlEncode(String key, StringBuilder out) {
+        for (byte b : key.getBytes(MemcacheDecoder.KEY_CHARSET)) {
+            final char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                out.append(c);
+            } else {
+                out.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+        }
+    }
+}
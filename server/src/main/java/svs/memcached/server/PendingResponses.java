@@ -0,0 +1,181 @@
+package svs.memcached.server;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ReferenceCountUtil;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Keeps responses of pipelined commands in request order when commands complete out of order
+ * (e.g. on different threads). Memcached text protocol has no request ids so responses must be written in the
+ * order commands were received.
+ *
+ * Multi-chunk responses (ResponseStream) hold back the responses behind them until they are fully written.
+ * A failed command is reported to the pipeline in its turn (the encoder answers SERVER_ERROR and closes the
+ * connection), responses behind it are dropped so the client can't take them for answers to earlier commands.
+ *
+ * Not thread safe: must only be used from the executor of the owning handler.
+ */
+class PendingResponses {
+
+    /**
+     * Placeholder of the response in the connection order
+     */
+    static final class Slot {
+        private Object response;
+        private Throwable failure;
+        private boolean completed;
+        private boolean streaming;
+        private final RequestTrace trace;
+
+        private Slot(@Nullable RequestTrace trace) {
+            this.trace = trace;
+        }
+    }
+
+    private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+    private Runnable onEmpty;
+    private boolean failed;
+
+    /**
+     * @return true if there are no responses waiting for completion, so new response can be written directly
+     */
+    boolean isEmpty() {
+        return slots.isEmpty() && !failed;
+    }
+
+    /**
+     * Runs the action once all reserved responses are written, right away if there are none
+     */
+    void whenEmpty(Runnable action) {
+        if (slots.isEmpty()) {
+            action.run();
+        } else {
+            onEmpty = action;
+        }
+    }
+
+    /**
+     * Reserves position for the response of the command just received
+     * @param trace trace of the command, which is completed when the response is written
+     */
+    Slot reserve(@Nullable RequestTrace trace) {
+        Slot slot = new Slot(trace);
+        slots.add(slot);
+        return slot;
+    }
+
+    /**
+     * Completes the slot and writes all completed responses at the head of the queue
+     * @param response message to write, ResponseStream to start or null if there is nothing to write
+     *                 (e.g. command failed)
+     */
+    void complete(ChannelHandlerContext ctx, Slot slot, @Nullable Object response) {
+        slot.response = response;
+        slot.completed = true;
+        writeCompleted(ctx);
+    }
+
+    /**
+     * Completes the slot of a failed command
+     * @param cause reported to the pipeline once all responses before the slot are written
+     */
+    void fail(ChannelHandlerContext ctx, Slot slot, Throwable cause) {
+        slot.failure = cause;
+        complete(ctx, slot, null);
+    }
+
+    private void writeCompleted(ChannelHandlerContext ctx) {
+        boolean written = false;
+        Slot head;
+        while ((head = slots.peek()) != null && head.completed) {
+            if (failed) {
+                // the connection is being closed
+                slots.poll();
+                ReferenceCountUtil.release(head.response);
+                continue;
+            }
+            if (head.failure != null) {
+                slots.poll();
+                failed = true;
+                if (written) {
+                    ctx.flush();
+                    written = false;
+                }
+                ctx.pipeline().fireExceptionCaught(head.failure);
+                continue;
+            }
+            if (head.response instanceof ResponseStream) {
+                // later responses wait until the stream is done, the slot is released by its callback
+                if (!head.streaming) {
+                    head.streaming = true;
+                    if (written) {
+                        ctx.flush();
+                    }
+                    ((ResponseStream) head.response).start(ctx, () -> {
+                        slots.poll();
+                        writeCompleted(ctx);
+                    });
+                }
+                return;
+            }
+            slots.poll();
+            if (head.response != null) {
+                final ChannelFuture future = ctx.write(head.response);
+                if (head.trace != null) {
+                    future.addListener(head.trace);
+                }
+                written = true;
+            }
+        }
+        if (written) {
+            ctx.flush();
+        }
+        if (slots.isEmpty() && onEmpty != null) {
+            final Runnable action = onEmpty;
+            onEmpty = null;
+            action.run();
+        }
+    }
+
+    /**
+     * Completes the slot on the handler executor once the response future is done
+     * Failed future fails the slot
+     */
+    void completeWhenDone(ChannelHandlerContext ctx, Slot slot, CompletableFuture<?> response) {
+        completeWhenDone(ctx, slot, response, null);
+    }
+
+    /**
+     * @param then called on the handler executor after the slot is completed
+     */
+    void completeWhenDone(ChannelHandlerContext ctx, Slot slot, CompletableFuture<?> response,
+                          @Nullable Runnable then) {
+        response.whenComplete((result, error) -> ctx.executor().execute(() -> {
+            if (error != null) {
+                fail(ctx, slot, error);
+            } else {
+                complete(ctx, slot, result);
+            }
+            if (then != null) {
+                then.run();
+            }
+        }));
+    }
+
+    /**
+     * Completes the slot now or when the result is ready if it is pending
+     */
+    void completeResult(ChannelHandlerContext ctx, Slot slot, MemcacheOutboundCommand result) {
+        if (result.getPending() != null) {
+            completeWhenDone(ctx, slot, result.getPending());
+        } else if (result.getStream() != null) {
+            complete(ctx, slot, result.getStream());
+        } else {
+            complete(ctx, slot, result);
+        }
+    }
+}
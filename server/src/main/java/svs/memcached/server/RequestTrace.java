@@ -0,0 +1,132 @@
+package svs.memcached.server;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+
+import javax.annotation.Nullable;
+import java.net.SocketAddress;
+
+/**
+ * Timestamps of one sampled command at every pipeline stage
+ *
+ * Started by the decoder for sampled commands only and carried by the inbound command, so commands which are not
+ * sampled cost a null check per stage. Stages are stamped on different threads, each stamp happens-before the next
+ * one through the executor hand-offs between them. The trace is reported to the slowlog when the response is written.
+ * The decoder reuses the trace of its connection once the response is written, so sampling doesn't allocate.
+ */
+public class RequestTrace implements ChannelFutureListener {
+
+    private final SlowLog log;
+    private boolean inFlight; // started and not written yet; event loop only
+    private String client; // formatted once, the trace belongs to one connection
+    private long received; // command line is received
+    private long decoded; // command (with data block) is decoded
+    private long dispatched; // command handler starts processing it
+    private long processed; // response is ready
+    private long written; // response is written to the socket
+    private CommandType type;
+    private String key;
+    private int size = -1;
+
+    RequestTrace(SlowLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Resets the trace for the command which is being received
+     * @return false if the trace is still in flight with an earlier command
+     */
+    boolean start() {
+        if (inFlight) {
+            return false;
+        }
+        inFlight = true;
+        received = System.nanoTime();
+        decoded = dispatched = processed = written = 0;
+        type = null;
+        key = null;
+        size = -1;
+        return true;
+    }
+
+    void decoded(MemcacheInboundCommand command) {
+        decoded = System.nanoTime();
+        type = command.getType();
+        key = command.getKey();
+        if (command.getValue() != null) {
+            size = command.getValue().getSize();
+        }
+    }
+
+    void dispatched() {
+        dispatched = System.nanoTime();
+    }
+
+    void processed(@Nullable MemcacheOutboundCommand result) {
+        processed = System.nanoTime();
+        if (size < 0 && result != null && result.getValue() != null) {
+            size = result.getValue().getSize();
+        }
+    }
+
+    @Override
+    public void operationComplete(ChannelFuture future) throws Exception {
+        if (future.isSuccess()) {
+            written = System.nanoTime();
+            log.record(this, future.channel().remoteAddress());
+        }
+        inFlight = false;
+    }
+
+    long getTotalNanos() {
+        return written - received;
+    }
+
+    long getDecodeNanos() {
+        return decoded - received;
+    }
+
+    /**
+     * @return time spent waiting for the command handler (executor queue, shard owner loop, same key in flight)
+     */
+    long getQueueNanos() {
+        return dispatched - decoded;
+    }
+
+    /**
+     * @return time spent executing the command, including asynchronous disk reads and loads
+     */
+    long getProcessNanos() {
+        return processed - dispatched;
+    }
+
+    /**
+     * @return time from response being ready to being written: waiting for earlier responses, encoding and flushing
+     */
+    long getWriteNanos() {
+        return written - processed;
+    }
+
+    CommandType getType() {
+        return type;
+    }
+
+    @Nullable
+    String getKey() {
+        return key;
+    }
+
+    String getClient(@Nullable SocketAddress address) {
+        if (client == null) {
+            client = String.valueOf(address);
+        }
+        return client;
+    }
+
+    /**
+     * @return data size of the command or response, -1 if there is no data
+     */
+    int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,18 @@
+package svs.memcached.server;
+
+import io.netty.channel.ChannelHandlerContext;
+
+/**
+ * Response which is too large to be built at once and is written to the channel in chunks (e.g. metadump)
+ * PendingResponses holds back later responses until the stream is finished.
+ */
+interface ResponseStream {
+
+    /**
+     * Starts writing the response; called on the handler executor when all previous responses are written
+     * @param ctx handler context to write chunks (ByteBuf) to
+     * @param done must be called exactly once on the handler executor after the last chunk is written
+     *             or the stream is aborted
+     */
+    void start(ChannelHandlerContext ctx, Runnable done);
+}
@@ -0,0 +1,66 @@
+package svs.memcached.server;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Server knobs which are safe to change without restart
+ * Values are read on hot path so they are kept in volatile fields rather than looked up in ServerConfig
+ */
+public class RuntimeSettings {
+
+    private static final Logger logger = LogManager.getLogger(RuntimeSettings.class);
+
+    private volatile int maxConnections;
+    private volatile String logLevel;
+    private volatile int traceSampleRate;
+    private volatile long slowlogThresholdUs;
+
+    public RuntimeSettings(@Nonnull ServerConfig config) {
+        apply(config);
+    }
+
+    /**
+     * Applies reloadable values of the given configuration
+     * @param config fresh configuration
+     */
+    public void apply(@Nonnull ServerConfig config) {
+        if (maxConnections != config.getMaxConnections()) {
+            logger.info("Setting maxConnections={}", config.getMaxConnections());
+            maxConnections = config.getMaxConnections();
+        }
+        if (!config.getLogLevel().equalsIgnoreCase(logLevel)) {
+            logger.info("Setting log level to {}", config.getLogLevel());
+            Configurator.setRootLevel(Level.toLevel(config.getLogLevel(), Level.INFO));
+            logLevel = config.getLogLevel();
+        }
+        if (traceSampleRate != config.getTraceSampleRate()) {
+            logger.info("Setting traceSampleRate={}", config.getTraceSampleRate());
+            traceSampleRate = config.getTraceSampleRate();
+        }
+        if (slowlogThresholdUs != config.getSlowlogThresholdUs()) {
+            logger.info("Setting slowlogThresholdUs={}", config.getSlowlogThresholdUs());
+            slowlogThresholdUs = config.getSlowlogThresholdUs();
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public int getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public long getSlowlogThresholdUs() {
+        return slowlogThresholdUs;
+    }
+}
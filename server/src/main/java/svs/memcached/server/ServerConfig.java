@@ -0,0 +1,673 @@
+package svs.memcached.server;
+
+import org.apache.logging.log4j.Level;
+import svs.memcached.cache.NamespacedCache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Typed server configuration
+ *
+ * Values are resolved in the following order (later wins):
+ *  1. built-in defaults
+ *  2. properties file passed with -f (flat "key: value" YAML files are accepted as well)
+ *  3. memcached compatible command line flags
+ */
+public class ServerConfig {
+
+    // property keys
+    static final String PORT = "port";
+    static final String LISTEN_ADDRESS = "listen";
+    static final String IO_THREADS = "io.threads";
+    static final String WORKER_THREADS = "worker.threads";
+    static final String BACKLOG = "backlog";
+    static final String MAX_CONNECTIONS = "max.connections";
+    static final String TCP_NODELAY = "tcp.nodelay";
+    static final String TCP_KEEPALIVE = "tcp.keepalive";
+    static final String TCP_REUSE_PORT = "tcp.reuseport";
+    static final String CACHE_BACKEND = "cache.backend";
+    static final String CACHE_MAX_ITEMS = "cache.max.items";
+    static final String CACHE_MAX_MEMORY_MB = "cache.max.memory.mb";
+    static final String CACHE_MAX_IDLE_TIME_MS = "cache.max.idle.ms";
+    static final String CACHE_CONCURRENCY_LEVEL = "cache.concurrency.level";
+    static final String CACHE_EXPIRE_ON_MEMORY_PRESSURE = "cache.soft.values";
+    static final String CACHE_POOLED_VALUES = "cache.pooled.values";
+    static final String NAMESPACES = "namespaces";
+    static final String NAMESPACE_SEPARATOR = "namespace.separator";
+    static final String NAMESPACE_PREFIX = "namespace.";
+    static final String NAMESPACE_MAX_ITEMS = ".max.items";
+    static final String NAMESPACE_MAX_MEMORY_MB = ".memory.mb";
+    static final String TIER_DISK_PATH = "tier.disk.path";
+    static final String TIER_DISK_MAX_MB = "tier.disk.max.mb";
+    static final String TIER_DISK_SEGMENT_MB = "tier.disk.segment.mb";
+    static final String TIER_DISK_READ_THREADS = "tier.disk.read.threads";
+    static final String TIER_DISK_COMPACTION_GARBAGE_PERCENT = "tier.disk.compaction.garbage.percent";
+    static final String TIER_DISK_MAX_QUEUED_SPILLS = "tier.disk.max.queued.spills";
+    static final String LOADER_CLASS = "loader.class";
+    static final String LOADER_TIMEOUT_MS = "loader.timeout.ms";
+    static final String WRITE_BEHIND = "write.behind";
+    static final String WRITE_BEHIND_BATCH_SIZE = "write.behind.batch.size";
+    static final String WRITE_BEHIND_FLUSH_INTERVAL_MS = "write.behind.flush.interval.ms";
+    static final String TLS_CERT_FILE = "tls.cert.file";
+    static final String TLS_KEY_FILE = "tls.key.file";
+    static final String TLS_PROVIDER = "tls.provider";
+    static final String TLS_SESSION_CACHE_SIZE = "tls.session.cache.size";
+    static final String TLS_SESSION_TIMEOUT_SEC = "tls.session.timeout.sec";
+    static final String AUTH_FILE = "auth.file";
+    static final String SHUTDOWN_DRAIN_TIMEOUT_MS = "shutdown.drain.timeout.ms";
+    static final String HANDOFF_FILE = "handoff.file";
+    static final String HANDOFF_TIMEOUT_MS = "handoff.timeout.ms";
+    static final String TRACE_SAMPLE_RATE = "trace.sample.rate";
+    static final String SLOWLOG_THRESHOLD_US = "slowlog.threshold.us";
+    static final String SLOWLOG_SIZE = "slowlog.size";
+    static final String LOG_LEVEL = "log.level";
+    static final String CONFIG_RELOAD_INTERVAL_MS = "config.reload.interval.ms";
+
+    // properties which are applied by RuntimeSettings without restart
+    private static final Set<String> RELOADABLE = new HashSet<>(Arrays.asList(MAX_CONNECTIONS, LOG_LEVEL,
+            TRACE_SAMPLE_RATE, SLOWLOG_THRESHOLD_US));
+
+    public static final String BACKEND_LOCAL = "local";
+    public static final String BACKEND_SHARDED = "sharded"; // shared-nothing: one shard per io thread
+
+    public static final String TLS_PROVIDER_AUTO = "auto"; // openssl if netty-tcnative is available, else jdk
+    public static final String TLS_PROVIDER_OPENSSL = "openssl";
+    public static final String TLS_PROVIDER_JDK = "jdk";
+
+    // sampled commands are 1 + random(2 * rate - 1) apart, which must fit in int
+    static final int MAX_TRACE_SAMPLE_RATE = 1 << 30;
+
+    private static final Properties DEFAULTS = new Properties();
+
+    static {
+        DEFAULTS.setProperty(PORT, "11211");
+        DEFAULTS.setProperty(LISTEN_ADDRESS, "");
+        DEFAULTS.setProperty(IO_THREADS, "0"); // 0 means netty default (2 * cores)
+        DEFAULTS.setProperty(WORKER_THREADS, Integer.toString(Runtime.getRuntime().availableProcessors() * 2));
+        DEFAULTS.setProperty(BACKLOG, "128");
+        DEFAULTS.setProperty(MAX_CONNECTIONS, "1024");
+        DEFAULTS.setProperty(TCP_NODELAY, "true");
+        DEFAULTS.setProperty(TCP_KEEPALIVE, "true");
+        DEFAULTS.setProperty(TCP_REUSE_PORT, "false");
+        DEFAULTS.setProperty(CACHE_BACKEND, BACKEND_LOCAL);
+        DEFAULTS.setProperty(CACHE_MAX_ITEMS, "1000000");
+        DEFAULTS.setProperty(CACHE_MAX_MEMORY_MB, "0"); // 0 means bounded by cache.max.items only
+        DEFAULTS.setProperty(CACHE_MAX_IDLE_TIME_MS, "600000"); // 10 min max idle
+        DEFAULTS.setProperty(CACHE_CONCURRENCY_LEVEL, "32"); // set higher concurrency level (guava default is 4)
+        DEFAULTS.setProperty(CACHE_EXPIRE_ON_MEMORY_PRESSURE, "false"); // soft values can't be pooled
+        DEFAULTS.setProperty(CACHE_POOLED_VALUES, "true");
+        DEFAULTS.setProperty(NAMESPACES, ""); // comma separated namespace names
+        DEFAULTS.setProperty(NAMESPACE_SEPARATOR, ":");
+        DEFAULTS.setProperty(TIER_DISK_PATH, ""); // empty means disk tier is disabled
+        DEFAULTS.setProperty(TIER_DISK_MAX_MB, "1024");
+        DEFAULTS.setProperty(TIER_DISK_SEGMENT_MB, "64");
+        DEFAULTS.setProperty(TIER_DISK_READ_THREADS, "4");
+        DEFAULTS.setProperty(TIER_DISK_COMPACTION_GARBAGE_PERCENT, "50");
+        DEFAULTS.setProperty(TIER_DISK_MAX_QUEUED_SPILLS, "10000");
+        DEFAULTS.setProperty(LOADER_CLASS, ""); // empty means read-through is disabled
+        DEFAULTS.setProperty(LOADER_TIMEOUT_MS, "1000");
+        DEFAULTS.setProperty(WRITE_BEHIND, "false");
+        DEFAULTS.setProperty(WRITE_BEHIND_BATCH_SIZE, "100");
+        DEFAULTS.setProperty(WRITE_BEHIND_FLUSH_INTERVAL_MS, "1000");
+        DEFAULTS.setProperty(TLS_CERT_FILE, ""); // empty means tls is disabled
+        DEFAULTS.setProperty(TLS_KEY_FILE, "");
+        DEFAULTS.setProperty(TLS_PROVIDER, TLS_PROVIDER_AUTO);
+        DEFAULTS.setProperty(TLS_SESSION_CACHE_SIZE, "20480");
+        DEFAULTS.setProperty(TLS_SESSION_TIMEOUT_SEC, "3600");
+        DEFAULTS.setProperty(AUTH_FILE, ""); // empty means authentication is disabled
+        DEFAULTS.setProperty(SHUTDOWN_DRAIN_TIMEOUT_MS, "10000");
+        DEFAULTS.setProperty(HANDOFF_FILE, ""); // empty means cache is not handed over on restart
+        DEFAULTS.setProperty(HANDOFF_TIMEOUT_MS, "30000");
+        DEFAULTS.setProperty(TRACE_SAMPLE_RATE, "100"); // 1 of 100 commands is traced, 0 disables tracing
+        DEFAULTS.setProperty(SLOWLOG_THRESHOLD_US, "10000");
+        DEFAULTS.setProperty(SLOWLOG_SIZE, "128");
+        DEFAULTS.setProperty(LOG_LEVEL, "info");
+        DEFAULTS.setProperty(CONFIG_RELOAD_INTERVAL_MS, "5000");
+    }
+
+    private static final String USAGE = "Usage: MemcachedServer [port] [options]\n" +
+            "  -p <num>    TCP port to listen on (default: 11211)\n" +
+            "  -l <addr>   interface to listen on (default: all)\n" +
+            "  -m <num>    max memory to use for items in megabytes (default: 0 - bounded by item count)\n" +
+            "  -c <num>    max simultaneous connections (default: 1024)\n" +
+            "  -t <num>    number of worker threads to use (default: 2 * cores)\n" +
+            "  -b <num>    listen backlog (default: 128)\n" +
+            "  -v, -vv     verbose / very verbose logging\n" +
+            "  -Y <file>   authentication file with username:password lines\n" +
+            "  -f <file>   configuration properties file\n" +
+            "  -o key=val  set any configuration property (e.g. -o io.threads=4)";
+
+    private final Properties properties;
+    private final String configFile;
+    private final Properties overrides;
+
+    private ServerConfig(@Nonnull Properties properties, @Nullable String configFile, @Nonnull Properties overrides) {
+        this.properties = properties;
+        this.configFile = configFile;
+        this.overrides = overrides;
+    }
+
+    /**
+     * Parses command line arguments and loads config file if it is specified
+     * @param args command line arguments
+     * @return resolved configuration
+     * @throws IllegalArgumentException if arguments are malformed
+     * @throws IOException if config file can't be read
+     */
+    public static ServerConfig parse(@Nonnull String[] args) throws IOException {
+        final Properties overrides = new Properties();
+        String configFile = null;
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            switch (arg) {
+                case "-p": overrides.setProperty(PORT, value(args, ++i, arg)); break;
+                case "-l": overrides.setProperty(LISTEN_ADDRESS, value(args, ++i, arg)); break;
+                case "-m": overrides.setProperty(CACHE_MAX_MEMORY_MB, value(args, ++i, arg)); break;
+                case "-c": overrides.setProperty(MAX_CONNECTIONS, value(args, ++i, arg)); break;
+                case "-t": overrides.setProperty(WORKER_THREADS, value(args, ++i, arg)); break;
+                case "-b": overrides.setProperty(BACKLOG, value(args, ++i, arg)); break;
+                case "-v": overrides.setProperty(LOG_LEVEL, "debug"); break;
+                case "-vv": overrides.setProperty(LOG_LEVEL, "trace"); break;
+                case "-Y": overrides.setProperty(AUTH_FILE, value(args, ++i, arg)); break;
+                case "-f": configFile = value(args, ++i, arg); break;
+                case "-o": {
+                    final String option = value(args, ++i, arg);
+                    int idx = option.indexOf('=');
+                    if (idx < 1) {
+                        throw new IllegalArgumentException("Option must be in key=value format: " + option + "\n" + USAGE);
+                    }
+                    overrides.setProperty(option.substring(0, idx).trim(), option.substring(idx + 1).trim());
+                    break;
+                }
+                default: {
+                    if (i == 0 && !arg.startsWith("-")) {
+                        overrides.setProperty(PORT, arg); // backward compatible positional port
+                    } else {
+                        throw new IllegalArgumentException("Unknown argument: " + arg + "\n" + USAGE);
+                    }
+                }
+            }
+        }
+        return load(configFile, overrides);
+    }
+
+    /**
+     * Builds configuration from config file (optional) and overrides
+     */
+    static ServerConfig load(@Nullable String configFile, @Nonnull Properties overrides) throws IOException {
+        final Properties properties = new Properties(DEFAULTS);
+        if (configFile != null) {
+            try (InputStream in = new FileInputStream(configFile)) {
+                properties.load(in);
+            }
+        }
+        properties.putAll(overrides);
+        ServerConfig config = new ServerConfig(properties, configFile, overrides);
+        config.validate();
+        return config;
+    }
+
+    /**
+     * Re-reads config file keeping original command line overrides
+     * @return fresh configuration
+     */
+    public ServerConfig reload() throws IOException {
+        return load(configFile, overrides);
+    }
+
+    /**
+     * @return names of the properties which differ from other config and can't be applied without restart
+     */
+    public Set<String> restartRequiredChanges(@Nonnull ServerConfig other) {
+        Set<String> keys = new TreeSet<>(properties.stringPropertyNames());
+        keys.addAll(other.properties.stringPropertyNames());
+        keys.removeAll(RELOADABLE);
+        keys.removeIf(key -> Objects.equals(properties.getProperty(key), other.properties.getProperty(key)));
+        return keys;
+    }
+
+    private void validate() {
+        // touch every typed value so malformed config fails fast on startup / reload
+        positive(PORT, getPort());
+        positive(WORKER_THREADS, getWorkerThreads());
+        positive(BACKLOG, getBacklog());
+        positive(MAX_CONNECTIONS, getMaxConnections());
+        positive(CACHE_MAX_ITEMS, getCacheMaxItems());
+        positive(CACHE_CONCURRENCY_LEVEL, getCacheConcurrencyLevel());
+        if (getIoThreads() < 0 || getCacheMaxMemoryBytes() < 0 || getCacheMaxIdleTimeMs() < 0
+                || getConfigReloadIntervalMs() < 0) {
+            throw new IllegalArgumentException("Negative values are not allowed: " + properties);
+        }
+        switch (getCacheBackend()) {
+            case BACKEND_LOCAL:
+            case BACKEND_SHARDED:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown cache backend: " + getCacheBackend());
+        }
+        if (getNamespaceSeparator() == ' ') {
+            throw new IllegalArgumentException("Namespace separator can't be a space");
+        }
+        for (String namespace : getNamespaces()) {
+            if (NamespacedCache.DEFAULT_NAMESPACE.equals(namespace)) {
+                // stats of the keys without namespace are reported under this name
+                throw new IllegalArgumentException("Namespace name '" + namespace + "' is reserved");
+            }
+            positive(NAMESPACE_PREFIX + namespace + NAMESPACE_MAX_ITEMS, getNamespaceMaxItems(namespace));
+            if (getNamespaceMaxMemoryBytes(namespace) < 0) {
+                throw new IllegalArgumentException("Negative memory limit of namespace " + namespace);
+            }
+        }
+        if (!getNamespaces().isEmpty() && !BACKEND_LOCAL.equals(getCacheBackend())) {
+            throw new IllegalArgumentException("Namespaces are only supported by " + BACKEND_LOCAL + " backend");
+        }
+        if (getTierDiskPath() != null) {
+            if (!BACKEND_LOCAL.equals(getCacheBackend())) {
+                throw new IllegalArgumentException("Disk tier is only supported by " + BACKEND_LOCAL + " backend");
+            }
+            positive(TIER_DISK_SEGMENT_MB, getTierDiskSegmentBytes());
+            positive(TIER_DISK_READ_THREADS, getTierDiskReadThreads());
+            positive(TIER_DISK_MAX_QUEUED_SPILLS, getTierDiskMaxQueuedSpills());
+            if (getTierDiskMaxBytes() < getTierDiskSegmentBytes()) {
+                throw new IllegalArgumentException("Property " + TIER_DISK_MAX_MB + " must not be less than "
+                        + TIER_DISK_SEGMENT_MB);
+            }
+            int garbage = getInt(TIER_DISK_COMPACTION_GARBAGE_PERCENT);
+            if (garbage <= 0 || garbage > 100) {
+                throw new IllegalArgumentException("Property " + TIER_DISK_COMPACTION_GARBAGE_PERCENT
+                        + " must be in 1..100 range: " + garbage);
+            }
+        }
+        if (getLoaderClass() != null) {
+            if (!BACKEND_LOCAL.equals(getCacheBackend())) {
+                throw new IllegalArgumentException("Cache loader is only supported by " + BACKEND_LOCAL + " backend");
+            }
+            positive(LOADER_TIMEOUT_MS, getLoaderTimeoutMs());
+            positive(WRITE_BEHIND_BATCH_SIZE, getWriteBehindBatchSize());
+            positive(WRITE_BEHIND_FLUSH_INTERVAL_MS, getWriteBehindFlushIntervalMs());
+        } else if (isWriteBehind()) {
+            throw new IllegalArgumentException("Property " + WRITE_BEHIND + " requires " + LOADER_CLASS);
+        }
+        if (isCachePooledValues() && isCacheExpireOnMemoryPressure()) {
+            // soft referenced values collected by GC would never return their buffers to the pool
+            throw new IllegalArgumentException("Property " + CACHE_EXPIRE_ON_MEMORY_PRESSURE + "=true requires "
+                    + CACHE_POOLED_VALUES + "=false");
+        }
+        if ((getTlsCertFile() == null) != (getTlsKeyFile() == null)) {
+            throw new IllegalArgumentException("Properties " + TLS_CERT_FILE + " and " + TLS_KEY_FILE
+                    + " must be set together");
+        }
+        switch (getTlsProvider()) {
+            case TLS_PROVIDER_AUTO:
+            case TLS_PROVIDER_OPENSSL:
+            case TLS_PROVIDER_JDK:
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tls provider: " + getTlsProvider());
+        }
+        if (getTlsSessionCacheSize() < 0) {
+            throw new IllegalArgumentException("Negative " + TLS_SESSION_CACHE_SIZE + ": " + getTlsSessionCacheSize());
+        }
+        positive(TLS_SESSION_TIMEOUT_SEC, getTlsSessionTimeoutSec());
+        if (getShutdownDrainTimeoutMs() < 0 || getHandoffTimeoutMs() < 0) {
+            throw new IllegalArgumentException("Negative values are not allowed: " + properties);
+        }
+        if (getTraceSampleRate() < 0 || getSlowlogThresholdUs() < 0) {
+            throw new IllegalArgumentException("Negative values are not allowed: " + properties);
+        }
+        if (getTraceSampleRate() > MAX_TRACE_SAMPLE_RATE) {
+            throw new IllegalArgumentException("Property " + TRACE_SAMPLE_RATE + " must not be greater than "
+                    + MAX_TRACE_SAMPLE_RATE + ": " + getTraceSampleRate());
+        }
+        positive(SLOWLOG_SIZE, getSlowlogSize());
+        if (Level.toLevel(getLogLevel(), null) == null) {
+            // log4j would silently fall back to another level
+            throw new IllegalArgumentException("Unknown log level: " + getLogLevel());
+        }
+        isTcpNoDelay();
+        isTcpKeepAlive();
+        isTcpReusePort();
+    }
+
+    public int getPort() {
+        return getInt(PORT);
+    }
+
+    /**
+     * @return address to bind to or null to bind on all interfaces
+     */
+    @Nullable
+    public String getListenAddress() {
+        String value = getString(LISTEN_ADDRESS);
+        return value.isEmpty() ? null : value;
+    }
+
+    public int getIoThreads() {
+        return getInt(IO_THREADS);
+    }
+
+    public int getWorkerThreads() {
+        return getInt(WORKER_THREADS);
+    }
+
+    public int getBacklog() {
+        return getInt(BACKLOG);
+    }
+
+    public int getMaxConnections() {
+        return getInt(MAX_CONNECTIONS);
+    }
+
+    public boolean isTcpNoDelay() {
+        return getBoolean(TCP_NODELAY);
+    }
+
+    public boolean isTcpKeepAlive() {
+        return getBoolean(TCP_KEEPALIVE);
+    }
+
+    /**
+     * @return true if the port may be bound by several processes (hot restart); requires native epoll transport
+     */
+    public boolean isTcpReusePort() {
+        return getBoolean(TCP_REUSE_PORT);
+    }
+
+    public String getCacheBackend() {
+        return getString(CACHE_BACKEND).toLowerCase();
+    }
+
+    public int getCacheMaxItems() {
+        return getInt(CACHE_MAX_ITEMS);
+    }
+
+    public long getCacheMaxMemoryBytes() {
+        return getLong(CACHE_MAX_MEMORY_MB) * 1024 * 1024;
+    }
+
+    public long getCacheMaxIdleTimeMs() {
+        return getLong(CACHE_MAX_IDLE_TIME_MS);
+    }
+
+    public int getCacheConcurrencyLevel() {
+        return getInt(CACHE_CONCURRENCY_LEVEL);
+    }
+
+    public boolean isCacheExpireOnMemoryPressure() {
+        return getBoolean(CACHE_EXPIRE_ON_MEMORY_PRESSURE);
+    }
+
+    /**
+     * @return true if values are stored in pooled buffers which are reused instead of being garbage collected
+     */
+    public boolean isCachePooledValues() {
+        return getBoolean(CACHE_POOLED_VALUES);
+    }
+
+    /**
+     * @return names of the configured namespaces
+     */
+    public List<String> getNamespaces() {
+        List<String> result = new ArrayList<>();
+        for (String name : getString(NAMESPACES).split(",")) {
+            if (!name.trim().isEmpty()) {
+                result.add(name.trim());
+            }
+        }
+        return result;
+    }
+
+    public char getNamespaceSeparator() {
+        String value = getString(NAMESPACE_SEPARATOR);
+        if (value.length() != 1) {
+            throw new IllegalArgumentException("Property " + NAMESPACE_SEPARATOR + " must be a single character: "
+                    + value);
+        }
+        return value.charAt(0);
+    }
+
+    /**
+     * @return max number of items of the namespace; defaults to cache.max.items
+     */
+    public int getNamespaceMaxItems(@Nonnull String namespace) {
+        String key = NAMESPACE_PREFIX + namespace + NAMESPACE_MAX_ITEMS;
+        return properties.getProperty(key) != null ? getInt(key) : getCacheMaxItems();
+    }
+
+    /**
+     * @return memory budget of the namespace; 0 means it is bounded by number of items
+     */
+    public long getNamespaceMaxMemoryBytes(@Nonnull String namespace) {
+        String key = NAMESPACE_PREFIX + namespace + NAMESPACE_MAX_MEMORY_MB;
+        return properties.getProperty(key) != null ? getLong(key) * 1024 * 1024 : 0;
+    }
+
+    /**
+     * @return directory of the disk tier or null if disk tier is disabled
+     */
+    @Nullable
+    public String getTierDiskPath() {
+        String value = getString(TIER_DISK_PATH);
+        return value.isEmpty() ? null : value;
+    }
+
+    public long getTierDiskMaxBytes() {
+        return getLong(TIER_DISK_MAX_MB) * 1024 * 1024;
+    }
+
+    public long getTierDiskSegmentBytes() {
+        return getLong(TIER_DISK_SEGMENT_MB) * 1024 * 1024;
+    }
+
+    public int getTierDiskReadThreads() {
+        return getInt(TIER_DISK_READ_THREADS);
+    }
+
+    /**
+     * @return share of dead bytes which triggers segment compaction
+     */
+    public double getTierDiskCompactionGarbageRatio() {
+        return getInt(TIER_DISK_COMPACTION_GARBAGE_PERCENT) / 100.0;
+    }
+
+    public int getTierDiskMaxQueuedSpills() {
+        return getInt(TIER_DISK_MAX_QUEUED_SPILLS);
+    }
+
+    /**
+     * @return class name of CacheLoader used for read-through or null if read-through is disabled
+     */
+    @Nullable
+    public String getLoaderClass() {
+        String value = getString(LOADER_CLASS);
+        return value.isEmpty() ? null : value;
+    }
+
+    public long getLoaderTimeoutMs() {
+        return getLong(LOADER_TIMEOUT_MS);
+    }
+
+    /**
+     * @return true if changes are written to the loader, which must implement CacheWriter
+     */
+    public boolean isWriteBehind() {
+        return getBoolean(WRITE_BEHIND);
+    }
+
+    public int getWriteBehindBatchSize() {
+        return getInt(WRITE_BEHIND_BATCH_SIZE);
+    }
+
+    public long getWriteBehindFlushIntervalMs() {
+        return getLong(WRITE_BEHIND_FLUSH_INTERVAL_MS);
+    }
+
+    /**
+     * @return PEM certificate chain file or null if tls is disabled
+     */
+    @Nullable
+    public String getTlsCertFile() {
+        String value = getString(TLS_CERT_FILE);
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * @return PKCS#8 PEM private key file or null if tls is disabled
+     */
+    @Nullable
+    public String getTlsKeyFile() {
+        String value = getString(TLS_KEY_FILE);
+        return value.isEmpty() ? null : value;
+    }
+
+    public String getTlsProvider() {
+        return getString(TLS_PROVIDER).toLowerCase();
+    }
+
+    /**
+     * @return max number of sessions cached for resumption; 0 means unlimited
+     */
+    public long getTlsSessionCacheSize() {
+        return getLong(TLS_SESSION_CACHE_SIZE);
+    }
+
+    public long getTlsSessionTimeoutSec() {
+        return getLong(TLS_SESSION_TIMEOUT_SEC);
+    }
+
+    /**
+     * @return file with "username:password" lines or null if authentication is disabled
+     */
+    @Nullable
+    public String getAuthFile() {
+        String value = getString(AUTH_FILE);
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * @return max time to wait for open connections to finish in-flight commands on shutdown
+     */
+    public long getShutdownDrainTimeoutMs() {
+        return getLong(SHUTDOWN_DRAIN_TIMEOUT_MS);
+    }
+
+    /**
+     * @return file the cache is written to on shutdown and loaded from on startup, or null if it isn't handed over
+     */
+    @Nullable
+    public String getHandoffFile() {
+        String value = getString(HANDOFF_FILE);
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * @return max time to wait for the running server to hand its cache over
+     */
+    public long getHandoffTimeoutMs() {
+        return getLong(HANDOFF_TIMEOUT_MS);
+    }
+
+    /**
+     * @return one of how many commands is traced through the pipeline stages on average, 0 if tracing is disabled
+     */
+    public int getTraceSampleRate() {
+        return getInt(TRACE_SAMPLE_RATE);
+    }
+
+    /**
+     * @return min time from receiving a traced command to writing its response which puts it into the slowlog
+     */
+    public long getSlowlogThresholdUs() {
+        return getLong(SLOWLOG_THRESHOLD_US);
+    }
+
+    /**
+     * @return number of the latest slow commands kept in the slowlog
+     */
+    public int getSlowlogSize() {
+        return getInt(SLOWLOG_SIZE);
+    }
+
+    public String getLogLevel() {
+        return getString(LOG_LEVEL);
+    }
+
+    @Nullable
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    public long getConfigReloadIntervalMs() {
+        return getLong(CONFIG_RELOAD_INTERVAL_MS);
+    }
+
+    @Nonnull
+    String getString(@Nonnull String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing configuration property: " + key);
+        }
+        return value.trim();
+    }
+
+    int getInt(@Nonnull String key) {
+        try {
+            return Integer.parseInt(getString(key));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Property " + key + " must be an integer: " + getString(key));
+        }
+    }
+
+    long getLong(@Nonnull String key) {
+        try {
+            return Long.parseLong(getString(key));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Property " + key + " must be a number: " + getString(key));
+        }
+    }
+
+    boolean getBoolean(@Nonnull String key) {
+        String value = getString(key);
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Property " + key + " must be true or false: " + value);
+    }
+
+    private static void positive(String key, long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("Property " + key + " must be positive: " + value);
+        }
+    }
+
+    private static String value(String[] args, int idx, String flag) {
+        if (idx >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + flag + "\n" + USAGE);
+        }
+        return args[idx];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ServerConfig{");
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            sb.append(key).append('=').append(properties.getProperty(key)).append(", ");
+        }
+        sb.setLength(sb.length() - 2);
+        return sb.append('}').toString();
+    }
+}
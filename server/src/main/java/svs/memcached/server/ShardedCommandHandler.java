@@ -0,0 +1,116 @@
+package svs.memcached.server;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.EventExecutor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import svs.memcached.cache.ShardedCache;
+import svs.memcached.cache.StoredValue;
+
+/**
+ * Command handler for shared-nothing mode
+ *
+ * Every cache shard is owned by one IO event loop. The handler runs on the channel event loop (no separate business
+ * thread pool): commands for the shards owned by this loop are executed inline, other commands are handed to the
+ * owning loop through its task queue (lock-free MPSC queue in netty) and the result is passed back the same way.
+ * Responses are written in request order using PendingResponses and flushed once per read batch.
+ */
+public class ShardedCommandHandler extends SimpleChannelInboundHandler<MemcacheInboundCommand> {
+
+    private static final Logger logger = LogManager.getLogger(ShardedCommandHandler.class);
+
+    private final ShardedCache<StoredValue> cache;
+    private final EventExecutor[] owners;
+    private final MemcacheCommandProcessor[] processors;
+    private final MemcacheCommandProcessor globalProcessor;
+    private final PendingResponses pending = new PendingResponses();
+
+    /**
+     * @param cache sharded cache
+     * @param owners owner event loop of every shard; owners.length must be equal to the number of shards
+     * @param processors command processor of every shard
+     * @param globalProcessor processor of the commands without key (stats, errors)
+     */
+    public ShardedCommandHandler(ShardedCache<StoredValue> cache, EventExecutor[] owners,
+                                 MemcacheCommandProcessor[] processors, MemcacheCommandProcessor globalProcessor) {
+        this.cache = cache;
+        this.owners = owners;
+        this.processors = processors;
+        this.globalProcessor = globalProcessor;
+    }
+
+    /**
+     * Creates processor for every shard so they can be shared by all connections
+     */
+    public static MemcacheCommandProcessor[] newProcessors(ShardedCache<StoredValue> cache) {
+        MemcacheCommandProcessor[] processors = new MemcacheCommandProcessor[cache.getShardCount()];
+        for (int i = 0; i < processors.length; i++) {
+            processors[i] = new MemcacheCommandProcessor(cache.getShard(i));
+        }
+        return processors;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, MemcacheInboundCommand command) throws Exception {
+        logger.debug("Processing command: {}", command);
+        final EventExecutor owner;
+        final MemcacheCommandProcessor processor;
+        if (command.getKey() != null) {
+            final int shard = cache.shardIndex(command.getKey());
+            owner = owners[shard];
+            processor = processors[shard];
+        } else {
+            owner = ctx.executor(); // not bound to a shard, execute inline
+            processor = globalProcessor;
+        }
+        if (owner.inEventLoop()) {
+            final MemcacheOutboundCommand result;
+            try {
+                result = processor.process(command);
+            } catch (Throwable e) {
+                pending.fail(ctx, pending.reserve(command.getTrace()), e);
+                return;
+            }
+            if (result.isImmediate() && pending.isEmpty()) {
+                final ChannelFuture future = ctx.write(result); // flushed in channelReadComplete
+                if (command.getTrace() != null) {
+                    future.addListener(command.getTrace());
+                }
+            } else {
+                pending.completeResult(ctx, pending.reserve(command.getTrace()), result);
+            }
+            return;
+        }
+        final PendingResponses.Slot slot = pending.reserve(command.getTrace());
+        owner.execute(() -> {
+            final MemcacheOutboundCommand result;
+            try {
+                result = processor.process(command);
+            } catch (Throwable e) {
+                ctx.executor().execute(() -> pending.fail(ctx, slot, e));
+                return;
+            }
+            ctx.executor().execute(() -> pending.completeResult(ctx, slot, result));
+        });
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == DrainEvent.INSTANCE) {
+            pending.whenEmpty(() -> {
+                ctx.flush();
+                ctx.close();
+            });
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        ctx.flush();
+        super.channelReadComplete(ctx);
+    }
+}
@@ -0,0 +1,140 @@
+package svs.memcached.server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Samples commands for tracing and keeps the latest traced commands slower than the threshold
+ *
+ * Entries are preallocated and overwritten in a ring and traces are reused per connection, so tracing doesn't
+ * allocate in the steady state. Sampling rate and threshold are read from RuntimeSettings, so they can be changed
+ * without restart.
+ */
+public class SlowLog {
+
+    // how often the decoder checks whether disabled tracing was turned on, in commands
+    static final int DISABLED_RECHECK_INTERVAL = 1024;
+
+    private static final class Entry {
+        private long id;
+        private long timeSec;
+        private String client;
+        private CommandType type;
+        private String key;
+        private int size;
+        private long totalNanos;
+        private long decodeNanos;
+        private long queueNanos;
+        private long processNanos;
+        private long writeNanos;
+    }
+
+    private final RuntimeSettings settings;
+    private final Entry[] entries;
+    private final LongAdder traced = new LongAdder();
+    private long recorded; // guarded by this, id of the next entry
+
+    public SlowLog(@Nonnull RuntimeSettings settings, int size) {
+        this.settings = settings;
+        this.entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+        }
+    }
+
+    /**
+     * @return number of commands until the next sampled one; random around the sampling rate so periodic request
+     * patterns of a connection don't make some commands never sampled. The rate is capped by
+     * ServerConfig.MAX_TRACE_SAMPLE_RATE, so the distance doesn't overflow
+     */
+    int nextSampleDistance() {
+        final int rate = settings.getTraceSampleRate();
+        return rate == 0 ? DISABLED_RECHECK_INTERVAL : 1 + ThreadLocalRandom.current().nextInt(2 * rate - 1);
+    }
+
+    /**
+     * @param reusable trace of the connection, reused unless it is still in flight with an earlier command
+     * @return started trace of the command which is being received or null if tracing is disabled
+     */
+    @Nullable
+    RequestTrace newTrace(@Nullable RequestTrace reusable) {
+        if (settings.getTraceSampleRate() == 0) {
+            return null;
+        }
+        if (reusable != null && reusable.start()) {
+            return reusable;
+        }
+        final RequestTrace trace = new RequestTrace(this); // e.g. pipelined commands sampled close to each other
+        trace.start();
+        return trace;
+    }
+
+    /**
+     * Records the trace if the command was slower than the threshold
+     */
+    void record(RequestTrace trace, @Nullable SocketAddress client) {
+        traced.increment();
+        if (trace.getTotalNanos() < TimeUnit.MICROSECONDS.toNanos(settings.getSlowlogThresholdUs())) {
+            return;
+        }
+        final String address = trace.getClient(client);
+        synchronized (this) {
+            final Entry entry = entries[(int) (recorded % entries.length)];
+            entry.id = recorded++;
+            entry.timeSec = System.currentTimeMillis() / 1000;
+            entry.client = address;
+            entry.type = trace.getType();
+            entry.key = trace.getKey();
+            entry.size = trace.getSize();
+            entry.totalNanos = trace.getTotalNanos();
+            entry.decodeNanos = trace.getDecodeNanos();
+            entry.queueNanos = trace.getQueueNanos();
+            entry.processNanos = trace.getProcessNanos();
+            entry.writeNanos = trace.getWriteNanos();
+        }
+    }
+
+    /**
+     * @return number of traced commands since start
+     */
+    public long getTraced() {
+        return traced.sum();
+    }
+
+    /**
+     * @return number of slow commands recorded since start, including those overwritten since
+     */
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * Adds slowlog entries to stats output, the latest first
+     * e.g. "slowlog:7" -> "time=1488355200 client=/10.0.0.1:53211 cmd=GET key=foo size=3 total_us=15230 ..."
+     */
+    synchronized void appendTo(Map<String, String> stats) {
+        final int count = (int) Math.min(recorded, entries.length);
+        for (int i = 1; i <= count; i++) {
+            final Entry entry = entries[(int) ((recorded - i) % entries.length)];
+            stats.put("slowlog:" + entry.id, "time=" + entry.timeSec
+                    + " client=" + entry.client
+                    + " cmd=" + entry.type
+                    + (entry.key != null ? " key=" + entry.key : "")
+                    + (entry.size >= 0 ? " size=" + entry.size : "")
+                    + " total_us=" + micros(entry.totalNanos)
+                    + " decode_us=" + micros(entry.decodeNanos)
+                    + " queue_us=" + micros(entry.queueNanos)
+                    + " process_us=" + micros(entry.processNanos)
+                    + " write_us=" + micros(entry.writeNanos));
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
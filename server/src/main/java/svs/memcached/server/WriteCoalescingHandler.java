@@ -0,0 +1,64 @@
+package svs.memcached.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.CoalescingBufferQueue;
+
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Merges buffers written between flushes into writes of up to one TLS record
+ *
+ * SslHandler encrypts every write into its own record, so pipelined responses of a few bytes each would cost a
+ * record header, MAC and cipher call apiece. Placed right after SslHandler, this handler hands it composite buffers
+ * instead (no copying), which are encrypted into as few full records as possible.
+ */
+public class WriteCoalescingHandler extends ChannelOutboundHandlerAdapter {
+
+    // max TLS plaintext record size
+    static final int MAX_WRITE_SIZE = 16 * 1024;
+
+    private CoalescingBufferQueue queue;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        queue = new CoalescingBufferQueue(ctx.channel());
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            queue.add((ByteBuf) msg, promise);
+        } else {
+            writeQueued(ctx);
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        writeQueued(ctx);
+        ctx.flush();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        writeQueued(ctx);
+        ctx.flush();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        queue.releaseAndFailAll(new ClosedChannelException());
+    }
+
+    private void writeQueued(ChannelHandlerContext ctx) {
+        while (!queue.isEmpty()) {
+            final ChannelPromise promise = ctx.newPromise();
+            ctx.write(queue.remove(MAX_WRITE_SIZE, promise), promise);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package svs.memcached.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for cache handoff snapshots
+ */
+public class CacheSnapshotTest {
+
+    Path file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = Files.createTempFile("snapshot", ".bin");
+    }
+
+    @After
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ICache<StoredValue> source = new LocalCache(100, 100000, 1, false);
+        int future = (int) (System.currentTimeMillis() / 1000) + 3600;
+        source.set("key1", new StoredValue(new byte[]{1, 2, 3}, 7, 0));
+        source.set("ключ2", new StoredValue(new byte[0], 0, future));
+        assertEquals(2, CacheSnapshot.write(source, file));
+
+        ICache<StoredValue> target = new LocalCache(100, 100000, 1, false);
+        assertEquals(2, CacheSnapshot.read(file, target));
+        StoredValue value = target.get("key1");
+        assertArrayEquals(new byte[]{1, 2, 3}, value.getData());
+        assertEquals(7, value.getFlags());
+        assertEquals(0, value.getTargetTimeSec());
+        assertEquals(future, target.get("ключ2").getTargetTimeSec());
+    }
+
+    @Test
+    public void testExpiredEntriesAreSkipped() throws IOException {
+        ICache<StoredValue> source = new LocalCache(100, 100000, 1, false);
+        source.set("live", new StoredValue(new byte[]{1}, 0, 0));
+        source.set("expired", new StoredValue(new byte[]{2}, 0, 1));
+        assertEquals(1, CacheSnapshot.write(source, file));
+
+        ICache<StoredValue> target = new LocalCache(100, 100000, 1, false);
+        assertEquals(1, CacheSnapshot.read(file, target));
+        assertNull(target.get("expired"));
+    }
+
+    @Test
+    public void testExistingEntriesAreKept() throws IOException {
+        ICache<StoredValue> source = new LocalCache(100, 100000, 1, false);
+        source.set("key", new StoredValue(new byte[]{1}, 0, 0));
+        source.set("other", new StoredValue(new byte[]{2}, 0, 0));
+        CacheSnapshot.write(source, file);
+
+        ICache<StoredValue> target = new LocalCache(100, 100000, 1, false);
+        target.set("key", new StoredValue(new byte[]{3}, 0, 0));
+        assertEquals(1, CacheSnapshot.read(file, target));
+        assertArrayEquals(new byte[]{3}, target.get("key").getData());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedSnapshotIsRejected() throws IOException {
+        ICache<StoredValue> source = new LocalCache(100, 100000, 1, false);
+        source.set("key", new StoredValue(new byte[100], 0, 0));
+        CacheSnapshot.write(source, file);
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 10));
+        CacheSnapshot.read(file, new LocalCache(100, 100000, 1, false));
+    }
+}
@@ -1,10 +1,19 @@
 package svs.memcached.cache;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Basic tests for Cache
@@ -53,4 +62,76 @@ public class LocalCacheTest {
         assertEquals(value3, cache.get("key1"));
     }
 
+    @Test
+    public void testEntriesAreWeaklyConsistent() {
+        for (int i = 0; i < 10; i++) {
+            cache.set("key" + i, new StoredValue(new byte[]{(byte) i}, 0, 0));
+        }
+        Map<String, StoredValue> seen = new HashMap<>();
+        Iterator<Map.Entry<String, StoredValue>> entries = cache.entries();
+        while (entries.hasNext()) {
+            Map.Entry<String, StoredValue> entry = entries.next();
+            seen.put(entry.getKey(), entry.getValue());
+            cache.remove(entry.getKey()); // concurrent modification must not break iteration
+        }
+        assertEquals(10, seen.size());
+        assertEquals(new StoredValue(new byte[]{3}, 0, 0), seen.get("key3"));
+        assertFalse(seen.get("key3").isFetched());
+    }
+
+    @Test
+    public void testReadIsRecorded() {
+        StoredValue value = new StoredValue(new byte[3], 0, 0);
+        cache.set("key", value);
+        assertFalse(value.isFetched());
+        cache.get("key");
+        assertTrue(value.isFetched());
+        assertTrue(value.getLastAccessSec() >= System.currentTimeMillis() / 1000 - 1);
+    }
+
+    @Test
+    public void testRemovedPooledValueIsReleased() {
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.heapBuffer(3).writeBytes(new byte[]{1, 2, 3});
+        StoredValue pooled = new StoredValue(content, 0, 0);
+        assertEquals(new StoredValue(new byte[]{1, 2, 3}, 0, 0), pooled);
+        assertEquals(new StoredValue(new byte[]{1, 2, 3}, 0, 0).hashCode(), pooled.hashCode());
+        cache.set("key", pooled);
+
+        StoredValue read = cache.get("key");
+        assertTrue(read.tryRetain()); // reader keeps the data alive while the entry is replaced
+        cache.set("key", new StoredValue(new byte[]{4}, 0, 0));
+        assertEquals(1, content.refCnt());
+        assertEquals(3, read.getData().length);
+        read.release();
+        assertEquals(0, content.refCnt());
+        assertFalse("Released value must not be retained again", read.tryRetain());
+    }
+
+    @Test
+    public void testReplaceOnlyExistingEntry() {
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.heapBuffer(3).writeBytes(new byte[]{1, 2, 3});
+        assertFalse(cache.replace("key", new StoredValue(new byte[]{1}, 0, 0)));
+        assertEquals(null, cache.get("key"));
+
+        cache.set("key", new StoredValue(content, 0, 0));
+        StoredValue replacement = new StoredValue(new byte[]{4}, 0, 0);
+        assertTrue(cache.replace("key", replacement));
+        assertEquals(replacement, cache.get("key"));
+        assertEquals("Replaced value must be released", 0, content.refCnt());
+    }
+
+    @Test
+    public void testConditionalRemoveComparesIdentity() {
+        cache = new LocalCache(100, 1000, 4, false);
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.heapBuffer(3).writeBytes(new byte[]{1, 2, 3});
+        StoredValue old = new StoredValue(content, 0, 0);
+        cache.set("key", old);
+        assertFalse(cache.remove("key", new StoredValue(new byte[]{1, 2, 3}, 0, 0)));
+        assertSame(old, cache.get("key"));
+
+        assertTrue(cache.remove("key", old));
+        assertEquals(null, cache.get("key"));
+        assertEquals("Removed value must be released", 0, content.refCnt());
+        assertFalse(cache.remove("key", old));
+    }
 }
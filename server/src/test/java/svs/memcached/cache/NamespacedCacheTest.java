@@ -0,0 +1,124 @@
+package svs.memcached.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for namespace routing and tenant isolation
+ */
+public class NamespacedCacheTest {
+
+    private static final int NAMESPACE_BUDGET = 1000; // items per namespace
+
+    NamespacedCache<StoredValue> cache;
+
+    @Before
+    public void initCache() {
+        Map<String, ICache<StoredValue>> namespaces = new LinkedHashMap<>();
+        namespaces.put("quiet", new LocalCache(NAMESPACE_BUDGET, 60000, 1, false));
+        namespaces.put("noisy", new LocalCache(NAMESPACE_BUDGET, 60000, 1, false));
+        namespaces.put("qu", new LocalCache(NAMESPACE_BUDGET, 60000, 1, false)); // prefix of another namespace
+        cache = new NamespacedCache<>(':', new LocalCache(NAMESPACE_BUDGET, 60000, 1, false), namespaces);
+    }
+
+    @Test
+    public void testNamespaceLookup() {
+        assertEquals("quiet", cache.namespaceOf("quiet:key").getName());
+        assertEquals("qu", cache.namespaceOf("qu:key").getName());
+        assertEquals("noisy", cache.namespaceOf("noisy:a:b").getName());
+        assertEquals(NamespacedCache.DEFAULT_NAMESPACE, cache.namespaceOf("quie:key").getName());
+        assertEquals(NamespacedCache.DEFAULT_NAMESPACE, cache.namespaceOf("quiet").getName());
+        assertEquals(NamespacedCache.DEFAULT_NAMESPACE, cache.namespaceOf(":key").getName());
+        assertEquals(NamespacedCache.DEFAULT_NAMESPACE, cache.namespaceOf("other:key").getName());
+    }
+
+    @Test
+    public void testCountersArePerNamespace() {
+        StoredValue value = new StoredValue(new byte[]{1}, 0, 0);
+        cache.set("quiet:1", value);
+        assertSame(value, cache.get("quiet:1"));
+        assertNull(cache.get("quiet:2"));
+        assertNull(cache.get("noisy:1"));
+        cache.remove("quiet:1");
+        NamespacedCache.Namespace<StoredValue> quiet = cache.namespaceOf("quiet:");
+        NamespacedCache.Namespace<StoredValue> noisy = cache.namespaceOf("noisy:");
+        assertEquals(1, quiet.getSets());
+        assertEquals(1, quiet.getGetHits());
+        assertEquals(1, quiet.getGetMisses());
+        assertEquals(1, quiet.getRemoves());
+        assertEquals(0, noisy.getSets());
+        assertEquals(1, noisy.getGetMisses());
+        assertNull(quiet.getCache().get("quiet:1"));
+    }
+
+    @Test
+    public void testOnlySuccessfulStoresAreCounted() {
+        StoredValue value = new StoredValue(new byte[]{1}, 0, 0);
+        assertEquals(false, cache.replace("quiet:1", value));
+        assertNull(cache.putIfAbsent("quiet:1", value));
+        StoredValue other = new StoredValue(new byte[]{2}, 0, 0);
+        assertSame(value, cache.putIfAbsent("quiet:1", other));
+        assertEquals(false, cache.remove("quiet:1", other));
+        assertEquals(true, cache.replace("quiet:1", other));
+        NamespacedCache.Namespace<StoredValue> quiet = cache.namespaceOf("quiet:");
+        assertEquals(2, quiet.getSets());
+        assertEquals(0, quiet.getRemoves());
+    }
+
+    /**
+     * Noisy tenant writes many times its budget concurrently with quiet tenant traffic;
+     * quiet tenant's working set must stay resident
+     */
+    @Test
+    public void testNoisyTenantDoesNotEvictOtherTenants() throws Exception {
+        final int quietKeys = NAMESPACE_BUDGET / 2;
+        for (int i = 0; i < quietKeys; i++) {
+            cache.set("quiet:" + i, new StoredValue(new byte[100], 0, 0));
+            cache.set("key" + i, new StoredValue(new byte[100], 0, 0)); // default namespace
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] writers = new Future[3];
+            for (int t = 0; t < writers.length; t++) {
+                final int thread = t;
+                writers[t] = executor.submit(() -> {
+                    for (int i = 0; i < NAMESPACE_BUDGET * 20; i++) {
+                        cache.set("noisy:" + thread + ":" + i, new StoredValue(new byte[100], 0, 0));
+                    }
+                });
+            }
+            Future<?> reader = executor.submit(() -> {
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < quietKeys; i++) {
+                        assertNotNull(cache.get("quiet:" + i));
+                    }
+                }
+            });
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            reader.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int i = 0; i < quietKeys; i++) {
+            assertNotNull("quiet:" + i + " was evicted", cache.get("quiet:" + i));
+            assertNotNull("key" + i + " was evicted", cache.get("key" + i));
+        }
+        NamespacedCache.Namespace<StoredValue> quiet = cache.namespaceOf("quiet:");
+        assertEquals(quietKeys * 21, quiet.getGetHits());
+        assertEquals(0, quiet.getGetMisses());
+        assertEquals(NAMESPACE_BUDGET * 20 * 3, cache.namespaceOf("noisy:").getSets());
+    }
+}
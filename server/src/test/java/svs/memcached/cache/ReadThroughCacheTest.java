@@ -0,0 +1,121 @@
+package svs.memcached.cache;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for read-through loading and write-behind batching
+ */
+public class ReadThroughCacheTest {
+
+    ReadThroughCache cache;
+
+    @After
+    public void closeCache() {
+        cache.close();
+    }
+
+    @Test
+    public void testMissIsLoadedAndCached() throws Exception {
+        MapCacheLoader loader = new MapCacheLoader();
+        StoredValue value = new StoredValue(new byte[]{1, 2, 3}, 7, 0);
+        loader.getSource().put("key", value);
+        cache = new ReadThroughCache(new LocalCache(100, 100000, 1, false), loader, null, 1000, 10, 1000);
+
+        assertNull(cache.get("key"));
+        assertEquals(value, cache.fetchAsync("key").get(1, TimeUnit.SECONDS));
+        assertEquals(value, cache.get("key"));
+        assertNull(cache.fetchAsync("unknown").get(1, TimeUnit.SECONDS));
+        assertEquals(1, cache.getLoadHits());
+        assertEquals(1, cache.getLoadMisses());
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        MapCacheLoader loader = new MapCacheLoader(200);
+        StoredValue value = new StoredValue(new byte[]{1}, 0, 0);
+        loader.getSource().put("key", value);
+        cache = new ReadThroughCache(new LocalCache(100, 100000, 1, false), loader, null, 1000, 10, 1000);
+
+        CompletableFuture<StoredValue> first = cache.fetchAsync("key");
+        CompletableFuture<StoredValue> second = cache.fetchAsync("key");
+        assertSame(first, second);
+        assertEquals(value, first.get(1, TimeUnit.SECONDS));
+        assertEquals(1, loader.getLoads());
+        assertEquals(1, cache.getCoalescedLoads());
+    }
+
+    @Test
+    public void testSlowLoadIsReportedAsMiss() throws Exception {
+        MapCacheLoader loader = new MapCacheLoader(5000);
+        loader.getSource().put("key", new StoredValue(new byte[]{1}, 0, 0));
+        cache = new ReadThroughCache(new LocalCache(100, 100000, 1, false), loader, null, 50, 10, 1000);
+
+        assertNull(cache.fetchAsync("key").get(1, TimeUnit.SECONDS));
+        assertEquals(1, cache.getLoadErrors());
+    }
+
+    @Test
+    public void testLoadFinishedAfterDeleteIsMiss() throws Exception {
+        MapCacheLoader writer = new MapCacheLoader();
+        CompletableFuture<StoredValue> source = new CompletableFuture<>();
+        cache = new ReadThroughCache(new LocalCache(100, 100000, 1, false), key -> source, writer, 1000, 10, 60000);
+
+        CompletableFuture<StoredValue> load = cache.fetchAsync("key");
+        cache.remove("key");
+        source.complete(new StoredValue(new byte[]{1}, 0, 0)); // the source didn't get the delete yet
+        assertNull("Deleted value must not come back", load.get(1, TimeUnit.SECONDS));
+        assertNull(cache.get("key"));
+        assertEquals(1, cache.getLoadMisses());
+    }
+
+    @Test
+    public void testWritesAreFlushedInBatches() throws Exception {
+        MapCacheLoader loader = new MapCacheLoader();
+        cache = new ReadThroughCache(new LocalCache(100, 100000, 1, false), loader, loader, 1000, 10, 60000);
+
+        for (int i = 0; i < 9; i++) {
+            cache.set("key" + i, new StoredValue(new byte[]{(byte) i}, 0, 0));
+        }
+        cache.set("key0", new StoredValue(new byte[]{42}, 0, 0)); // coalesced with the first write
+        assertEquals(9, cache.getBufferedWrites());
+        assertEquals(0, loader.getWrittenBatches());
+
+        cache.remove("key9"); // the 10th buffered key fills the batch
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getFlushedWrites() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(10, cache.getFlushedWrites());
+        assertEquals(2, loader.getWrittenBatches()); // one update batch and one delete batch
+        assertEquals(new StoredValue(new byte[]{42}, 0, 0), loader.getSource().get("key0"));
+        assertEquals(9, loader.getSource().size());
+    }
+
+    @Test
+    public void testCloseFlushesPendingWritesAndFailsLoads() throws Exception {
+        MapCacheLoader writer = new MapCacheLoader();
+        CompletableFuture<StoredValue> source = new CompletableFuture<>(); // never completes
+        cache = new ReadThroughCache(new LocalCache(100, 100000, 1, false), key -> source, writer, 60000, 10, 60000);
+
+        for (int i = 0; i < 5; i++) {
+            cache.set("key" + i, new StoredValue(new byte[]{(byte) i}, 0, 0));
+        }
+        cache.remove("key4");
+        CompletableFuture<StoredValue> load = cache.fetchAsync("other");
+        cache.close();
+
+        assertEquals(0, cache.getBufferedWrites());
+        assertEquals(5, cache.getFlushedWrites());
+        assertEquals(4, writer.getSource().size());
+        assertNull("Load in progress must be reported as miss", load.get(1, TimeUnit.SECONDS));
+        assertEquals(1, cache.getLoadErrors());
+    }
+}
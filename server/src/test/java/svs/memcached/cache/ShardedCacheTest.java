@@ -0,0 +1,64 @@
+package svs.memcached.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for key routing of sharded cache
+ */
+public class ShardedCacheTest {
+
+    private static final int SHARDS = 4;
+
+    ShardedCache<StoredValue> cache;
+
+    @Before
+    public void initCache() {
+        cache = new ShardedCache<>(SHARDS, i -> new LocalCache(100, 1000, 1, false));
+    }
+
+    @Test
+    public void testValueIsStoredInOwningShardOnly() {
+        StoredValue value = new StoredValue(new byte[]{1}, 0, 0);
+        cache.set("key", value);
+        int owner = cache.shardIndex("key");
+        for (int i = 0; i < SHARDS; i++) {
+            if (i == owner) {
+                assertEquals(value, cache.getShard(i).get("key"));
+            } else {
+                assertNull(cache.getShard(i).get("key"));
+            }
+        }
+        assertEquals(value, cache.get("key"));
+        cache.remove("key");
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void testEntriesCoverAllShards() {
+        for (int i = 0; i < 100; i++) {
+            cache.set("key:" + i, new StoredValue(new byte[]{1}, 0, 0));
+        }
+        Set<String> keys = new HashSet<>();
+        cache.entries().forEachRemaining(entry -> keys.add(entry.getKey()));
+        assertEquals(100, keys.size());
+    }
+
+    @Test
+    public void testKeysAreSpreadAcrossShards() {
+        int[] counts = new int[SHARDS];
+        for (int i = 0; i < 10000; i++) {
+            counts[cache.shardIndex("key:" + i)]++;
+        }
+        for (int count : counts) {
+            assertTrue("Uneven shard distribution: " + count, count > 2000 && count < 3000);
+        }
+    }
+}
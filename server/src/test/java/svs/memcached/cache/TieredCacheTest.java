@@ -0,0 +1,201 @@
+package svs.memcached.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for disk tier spilling and log-structured store maintenance
+ */
+public class TieredCacheTest {
+
+    private static final long SEGMENT_BYTES = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    LogStructuredStore disk;
+    TieredCache cache;
+
+    @Before
+    public void initCache() throws Exception {
+        disk = new LogStructuredStore(folder.getRoot().toPath(), SEGMENT_BYTES * 16, SEGMENT_BYTES, 0.5);
+        cache = new TieredCache(listener -> new LocalCache(2, 0, 100000, 1, false, listener), disk, 1, 100);
+    }
+
+    @After
+    public void closeCache() {
+        cache.close();
+    }
+
+    @Test
+    public void testEvictedEntryIsFetchedFromDiskAndPromoted() throws Exception {
+        StoredValue value = new StoredValue(new byte[]{1, 2, 3}, 42, 0);
+        cache.set("key1", value);
+        cache.set("key2", new StoredValue(new byte[]{2}, 0, 0));
+        cache.set("key3", new StoredValue(new byte[]{3}, 0, 0));
+        assertNull("Entry must be evicted from memory", cache.get("key1"));
+        awaitOnDisk("key1");
+
+        StoredValue fetched = cache.fetchAsync("key1").get(1, TimeUnit.SECONDS);
+        assertEquals(value, fetched);
+        assertEquals(42, fetched.getFlags());
+        assertEquals("Fetched entry must be promoted to memory", value, cache.get("key1"));
+        assertNull("Unknown key must not be looked up on disk", cache.fetchAsync("unknown"));
+    }
+
+    @Test
+    public void testSetAndRemoveInvalidateDiskCopy() throws Exception {
+        cache.set("key1", new StoredValue(new byte[]{1}, 0, 0));
+        cache.set("key2", new StoredValue(new byte[]{2}, 0, 0));
+        cache.set("key3", new StoredValue(new byte[]{3}, 0, 0));
+        awaitOnDisk("key1");
+
+        cache.remove("key1");
+        assertNull(cache.get("key1"));
+        assertNull("Removed entry must not be fetched from disk", cache.fetchAsync("key1"));
+
+        StoredValue updated = new StoredValue(new byte[]{4}, 0, 0);
+        cache.set("key2", updated);
+        cache.set("key4", new StoredValue(new byte[]{5}, 0, 0));
+        cache.set("key5", new StoredValue(new byte[]{6}, 0, 0));
+        awaitOnDisk("key2");
+        assertEquals("Latest value must be spilled", updated, cache.fetchAsync("key2").get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReplaceDiskEntry() throws Exception {
+        assertFalse(cache.replace("key1", new StoredValue(new byte[]{1}, 0, 0)));
+        cache.set("key1", new StoredValue(new byte[]{1}, 0, 0));
+        cache.set("key2", new StoredValue(new byte[]{2}, 0, 0));
+        cache.set("key3", new StoredValue(new byte[]{3}, 0, 0));
+        awaitOnDisk("key1");
+
+        StoredValue replacement = new StoredValue(new byte[]{4}, 0, 0);
+        assertTrue("Entry on disk must be replaced", cache.replace("key1", replacement));
+        assertEquals(replacement, cache.get("key1"));
+        cache.set("key4", new StoredValue(new byte[]{6}, 0, 0));
+        cache.set("key5", new StoredValue(new byte[]{7}, 0, 0));
+        awaitOnDisk("key1");
+        assertEquals("Replaced disk copy must not come back", replacement,
+                cache.fetchAsync("key1").get(1, TimeUnit.SECONDS));
+
+        cache.remove("key1");
+        assertFalse(cache.replace("key1", new StoredValue(new byte[]{5}, 0, 0)));
+        assertNull(cache.get("key1"));
+    }
+
+    @Test
+    public void testCompactionAndDiskBudget() throws Exception {
+        StoredValue value = new StoredValue(new byte[100], 0, 0);
+        // overwriting the same keys turns sealed segments into garbage which is compacted away
+        for (int i = 0; i < 200; i++) {
+            disk.append("key" + (i % 4), value);
+        }
+        assertTrue(disk.getCompactions() > 0);
+        assertEquals(4, disk.getItemCount());
+        assertTrue(disk.getTotalBytes() <= SEGMENT_BYTES * 2);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(value, disk.read("key" + i));
+        }
+
+        // distinct keys exceed the budget, oldest entries are dropped with their segments
+        for (int i = 0; i < 1000; i++) {
+            disk.append("unique" + i, value);
+        }
+        assertTrue(disk.getDroppedSegments() > 0);
+        assertTrue(disk.getTotalBytes() <= SEGMENT_BYTES * 16);
+        assertFalse(disk.contains("unique0"));
+        assertEquals(value, disk.read("unique999"));
+    }
+
+    @Test
+    public void testReadRetriesWhileRecordKeepsMoving() throws Exception {
+        final StoredValue value = new StoredValue(new byte[]{1, 2, 3}, 0, 0);
+        final AtomicInteger moves = new AtomicInteger(5);
+        // every read moves the record first, the way compaction does, until the moves run out
+        final LogStructuredStore moving = new LogStructuredStore(folder.newFolder().toPath(), SEGMENT_BYTES * 16,
+                SEGMENT_BYTES, 0.5) {
+            @Override
+            public StoredValue read(String key) throws IOException {
+                if (moves.getAndDecrement() > 0) {
+                    append(key, super.read(key));
+                }
+                return super.read(key);
+            }
+        };
+        moving.append("key1", value);
+        final TieredCache tiered = new TieredCache(listener -> new LocalCache(2, 0, 100000, 1, false, listener),
+                moving, 1, 100);
+        try {
+            assertEquals("Moved entry must not be reported missing", value,
+                    tiered.fetchAsync("key1").get(1, TimeUnit.SECONDS));
+            assertEquals(value, tiered.get("key1"));
+        } finally {
+            tiered.close();
+        }
+    }
+
+    @Test
+    public void testReadDuringCompaction() throws Exception {
+        final Path directory = folder.newFolder().toPath();
+        final LogStructuredStore compacted = new LogStructuredStore(directory, SEGMENT_BYTES * 64, SEGMENT_BYTES, 0.5);
+        final StoredValue value = new StoredValue(new byte[100], 0, 0);
+        final int keys = 50;
+        // live entries are interleaved with overwritten ones, so every sealed segment is compacted and they move
+        for (int i = 0; i < keys; i++) {
+            compacted.append("cold" + i, new StoredValue(new byte[]{(byte) i}, i, 0));
+            compacted.append("hot" + i % 4, value);
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Thread churn = new Thread(() -> {
+            try {
+                for (int i = 0; !stop.get(); i++) {
+                    compacted.append("hot" + i % 4, value);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        // the memory tier fits every entry, so promotions don't spill and the churn thread stays the only writer
+        final TieredCache tiered = new TieredCache(listener -> new LocalCache(1000, 0, 100000, 1, false, listener),
+                compacted, 4, 100);
+        try {
+            churn.start();
+            for (int i = 0; i < keys; i++) {
+                final StoredValue fetched = tiered.fetchAsync("cold" + i).get(1, TimeUnit.SECONDS);
+                assertNotNull("Entry moved by compaction must be found: cold" + i, fetched);
+                assertEquals(i, fetched.getFlags());
+                Thread.sleep(1);
+            }
+        } finally {
+            stop.set(true);
+            churn.join();
+            tiered.close();
+        }
+        assertTrue(compacted.getCompactions() > 0);
+        assertEquals(0, compacted.getDroppedSegments());
+    }
+
+    private void awaitOnDisk(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!disk.contains(key)) {
+            assertTrue("Entry wasn't spilled to disk: " + key, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package svs.memcached.server;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+import svs.memcached.cache.LocalCache;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static svs.memcached.server.CodecHarness.send;
+
+/**
+ * Tests for text protocol authentication
+ */
+public class AuthHandlerTest {
+
+    EmbeddedChannel channel;
+
+    @Before
+    public void initChannel() {
+        Credentials credentials = Credentials.parse(Arrays.asList("# users", "alice:secret", "bob:p:w"));
+        channel = new EmbeddedChannel(new MemcacheDecoder(), new MemcacheEncoder(), new AuthHandler(credentials),
+                new MemcacheCommandHandler(new LocalCache(100, 100000, 1, false)));
+    }
+
+    @Test
+    public void testCommandsAreRejectedUntilAuthenticated() {
+        assertEquals("CLIENT_ERROR unauthenticated\r\n", send(channel, "get foo\r\n"));
+        assertEquals("CLIENT_ERROR authentication failure\r\n", send(channel, "set auth 0 0 11\r\nalice wrong\r\n"));
+        assertEquals("CLIENT_ERROR authentication failure\r\n", send(channel, "set auth 0 0 5\r\nalice\r\n"));
+        assertEquals("CLIENT_ERROR unauthenticated\r\n", send(channel, "get foo\r\n"));
+    }
+
+    @Test
+    public void testAuthenticatedConnectionIsServed() {
+        // commands pipelined after credentials are executed normally
+        assertEquals("STORED\r\nSTORED\r\nVALUE foo 0 3\r\nbar\r\nEND\r\n",
+                send(channel, "set auth 0 0 7\r\nbob p:w\r\nset foo 0 0 3\r\nbar\r\nget foo\r\n"));
+        assertNull(channel.pipeline().get(AuthHandler.class));
+    }
+
+    @Test
+    public void testCredentials() {
+        Credentials credentials = Credentials.parse(Arrays.asList("alice:secret", "", "bob:"));
+        assertEquals(2, credentials.size());
+        assertTrue(credentials.check("alice", "secret"));
+        assertTrue(credentials.check("bob", ""));
+        assertFalse(credentials.check("alice", "secret2"));
+        assertFalse(credentials.check("carol", "secret"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedCredentials() {
+        Credentials.parse(Arrays.asList("alice secret"));
+    }
+}
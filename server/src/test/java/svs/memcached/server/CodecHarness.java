@@ -0,0 +1,146 @@
+package svs.memcached.server;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import svs.memcached.cache.ICache;
+import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.StoredValue;
+
+import javax.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Text protocol pipeline on EmbeddedChannel for codec tests
+ *
+ * Input is written in the given chunks, the way TCP may split it. All buffers come from a tracking allocator and
+ * values are stored in reference counted buffers, so close() detects leaked and over-released buffers.
+ * Input and output strings are ISO-8859-1, so they map to bytes one to one.
+ */
+final class CodecHarness implements AutoCloseable {
+
+    private final TrackingAllocator allocator = new TrackingAllocator();
+    private final ICache<StoredValue> cache = new LocalCache(1000, 100000000, 1, false);
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+
+    CodecHarness() {
+        channel.config().setAllocator(allocator);
+        channel.pipeline().addLast(new MemcacheDecoder(true, null), new MemcacheEncoder(),
+                new MemcacheCommandHandler(cache));
+    }
+
+    /**
+     * Writes the input in one chunk
+     * @return responses written meanwhile
+     */
+    String send(String input) {
+        return send(bytes(input));
+    }
+
+    /**
+     * Writes every chunk separately
+     * @return responses written meanwhile
+     */
+    String send(byte[]... chunks) {
+        final StringBuilder output = new StringBuilder();
+        for (byte[] chunk : chunks) {
+            channel.writeInbound(allocator.buffer(chunk.length).writeBytes(chunk));
+            channel.runPendingTasks();
+            channel.checkException();
+            read(output);
+        }
+        return output.toString();
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    private void read(StringBuilder output) {
+        read(channel, output);
+    }
+
+    /**
+     * Writes the input to a channel of another pipeline and runs its pending tasks
+     * @param input null to only run pending tasks
+     * @return responses written meanwhile
+     */
+    static String send(EmbeddedChannel channel, @Nullable String input) {
+        if (input != null) {
+            channel.writeInbound(Unpooled.copiedBuffer(input, StandardCharsets.ISO_8859_1));
+        }
+        channel.runPendingTasks();
+        final StringBuilder output = new StringBuilder();
+        read(channel, output);
+        return output.toString();
+    }
+
+    private static void read(EmbeddedChannel channel, StringBuilder output) {
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            output.append(buf.toString(StandardCharsets.ISO_8859_1));
+            buf.release();
+        }
+    }
+
+    /**
+     * Closes the channel, empties the cache and checks every buffer is released exactly once
+     */
+    @Override
+    public void close() {
+        channel.finish();
+        read(new StringBuilder());
+        final List<String> keys = new ArrayList<>();
+        for (Iterator<Map.Entry<String, StoredValue>> entries = cache.entries(); entries.hasNext(); ) {
+            keys.add(entries.next().getKey());
+        }
+        keys.forEach(cache::remove);
+        allocator.assertReleased();
+    }
+
+    static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Unpooled allocator remembering every buffer it allocates
+     */
+    static final class TrackingAllocator extends AbstractByteBufAllocator {
+
+        private final List<ByteBuf> buffers = new ArrayList<>();
+
+        @Override
+        protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+            return track(Unpooled.buffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+            return track(Unpooled.directBuffer(initialCapacity, maxCapacity));
+        }
+
+        @Override
+        public boolean isDirectBufferPooled() {
+            return false;
+        }
+
+        private ByteBuf track(ByteBuf buffer) {
+            buffers.add(buffer);
+            return buffer;
+        }
+
+        void assertReleased() {
+            for (ByteBuf buffer : buffers) {
+                assertEquals("Leaked buffer " + buffer, 0, buffer.refCnt());
+            }
+        }
+    }
+}
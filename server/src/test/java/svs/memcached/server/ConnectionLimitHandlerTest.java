@@ -0,0 +1,83 @@
+package svs.memcached.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import svs.memcached.cache.ICache;
+import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.StoredValue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the connection limit
+ */
+public class ConnectionLimitHandlerTest {
+
+    @Test
+    public void testRejectedConnectionDoesNotExecuteCommands() throws IOException {
+        ConnectionLimitHandler limitHandler = new ConnectionLimitHandler(
+                new RuntimeSettings(ServerConfig.parse(new String[]{"-c", "1"})));
+        ICache<StoredValue> cache = new LocalCache(100, 100000, 1, false);
+        EmbeddedChannel accepted = new EmbeddedChannel(limitHandler, new MemcacheDecoder(), new MemcacheEncoder(),
+                new MemcacheCommandHandler(cache));
+        // the rejection is not written out yet, so the connection stays open
+        WriteHolder writeHolder = new WriteHolder();
+        EmbeddedChannel rejected = new EmbeddedChannel(writeHolder, limitHandler, new MemcacheDecoder(),
+                new MemcacheEncoder(), new MemcacheCommandHandler(cache));
+        assertEquals(2, limitHandler.getConnectionCount());
+        assertFalse(rejected.config().isAutoRead());
+
+        // bytes read before the close completes are dropped
+        rejected.writeInbound(Unpooled.copiedBuffer("set foo 0 0 3\r\nbar\r\n", StandardCharsets.US_ASCII));
+        rejected.runPendingTasks();
+        assertNull(cache.get("foo"));
+
+        writeHolder.release();
+        assertEquals("ERROR Too many open connections\r\n", read(rejected));
+        assertFalse(rejected.isOpen());
+
+        accepted.writeInbound(Unpooled.copiedBuffer("set foo 0 0 3\r\nbar\r\n", StandardCharsets.US_ASCII));
+        accepted.runPendingTasks();
+        assertEquals("STORED\r\n", read(accepted));
+        assertEquals(1, limitHandler.getConnectionCount());
+        accepted.finishAndReleaseAll();
+    }
+
+    private static String read(EmbeddedChannel channel) {
+        StringBuilder sb = new StringBuilder();
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            sb.append(buf.toString(StandardCharsets.US_ASCII));
+            buf.release();
+        }
+        return sb.toString();
+    }
+
+    private static class WriteHolder extends ChannelOutboundHandlerAdapter {
+
+        private ChannelHandlerContext ctx;
+        private Object msg;
+        private ChannelPromise promise;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            this.ctx = ctx;
+            this.msg = msg;
+            this.promise = promise;
+        }
+
+        void release() {
+            ctx.writeAndFlush(msg, promise);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package svs.memcached.server;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.MapCacheLoader;
+import svs.memcached.cache.ReadThroughCache;
+import svs.memcached.cache.StoredValue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static svs.memcached.server.CodecHarness.send;
+
+/**
+ * Tests for draining connections on shutdown
+ */
+public class GracefulShutdownTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ReadThroughCache cache;
+
+    @After
+    public void closeCache() {
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionIsClosed() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MemcacheDecoder(), new MemcacheEncoder(),
+                new MemcacheCommandHandler(new LocalCache(100, 100000, 1, false)));
+        assertEquals("STORED\r\n", send(channel, "set foo 0 0 3\r\nbar\r\n"));
+        channel.pipeline().fireUserEventTriggered(DrainEvent.INSTANCE);
+        channel.runPendingTasks();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testPendingResponsesAreWrittenBeforeClose() throws Exception {
+        MapCacheLoader loader = new MapCacheLoader(200);
+        loader.getSource().put("foo", new StoredValue("bar".getBytes(StandardCharsets.US_ASCII), 0, 0));
+        cache = new ReadThroughCache(new LocalCache(100, 100000, 1, false), loader, null, 5000, 10, 1000);
+        EmbeddedChannel channel = new EmbeddedChannel(new MemcacheDecoder(), new MemcacheEncoder(),
+                new MemcacheCommandHandler(cache));
+
+        StringBuilder output = new StringBuilder(send(channel, "get foo\r\nset baz 0 0 1\r\nx\r\n"));
+        channel.pipeline().fireUserEventTriggered(DrainEvent.INSTANCE);
+        assertTrue(channel.isOpen());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (channel.isOpen() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            output.append(send(channel, null));
+        }
+        assertFalse(channel.isOpen());
+        assertEquals("VALUE foo 0 3\r\nbar\r\nEND\r\nSTORED\r\n", output.toString());
+    }
+
+    @Test
+    public void testStopAbortsWaitForRunningServer() throws Exception {
+        try (ServerSocket running = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            ServerConfig config = ServerConfig.parse(new String[]{"-p", Integer.toString(running.getLocalPort()),
+                    "-l", "127.0.0.1", "-o", "io.threads=1", "-o", "handoff.timeout.ms=60000",
+                    "-o", "handoff.file=" + folder.getRoot().toPath().resolve("handoff")});
+            MemcachedServer server = new MemcachedServer(config);
+            Thread startup = new Thread(() -> {
+                try {
+                    server.bootstrapAndWait();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            startup.start();
+            Thread.sleep(500); // retrying to bind the port held by the running server
+
+            server.stop();
+            startup.join(TimeUnit.SECONDS.toMillis(10));
+            assertFalse("Startup must be aborted", startup.isAlive());
+            assertFalse("Nothing was imported, so nothing is handed over",
+                    folder.getRoot().toPath().resolve("handoff").toFile().exists());
+        }
+    }
+}
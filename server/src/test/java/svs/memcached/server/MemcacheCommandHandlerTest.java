@@ -0,0 +1,209 @@
+package svs.memcached.server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import svs.memcached.cache.ICache;
+import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.LogStructuredStore;
+import svs.memcached.cache.ReadThroughCache;
+import svs.memcached.cache.StoredValue;
+import svs.memcached.cache.TieredCache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for commands with asynchronous results over a real event loop
+ *
+ * The server has a single event loop, so a command blocking it would stall every connection.
+ */
+public class MemcacheCommandHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final EventLoopGroup serverGroup = new DefaultEventLoopGroup(1);
+    private final EventLoopGroup clientGroup = new DefaultEventLoopGroup(1);
+    private final LocalAddress address = new LocalAddress("handler-" + System.nanoTime());
+    private Channel serverChannel;
+    private ICache<StoredValue> cache;
+    private final CountDownLatch gate = new CountDownLatch(1);
+
+    @After
+    public void stop() throws InterruptedException {
+        gate.countDown();
+        if (serverChannel != null) {
+            serverChannel.close().sync();
+        }
+        if (cache != null) {
+            cache.close();
+        }
+        clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    public void testPipelinedCommandsDoNotOvertakeDiskRead() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final LogStructuredStore disk = new LogStructuredStore(folder.getRoot().toPath(), 1 << 20, 1 << 16, 0.5) {
+            @Override
+            public StoredValue read(String key) throws IOException {
+                reading.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.read(key);
+            }
+        };
+        disk.append("key", new StoredValue("value".getBytes(StandardCharsets.US_ASCII), 0, 0));
+        start(new TieredCache(listener -> new LocalCache(10, 0, 100000, 1, false, listener), disk, 1, 100));
+        final StringBuffer received = new StringBuffer();
+        // set with negative expiration time deletes the key
+        connect(received).writeAndFlush(ascii("get key\r\nset key 0 -1 1\r\nx\r\nget key\r\n"));
+
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // the delete would have removed the disk copy by now if it overtook the read
+        assertTrue("Delete must wait for the earlier get", disk.contains("key"));
+        gate.countDown();
+
+        final String expected = "VALUE key 0 5\r\nvalue\r\nEND\r\nSTORED\r\nEND\r\n";
+        assertEquals(expected, await(received, expected.length()));
+        assertNull("Value read from disk must not be promoted over the delete", cache.get("key"));
+    }
+
+    @Test
+    public void testAddOfDiskEntryDoesNotBlockEventLoop() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final LogStructuredStore disk = new LogStructuredStore(folder.getRoot().toPath(), 1 << 20, 1 << 16, 0.5) {
+            @Override
+            public StoredValue read(String key) throws IOException {
+                reading.countDown();
+                try {
+                    gate.await(5, TimeUnit.SECONDS); // a blocked event loop can't accept the other connection
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.read(key);
+            }
+        };
+        disk.append("key", new StoredValue("value".getBytes(StandardCharsets.US_ASCII), 0, 0));
+        start(new TieredCache(listener -> new LocalCache(10, 0, 100000, 1, false, listener), disk, 1, 100));
+        final StringBuffer add = new StringBuffer();
+        connect(add).writeAndFlush(ascii("ms key 1 ME\r\nx\r\n"));
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        final StringBuffer other = new StringBuffer();
+        // served by the same (single) event loop while the disk read is blocked
+        connect(other).writeAndFlush(ascii("set other 0 0 1\r\nx\r\n"));
+
+        assertEquals("STORED\r\n", await(other, "STORED\r\n".length()));
+        assertEquals("", add.toString());
+        gate.countDown();
+        assertEquals("NS\r\n", await(add, "NS\r\n".length()));
+        assertEquals("value", new String(cache.get("key").getData(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testSlowLoadDoesNotBlockEventLoop() throws Exception {
+        final CompletableFuture<StoredValue> source = new CompletableFuture<>();
+        final AtomicInteger loads = new AtomicInteger();
+        start(new ReadThroughCache(new LocalCache(10, 100000, 1, false), key -> {
+            loads.incrementAndGet();
+            return source;
+        }, null, 10000, 10, 1000));
+        final StringBuffer slow = new StringBuffer();
+        connect(slow).writeAndFlush(ascii("get key\r\n"));
+        final StringBuffer other = new StringBuffer();
+        // served by the same (single) event loop while the load is in progress
+        connect(other).writeAndFlush(ascii("set other 0 0 1\r\nx\r\nget other\r\n"));
+
+        final String expected = "STORED\r\nVALUE other 0 1\r\nx\r\nEND\r\n";
+        assertEquals(expected, await(other, expected.length()));
+        assertEquals(1, loads.get());
+        assertEquals("", slow.toString());
+
+        source.complete(new StoredValue("value".getBytes(StandardCharsets.US_ASCII), 0, 0));
+        final String loaded = "VALUE key 0 5\r\nvalue\r\nEND\r\n";
+        assertEquals(loaded, await(slow, loaded.length()));
+    }
+
+    @Test
+    public void testDeleteDoesNotLoad() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        start(new ReadThroughCache(new LocalCache(10, 100000, 1, false), key -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture(new StoredValue(new byte[1], 0, 0));
+        }, null, 10000, 10, 1000));
+        final StringBuffer received = new StringBuffer();
+        connect(received).writeAndFlush(ascii("md key\r\nmd key I\r\nmn\r\n"));
+
+        final String expected = "NF\r\nNF\r\nMN\r\n";
+        assertEquals(expected, await(received, expected.length()));
+        assertEquals("Deleting an uncached key must not load it", 0, loads.get());
+    }
+
+    private void start(ICache<StoredValue> cache) throws InterruptedException {
+        this.cache = cache;
+        serverChannel = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) throws Exception {
+                        ch.pipeline().addLast(new MemcacheDecoder(), new MemcacheEncoder(),
+                                new MemcacheCommandHandler(cache));
+                    }
+                })
+                .bind(address).sync().channel();
+    }
+
+    private Channel connect(StringBuffer received) throws InterruptedException {
+        return new Bootstrap()
+                .group(clientGroup)
+                .channel(LocalChannel.class)
+                .handler(new SimpleChannelInboundHandler<ByteBuf>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+                        received.append(msg.toString(StandardCharsets.US_ASCII));
+                    }
+                })
+                .connect(address).sync().channel();
+    }
+
+    private static ByteBuf ascii(String input) {
+        return Unpooled.copiedBuffer(input, StandardCharsets.US_ASCII);
+    }
+
+    private static String await(StringBuffer received, int length) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received.length() < length && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50); // nothing unexpected follows
+        return received.toString();
+    }
+}
@@ -0,0 +1,149 @@
+package svs.memcached.server;
+
+import org.junit.Before;
+import org.junit.Test;
+import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.StoredValue;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for meta protocol semantics: return flags, quiet mode, stale-while-revalidate and recache tokens
+ */
+public class MetaCommandTest {
+
+    MemcacheCommandProcessor processor;
+
+    @Before
+    public void initProcessor() {
+        processor = new MemcacheCommandProcessor(new LocalCache(100, 100000, 1, false));
+    }
+
+    @Test
+    public void testGetReturnFlags() throws Exception {
+        assertEquals("EN", get("mg foo v"));
+        assertEquals("HD", set("ms foo T100 F5", "bar"));
+        MemcacheOutboundCommand result = process("mg foo v t f s k O42", null);
+        assertTrue(result.getMetaLine(), result.getMetaLine().matches("VA 3 t(99|100) f5 s3 kfoo O42"));
+        assertArrayEquals("bar".getBytes(StandardCharsets.US_ASCII), result.getValue().getData());
+        assertEquals("HD f5", get("mg foo f"));
+        assertEquals("EN O1 kbar", get("mg bar O1 k"));
+    }
+
+    @Test
+    public void testQuietMode() throws Exception {
+        assertNull(get("mg foo v q"));
+        assertNull(set("ms foo q", "bar"));
+        assertEquals("VA 3", get("mg foo v q"));
+        assertNull(get("md foo q"));
+        assertEquals("MN", get("mn"));
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        set("ms foo T100", "old");
+        assertEquals("HD", get("md foo I T30"));
+        assertEquals("VA 3 W X", get("mg foo v"));
+        assertEquals("Only one client must win the recache token", "VA 3 X Z", get("mg foo v"));
+        set("ms foo", "new");
+        assertEquals("VA 3", get("mg foo v"));
+    }
+
+    @Test
+    public void testVivifyOnMiss() throws Exception {
+        assertEquals("VA 0 W", get("mg foo v N30"));
+        assertEquals("VA 0 Z", get("mg foo v N30"));
+        set("ms foo", "bar");
+        assertEquals("VA 3", get("mg foo v N30"));
+    }
+
+    @Test
+    public void testEarlyRecache() throws Exception {
+        set("ms foo T100", "bar");
+        assertEquals("HD", get("mg foo R30"));
+        assertEquals("HD W", get("mg foo R200"));
+        assertEquals("HD Z", get("mg foo R200"));
+    }
+
+    @Test
+    public void testSetModes() throws Exception {
+        assertEquals("NS", set("ms foo MR", "bar"));
+        assertEquals("HD", set("ms foo ME", "bar"));
+        assertEquals("NS", set("ms foo ME", "baz"));
+        assertEquals("HD", set("ms foo MR", "baz"));
+        assertEquals("VA 3", get("mg foo v"));
+        assertEquals("HD kfoo", get("md foo k"));
+        assertEquals("NF", get("md foo"));
+    }
+
+    @Test
+    public void testExpiredReadKeepsValueSetMeanwhile() throws Exception {
+        final int now = (int) (System.currentTimeMillis() / 1000);
+        final StoredValue expired = new StoredValue("bar".getBytes(StandardCharsets.US_ASCII), 0, now - 10);
+        final StoredValue renewed = new StoredValue("bar".getBytes(StandardCharsets.US_ASCII), 0, now + 100);
+        final LocalCache cache = new LocalCache(100, 100000, 1, false) {
+            @Override
+            public StoredValue get(@Nonnull String key) {
+                final StoredValue result = super.get(key);
+                if (result == expired) {
+                    expired.retain(); // still being written to another client
+                    set(key, renewed); // same data, new TTL
+                }
+                return result;
+            }
+        };
+        processor = new MemcacheCommandProcessor(cache);
+        cache.set("foo", expired);
+
+        assertEquals("EN", get("mg foo v"));
+        assertSame("Value set meanwhile must not be removed as expired", renewed, cache.get("foo"));
+        expired.release();
+    }
+
+    @Test(expected = DecodingException.class)
+    public void testInvalidFlag() throws Exception {
+        get("mg foo v x");
+    }
+
+    private String get(String line) throws DecodingException {
+        return process(line, null).getMetaLine();
+    }
+
+    private String set(String line, String data) throws DecodingException {
+        return process(line, data).getMetaLine();
+    }
+
+    private MemcacheOutboundCommand process(String line, String data) throws DecodingException {
+        List<String> tokens = Arrays.asList(line.split(" "));
+        final MemcacheInboundCommand command;
+        switch (tokens.get(0)) {
+            case "mg":
+                command = MemcacheInboundCommand.newMetaGetCommand(tokens.get(1),
+                        MetaFlags.parse(tokens, 2, MetaFlags.GET_FLAGS));
+                break;
+            case "ms": {
+                MetaFlags meta = MetaFlags.parse(tokens, 2, MetaFlags.SET_FLAGS);
+                int targetTime = meta.getTtl() == MetaFlags.NONE ? 0 : MemcacheDecoder.targetTimeSec(meta.getTtl());
+                command = MemcacheInboundCommand.newMetaSetCommand(tokens.get(1),
+                        data.getBytes(StandardCharsets.US_ASCII), targetTime, meta);
+                break;
+            }
+            case "md":
+                command = MemcacheInboundCommand.newMetaDeleteCommand(tokens.get(1),
+                        MetaFlags.parse(tokens, 2, MetaFlags.DELETE_FLAGS));
+                break;
+            default:
+                command = MemcacheInboundCommand.newMetaNoopCommand();
+        }
+        return processor.process(command);
+    }
+}
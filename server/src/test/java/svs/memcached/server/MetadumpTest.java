@@ -0,0 +1,310 @@
+package svs.memcached.server;
+
+import com.google.common.collect.Iterators;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import svs.memcached.cache.ICache;
+import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.StoredValue;
+
+import javax.annotation.Nonnull;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for "lru_crawler metadump" streamed by the crawler thread over a real event loop
+ *
+ * Writes of the server connection pass a gate, so the test decides when a batch reaches the socket.
+ */
+public class MetadumpTest {
+
+    private final EventLoopGroup serverGroup = new DefaultEventLoopGroup(1);
+    private final EventLoopGroup clientGroup = new DefaultEventLoopGroup(1);
+    private final AtomicInteger crawled = new AtomicInteger();
+    // counts entries read by the crawler
+    private final ICache<StoredValue> cache = new LocalCache(10000, 100000, 1, false) {
+        @Nonnull
+        @Override
+        public Iterator<Map.Entry<String, StoredValue>> entries() {
+            return Iterators.transform(super.entries(), entry -> {
+                crawled.incrementAndGet();
+                return entry;
+            });
+        }
+    };
+    private final WriteGate gate = new WriteGate();
+    private final StringBuffer received = new StringBuffer();
+    private final LocalAddress address = new LocalAddress("metadump-" + System.nanoTime());
+    private volatile Channel accepted;
+    private Channel serverChannel;
+    private Channel client;
+
+    @Before
+    public void start() throws InterruptedException {
+        serverChannel = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) throws Exception {
+                        accepted = ch;
+                        ch.pipeline().addLast(gate, new MemcacheDecoder(), new MemcacheEncoder(),
+                                new MemcacheCommandHandler(cache));
+                    }
+                })
+                .bind(address).sync().channel();
+        client = connect();
+    }
+
+    private Channel connect() throws InterruptedException {
+        return new Bootstrap()
+                .group(clientGroup)
+                .channel(LocalChannel.class)
+                .handler(new SimpleChannelInboundHandler<ByteBuf>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+                        received.append(msg.toString(StandardCharsets.ISO_8859_1));
+                    }
+                })
+                .connect(address).sync().channel();
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        client.close().sync();
+        serverChannel.close().sync();
+        clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    public void testDumpIsWrittenBatchByBatch() throws InterruptedException {
+        final Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            cache.set("key" + i, new StoredValue(new byte[10], 0, 0));
+            keys.add("key" + i);
+        }
+        gate.hold();
+        send("lru_crawler metadump all\r\n");
+        int batches = 0;
+        do {
+            awaitHeld();
+            Thread.sleep(50);
+            assertEquals("Next batch must wait until the previous one is written", batches + 1, gate.written());
+            gate.releaseOne();
+            batches++;
+            final int released = batches;
+            await(() -> gate.written() > released || received.toString().endsWith("END\r\n"));
+        } while (!received.toString().endsWith("END\r\n"));
+        assertEquals("1000 entries are dumped in batches of 256", 4, batches);
+
+        final Set<String> dumped = new HashSet<>();
+        final List<String> lines = lines();
+        assertEquals("END", lines.remove(lines.size() - 1));
+        for (String line : lines) {
+            assertTrue(line, line.matches("key=key\\d+ exp=-1 la=\\d+ cas=0 fetch=no cls=1 size=1\\d\\d?"));
+            dumped.add(line.substring("key=".length(), line.indexOf(' ')));
+        }
+        assertEquals(1000, lines.size());
+        assertEquals(keys, dumped);
+    }
+
+    @Test
+    public void testPipelinedCommandsAreAnsweredAfterDump() throws InterruptedException {
+        for (int i = 0; i < 300; i++) {
+            cache.set("key" + i, new StoredValue(new byte[]{'x'}, 0, 0));
+        }
+        gate.hold();
+        send("lru_crawler metadump all\r\nget key0\r\nmn\r\n");
+        awaitHeld();
+        Thread.sleep(50);
+        assertEquals("Responses behind the dump must wait for it", 1, gate.written());
+        gate.open();
+
+        final String expectedTail = "END\r\nVALUE key0 0 1\r\nx\r\nEND\r\nMN\r\n";
+        await(() -> received.toString().endsWith(expectedTail));
+        final String output = received.toString();
+        assertEquals(expectedTail, output.substring(output.indexOf("END\r\n")));
+        assertEquals(300, output.split("key=").length - 1);
+    }
+
+    @Test
+    public void testKeysAreUrlEncodedAndExpiredEntriesSkipped() throws InterruptedException {
+        final int now = (int) (System.currentTimeMillis() / 1000);
+        cache.set("caf\u00e9/1%", new StoredValue(new byte[3], 5, 0));
+        cache.set("a-b.c_d~e", new StoredValue(new byte[3], 0, now + 1000));
+        cache.set("expired", new StoredValue(new byte[3], 0, now - 10));
+        send("lru_crawler metadump all\r\n");
+        await(() -> received.toString().endsWith("END\r\n"));
+
+        final List<String> lines = lines();
+        assertEquals(3, lines.size());
+        final String encoded = lines.get(0).startsWith("key=caf") ? lines.get(0) : lines.get(1);
+        final String unreserved = lines.get(0).startsWith("key=caf") ? lines.get(1) : lines.get(0);
+        assertTrue(encoded, encoded.startsWith("key=caf%E9%2F1%25 exp=-1 "));
+        assertTrue(encoded, encoded.endsWith(" size=10"));
+        assertTrue(unreserved, unreserved.startsWith("key=a-b.c_d~e exp=" + (now + 1000) + " "));
+        assertEquals("END", lines.get(2));
+    }
+
+    @Test
+    public void testDumpIsAbortedWhenConnectionCloses() throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            cache.set("key" + i, new StoredValue(new byte[10], 0, 0));
+        }
+        gate.hold();
+        send("lru_crawler metadump all\r\n");
+        awaitHeld();
+        final ByteBuf batch = gate.peek();
+        accepted.close().sync();
+
+        Thread.sleep(100);
+        assertEquals("Crawler must stop after the write failed", 256, crawled.get());
+        assertEquals("Queued batch must be released", 0, batch.refCnt());
+        assertFalse(received.toString().contains("key="));
+
+        // the crawler thread is shared by all connections, it must not be stuck with the aborted dump
+        gate.open();
+        client = connect();
+        send("lru_crawler metadump all\r\n");
+        await(() -> received.toString().endsWith("END\r\n"));
+        assertEquals(1000, received.toString().split("key=").length - 1);
+    }
+
+    private void send(String input) {
+        client.writeAndFlush(Unpooled.copiedBuffer(input, StandardCharsets.ISO_8859_1));
+    }
+
+    private List<String> lines() {
+        return new ArrayList<>(Arrays.asList(received.toString().split("\r?\n")));
+    }
+
+    private void awaitHeld() throws InterruptedException {
+        await(() -> gate.held() > 0);
+    }
+
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out, received: " + received, System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Holds writes until released; fails held writes when the channel is closed
+     */
+    private static final class WriteGate extends ChannelOutboundHandlerAdapter {
+
+        private final ArrayDeque<Object[]> queue = new ArrayDeque<>();
+        private final AtomicInteger written = new AtomicInteger();
+        private volatile ChannelHandlerContext ctx;
+        private volatile boolean holding;
+
+        @Override
+        public boolean isSharable() {
+            return true;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            this.ctx = ctx;
+            written.incrementAndGet();
+            if (holding) {
+                synchronized (queue) {
+                    queue.add(new Object[]{msg, promise});
+                }
+            } else {
+                ctx.write(msg, promise);
+            }
+        }
+
+        @Override
+        public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+            synchronized (queue) {
+                Object[] held;
+                while ((held = queue.poll()) != null) {
+                    ReferenceCountUtil.release(held[0]);
+                    ((ChannelPromise) held[1]).setFailure(new ClosedChannelException());
+                }
+            }
+            ctx.close(promise);
+        }
+
+        void hold() {
+            holding = true;
+        }
+
+        void open() {
+            holding = false;
+            ctx.executor().execute(() -> {
+                while (releaseHead()) {
+                    // keep going
+                }
+            });
+        }
+
+        void releaseOne() {
+            ctx.executor().execute(this::releaseHead);
+        }
+
+        private boolean releaseHead() {
+            final Object[] held;
+            synchronized (queue) {
+                held = queue.poll();
+            }
+            if (held != null) {
+                ctx.writeAndFlush(held[0], (ChannelPromise) held[1]);
+            }
+            return held != null;
+        }
+
+        int held() {
+            synchronized (queue) {
+                return queue.size();
+            }
+        }
+
+        int written() {
+            return written.get();
+        }
+
+        ByteBuf peek() {
+            synchronized (queue) {
+                return (ByteBuf) queue.peek()[0];
+            }
+        }
+    }
+}
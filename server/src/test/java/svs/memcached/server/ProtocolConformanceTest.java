@@ -0,0 +1,197 @@
+package svs.memcached.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Text protocol conformance: every case is replayed in one chunk, split at every position, byte by byte and in
+ * random chunks, and must produce the same responses regardless of how TCP fragments the input
+ */
+public class ProtocolConformanceTest {
+
+    // inputs up to this size are also split at every position and sent byte by byte
+    private static final int EXHAUSTIVE_SPLIT_LIMIT = 512;
+    private static final int RANDOM_SPLITS = 20;
+
+    @Test
+    public void testStorageAndRetrieval() {
+        check("get foo\r\n", "END\r\n");
+        check("set foo 5 0 3\r\nbar\r\nget foo\r\n", "STORED\r\nVALUE foo 5 3\r\nbar\r\nEND\r\n");
+        check("set foo 0 0 0\r\n\r\nget foo\r\n", "STORED\r\nVALUE foo 0 0\r\n\r\nEND\r\n");
+        // data block is binary: line terminators inside it are data
+        check("set foo 0 0 4\r\n\r\n\r\n\r\nget foo\r\n", "STORED\r\nVALUE foo 0 4\r\n\r\n\r\n\r\nEND\r\n");
+        // flags are 32 bit unsigned
+        check("set foo 4294967295 0 1\r\nx\r\nget foo\r\nms bar 1 F4294967295\r\ny\r\nmg bar f\r\n",
+                "STORED\r\nVALUE foo 4294967295 1\r\nx\r\nEND\r\nHD\r\nHD f4294967295\r\n");
+        check("set foo -1 0 1\r\nx\r\nget foo\r\n", "CLIENT_ERROR bad command line format\r\nERROR\r\nEND\r\n");
+        check("set foo 1 0 1\r\nx\r\nset foo 2 0 2\r\nyy\r\nget foo\r\n", "STORED\r\nSTORED\r\nVALUE foo 2 2\r\nyy\r\nEND\r\n");
+        // negative expiration time expires the item immediately
+        check("set foo 0 0 1\r\nx\r\nset foo 0 -1 1\r\ny\r\nget foo\r\n", "STORED\r\nSTORED\r\nEND\r\n");
+    }
+
+    @Test
+    public void testLineFormat() {
+        check("get foo\n", "END\r\n");
+        check("get   foo  \r\n", "END\r\n");
+        check("set foo 0 0 1\nx\r\nget foo\n", "STORED\r\nVALUE foo 0 1\r\nx\r\nEND\r\n");
+        check("get " + repeat('k', MemcacheDecoder.MAX_KEY_LENGTH) + "\r\n", "END\r\n");
+    }
+
+    @Test
+    public void testUnknownCommands() {
+        check("\r\n", "ERROR\r\n");
+        check("   \r\n", "ERROR\r\n");
+        check("foo bar\r\nget foo\r\n", "ERROR\r\nEND\r\n");
+        check("GET foo\r\n", "ERROR\r\n");
+        check("gets foo\r\n", "ERROR\r\n");
+    }
+
+    @Test
+    public void testMalformedCommands() {
+        check("get\r\nget foo\r\n", "CLIENT_ERROR bad command line format\r\nEND\r\n");
+        check("get " + repeat('k', MemcacheDecoder.MAX_KEY_LENGTH + 1) + "\r\nget foo\r\n",
+                "CLIENT_ERROR key too long\r\nEND\r\n");
+        check("set foo 0 0\r\nget foo\r\n", "CLIENT_ERROR bad command line format\r\nEND\r\n");
+        check("set foo x 0 1\r\nget foo\r\n", "CLIENT_ERROR bad command line format\r\nEND\r\n");
+        check("set foo 0 0 -1\r\nget foo\r\n", "CLIENT_ERROR bad data chunk\r\nEND\r\n");
+        check("set foo 0 0 99999999999\r\nget foo\r\n", "CLIENT_ERROR bad command line format\r\nEND\r\n");
+        // data length which overflows when the trailing \r\n is added
+        check("set foo 0 0 2147483647\r\nget foo\r\n", "CLIENT_ERROR bad data chunk\r\nEND\r\n");
+        check("ms foo 2147483647 Q\r\nmn\r\n", "CLIENT_ERROR invalid flag\r\nMN\r\n");
+        check("lru_crawler foo\r\nmn\r\n", "CLIENT_ERROR unsupported lru_crawler command\r\nMN\r\n");
+    }
+
+    @Test
+    public void testBadDataChunk() {
+        // data longer than declared: the rest of the line is swallowed
+        check("set foo 0 0 3\r\nbarx\r\nget foo\r\n", "CLIENT_ERROR bad data chunk\r\nEND\r\n");
+        check("set foo 0 0 3\r\nbarxyz\r\nget foo\r\n", "CLIENT_ERROR bad data chunk\r\nEND\r\n");
+        // no \n after data: decoder resyncs on the next line
+        check("set foo 0 0 3\r\nbar\rxjunk\r\nget foo\r\n", "CLIENT_ERROR bad data chunk\r\nEND\r\n");
+        check("set foo 0 0 3\r\nbar\nget foo\r\nget foo\r\n", "CLIENT_ERROR bad data chunk\r\nEND\r\n");
+    }
+
+    @Test
+    public void testTooLarge() {
+        final int size = MemcacheDecoder.MAX_DATA_SIZE + 1;
+        // data block of rejected command is swallowed, even if it looks like commands
+        String data = repeat("get foo\r\n", size / 9) + repeat('x', size % 9);
+        check("set foo 0 0 " + size + "\r\n" + data + "\r\nget foo\r\n",
+                "CLIENT_ERROR object too large for cache\r\nEND\r\n");
+        check("ms foo " + size + " T0\r\n" + data + "\r\nmg foo v\r\n",
+                "CLIENT_ERROR object too large for cache\r\nEN\r\n");
+        String max = repeat('x', MemcacheDecoder.MAX_DATA_SIZE);
+        check("set foo 0 0 " + max.length() + "\r\n" + max + "\r\nmg foo s\r\n",
+                "STORED\r\nHD s" + max.length() + "\r\n");
+    }
+
+    @Test
+    public void testTooLongLine() {
+        String line = "get " + repeat('k', MemcacheDecoder.MAX_LINE_LENGTH);
+        check(line + "\r\nget foo\r\n", "CLIENT_ERROR line too long\r\nEND\r\n");
+        check(line + "\nget foo\r\n", "CLIENT_ERROR line too long\r\nEND\r\n");
+        check(repeat("k", 3 * MemcacheDecoder.MAX_LINE_LENGTH) + "\r\nmn\r\n", "CLIENT_ERROR line too long\r\nMN\r\n");
+    }
+
+    @Test
+    public void testMetaCommands() {
+        check("ms foo 3 T0 F7\r\nbar\r\nmg foo v f s k O9\r\n", "HD\r\nVA 3 f7 s3 kfoo O9\r\nbar\r\n");
+        check("ms foo 3 ME\r\nbar\r\nms foo 3 ME\r\nbaz\r\nmg foo v\r\n", "HD\r\nNS\r\nVA 3\r\nbar\r\n");
+        check("ms foo 3 MR\r\nbar\r\nmg foo v q\r\nmn\r\n", "NS\r\nMN\r\n");
+        check("ms foo 1 q\r\nx\r\nmd foo\r\nmd foo q\r\nmd foo\r\nmn\r\n", "HD\r\nNF\r\nMN\r\n");
+        check("mg foo k O1\r\nmn\r\n", "EN kfoo O1\r\nMN\r\n");
+        check("mg foo x\r\nmn\r\n", "CLIENT_ERROR invalid flag\r\nMN\r\n");
+        check("mg foo T\r\nmn\r\n", "CLIENT_ERROR bad token in command line format\r\nMN\r\n");
+        // data block of ms with bad flags is swallowed
+        check("ms foo 6 Z\r\nmn\r\nmn\r\nmn\r\n", "CLIENT_ERROR invalid flag\r\nMN\r\n");
+        check("ms foo bar\r\nmn\r\n", "CLIENT_ERROR bad data chunk\r\nMN\r\n");
+        check("ms\r\nmn\r\n", "CLIENT_ERROR bad command line format\r\nMN\r\n");
+    }
+
+    @Test
+    public void testStats() {
+        check("stats nosuchgroup\r\n", "END\r\n");
+        try (CodecHarness harness = new CodecHarness()) {
+            String stats = harness.send("stats\r\n");
+            assertTrue(stats, stats.matches("(STAT \\S+ \\S+\r\n)+END\r\n"));
+        }
+    }
+
+    @Test
+    public void testPipelinedMix() {
+        check("set a 0 0 1\r\n1\r\nget\r\nms b 1\r\n2\r\nbogus\r\nmg a v\r\nget b\r\nmd a\r\nmg a\r\n",
+                "STORED\r\nCLIENT_ERROR bad command line format\r\nHD\r\nERROR\r\nVA 1\r\n1\r\n"
+                        + "VALUE b 0 1\r\n2\r\nEND\r\nHD\r\nEN\r\n");
+    }
+
+    /**
+     * Replays the input split in many ways and checks responses don't depend on the split
+     */
+    private static void check(String input, String expected) {
+        final byte[] bytes = CodecHarness.bytes(input);
+        assertEquals(abbreviate(input), expected, send(bytes));
+        if (bytes.length <= EXHAUSTIVE_SPLIT_LIMIT) {
+            for (int i = 1; i < bytes.length; i++) {
+                assertEquals("split at " + i + ": " + abbreviate(input), expected,
+                        send(Arrays.copyOfRange(bytes, 0, i), Arrays.copyOfRange(bytes, i, bytes.length)));
+            }
+            final byte[][] single = new byte[bytes.length][];
+            for (int i = 0; i < bytes.length; i++) {
+                single[i] = new byte[]{bytes[i]};
+            }
+            assertEquals("byte by byte: " + abbreviate(input), expected, send(single));
+        }
+        final Random random = new Random(input.hashCode());
+        for (int i = 0; i < RANDOM_SPLITS; i++) {
+            final long seed = random.nextLong();
+            assertEquals("random split, seed " + seed + ": " + abbreviate(input), expected,
+                    send(split(bytes, new Random(seed))));
+        }
+    }
+
+    private static String send(byte[]... chunks) {
+        try (CodecHarness harness = new CodecHarness()) {
+            final String output = harness.send(chunks);
+            assertTrue(harness.isOpen());
+            return output;
+        }
+    }
+
+    /**
+     * Splits input into chunks of random size, mostly small ones
+     */
+    static byte[][] split(byte[] input, Random random) {
+        final int maxChunk = random.nextBoolean() ? 8 : Math.max(1, input.length / 4);
+        final List<byte[]> chunks = new ArrayList<>();
+        for (int i = 0; i < input.length; ) {
+            final int length = Math.min(input.length - i, 1 + random.nextInt(maxChunk));
+            chunks.add(Arrays.copyOfRange(input, i, i + length));
+            i += length;
+        }
+        return chunks.toArray(new byte[chunks.size()][]);
+    }
+
+    static String repeat(char c, int count) {
+        return repeat(String.valueOf(c), count);
+    }
+
+    static String repeat(String s, int count) {
+        final StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static String abbreviate(String input) {
+        final String escaped = input.replace("\r", "\\r").replace("\n", "\\n");
+        return escaped.length() > 100 ? escaped.substring(0, 100) + "..." : escaped;
+    }
+}
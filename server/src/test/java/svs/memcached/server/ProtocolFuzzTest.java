@@ -0,0 +1,427 @@
+package svs.memcached.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Seeded fuzzing of the text protocol pipeline
+ *
+ * Malformed input must produce well-formed responses only, must not wedge the connection (it resyncs once the
+ * declared data blocks are consumed) and must not leak buffers. Valid command sequences are checked against a
+ * simple model of the protocol (differential testing). A failure message has the seed to reproduce it with.
+ */
+public class ProtocolFuzzTest {
+
+    private static final long SEED = 0x5eed2017L;
+    private static final int MALFORMED_RUNS = 1500;
+    private static final int ERROR_RUNS = 2000;
+    private static final int DIFFERENTIAL_RUNS = 300;
+    private static final int COMMANDS_PER_RUN = 40;
+
+    // data blocks this big are swallowed for too long to wait for resync
+    private static final long MAX_SYNC_BYTES = 4 * MemcacheDecoder.MAX_DATA_SIZE;
+    private static final int FILLER_SIZE = 64 * 1024;
+
+    private static final String[] KEYS = {"a", "b", "k1", "k2", "key:3", "été"};
+    private static final String[] NUMBERS = {"0", "1", "3", "-1", "-2", "10", "250", "251", "2048",
+            "1048576", "1048577", "2147483646", "2147483647", "2147483648", "4294967295", "4294967296",
+            "99999999999", "0x10", "1e3", "", "+1"};
+    private static final String[] COMMANDS = {"get", "set", "mg", "ms", "md", "mn", "stats", "lru_crawler"};
+    private static final String[] LINE_COMMANDS = {"get", "mg", "md", "mn", "stats", "lru_crawler"};
+    private static final String FUZZ_BYTES = "abkvqTFMOIN \t\r\n0123456789-\u0000ÿ";
+
+    private static final Pattern VALUE_LINE = Pattern.compile("VALUE [^ ]+ \\d+ (\\d+)");
+    private static final Pattern VA_LINE = Pattern.compile("VA (\\d+)( [^ ]+)*");
+    private static final Pattern OTHER_LINE = Pattern.compile(
+            "END|STORED|ERROR|CLIENT_ERROR .+|(HD|NS|EN|NF)( [^ ]+)*|MN|STAT [^ ]+ .*");
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    @Test
+    public void testMalformedInput() {
+        final Random seeds = new Random(SEED);
+        int synced = 0;
+        for (int run = 0; run < MALFORMED_RUNS; run++) {
+            final long seed = seeds.nextLong();
+            final Random random = new Random(seed);
+            final String input = mutate(random, validCommands(random, 1 + random.nextInt(6)));
+            final String message = "seed " + seed + ", input: " + escape(input);
+            try (CodecHarness harness = new CodecHarness()) {
+                final StringBuilder output = new StringBuilder(harness.send(
+                        ProtocolConformanceTest.split(CodecHarness.bytes(input), random)));
+                if (sync(harness, input, output, "mg sync" + run + " k\r\n", "EN ksync" + run + "\r\n")) {
+                    synced++;
+                }
+                assertTrue(message, harness.isOpen());
+                assertWellFormed(message, output.toString());
+            } catch (AssertionError | RuntimeException e) {
+                throw new AssertionError(message, e);
+            }
+        }
+        assertTrue("only " + synced + " runs checked for resync", synced > MALFORMED_RUNS * 9 / 10);
+    }
+
+    @Test
+    public void testErrorSemantics() {
+        final Random seeds = new Random(SEED + 1);
+        for (int run = 0; run < ERROR_RUNS; run++) {
+            final long seed = seeds.nextLong();
+            final Random random = new Random(seed);
+            final boolean known = random.nextBoolean();
+            final StringBuilder line = new StringBuilder(known ? pick(random, LINE_COMMANDS) : unknownCommand(random));
+            final int arguments = random.nextInt(5);
+            for (int i = 0; i < arguments; i++) {
+                line.append(' ').append(random.nextBoolean() ? pick(random, NUMBERS) : randomToken(random));
+            }
+            line.append("\r\n");
+            final String message = "seed " + seed + ", input: " + escape(line.toString());
+            try (CodecHarness harness = new CodecHarness()) {
+                final String output = harness.send(line.toString());
+                if (known) {
+                    // known command with bad arguments is a client error, not an unknown command
+                    assertNotEquals(message, "ERROR\r\n", output);
+                    assertWellFormed(message, output);
+                    assertTrue(message, output.endsWith("\r\n") && (output.indexOf("\r\n") == output.length() - 2
+                            || output.endsWith("END\r\n")));
+                } else {
+                    assertEquals(message, "ERROR\r\n", output);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDifferentialAgainstModel() {
+        final Random seeds = new Random(SEED + 2);
+        for (int run = 0; run < DIFFERENTIAL_RUNS; run++) {
+            final long seed = seeds.nextLong();
+            final Random random = new Random(seed);
+            final Model model = new Model();
+            final StringBuilder input = new StringBuilder();
+            final StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < COMMANDS_PER_RUN; i++) {
+                model.next(random, input, expected);
+            }
+            try (CodecHarness harness = new CodecHarness()) {
+                final String output = harness.send(ProtocolConformanceTest.split(
+                        CodecHarness.bytes(input.toString()), random));
+                assertSameOutput("seed " + seed + ", input: " + escape(input.toString()), expected.toString(), output);
+            }
+        }
+    }
+
+    /**
+     * Sends a line break and the sentinel command, then data filler while it isn't answered, until the decoder is
+     * back in sync; it must be once the filler is longer than any data block declared in the input
+     * @return false if the input may declare too long data block to wait for and the decoder didn't resync
+     */
+    private static boolean sync(CodecHarness harness, String input, StringBuilder output, String sentinel,
+                                String response) {
+        long declared = 0;
+        final Matcher matcher = NUMBER.matcher(input);
+        while (matcher.find()) {
+            declared = Math.max(declared, matcher.group().length() > 12 ? Long.MAX_VALUE
+                    : Long.parseLong(matcher.group()));
+        }
+        final long limit = Math.min(declared, MAX_SYNC_BYTES) + 2 * MemcacheDecoder.MAX_LINE_LENGTH;
+        final byte[] filler = new byte[FILLER_SIZE];
+        Arrays.fill(filler, (byte) 'x');
+        for (long sent = 0; ; sent += filler.length) {
+            output.append(harness.send("\r\n" + sentinel));
+            if (output.toString().endsWith(response)) {
+                return true;
+            }
+            if (sent > limit) {
+                assertTrue("connection doesn't resync, output: " + escape(output.toString()),
+                        declared > MAX_SYNC_BYTES);
+                return false;
+            }
+            output.append(harness.send(filler));
+        }
+    }
+
+    /**
+     * Compares the outputs, reporting where they start to differ rather than whole outputs
+     */
+    private static void assertSameOutput(String message, String expected, String actual) {
+        int i = 0;
+        while (i < expected.length() && i < actual.length() && expected.charAt(i) == actual.charAt(i)) {
+            i++;
+        }
+        if (i < expected.length() || i < actual.length()) {
+            final int from = Math.max(0, expected.lastIndexOf("\r\n", Math.max(0, i - 2)) - 100);
+            assertEquals(message + ", outputs differ at " + i,
+                    escape(expected.substring(from, Math.min(expected.length(), i + 100))),
+                    escape(actual.substring(Math.min(from, actual.length()), Math.min(actual.length(), i + 100))));
+        }
+    }
+
+    /**
+     * Checks the output is a sequence of valid response lines and data blocks
+     */
+    private static void assertWellFormed(String message, String output) {
+        int position = 0;
+        while (position < output.length()) {
+            final int end = output.indexOf("\r\n", position);
+            assertTrue(message + ", unterminated response: " + escape(output.substring(position)), end >= 0);
+            final String line = output.substring(position, end);
+            position = end + 2;
+            Matcher matcher = VALUE_LINE.matcher(line);
+            if (!matcher.matches()) {
+                matcher = VA_LINE.matcher(line);
+            }
+            if (matcher.matches()) {
+                position += Integer.parseInt(matcher.group(1));
+                assertTrue(message + ", bad data block: " + escape(output), output.startsWith("\r\n", position));
+                position += 2;
+            } else {
+                assertTrue(message + ", bad response line: " + escape(line), OTHER_LINE.matcher(line).matches());
+            }
+        }
+    }
+
+    private static String validCommands(Random random, int count) {
+        final StringBuilder input = new StringBuilder();
+        final Model model = new Model();
+        for (int i = 0; i < count; i++) {
+            model.next(random, input, new StringBuilder());
+        }
+        return input.toString();
+    }
+
+    /**
+     * Applies a few random edits: byte insertion, deletion and replacement, token replacement, duplication,
+     * truncation
+     */
+    private static String mutate(Random random, String input) {
+        final StringBuilder sb = new StringBuilder(input);
+        final int edits = 1 + random.nextInt(4);
+        for (int i = 0; i < edits; i++) {
+            if (sb.length() == 0) {
+                break;
+            }
+            final int position = random.nextInt(sb.length());
+            switch (random.nextInt(7)) {
+                case 0: sb.insert(position, FUZZ_BYTES.charAt(random.nextInt(FUZZ_BYTES.length()))); break;
+                case 1: sb.deleteCharAt(position); break;
+                case 2: sb.setCharAt(position, (char) random.nextInt(256)); break;
+                case 3: sb.insert(position, " " + pick(random, NUMBERS) + " "); break;
+                case 4: sb.insert(position, pick(random, COMMANDS) + " "); break;
+                case 5: sb.insert(position, sb.substring(position, Math.min(sb.length(), position + 16))); break;
+                default: sb.setLength(position); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unknownCommand(Random random) {
+        String word;
+        do {
+            word = randomToken(random);
+        } while (Arrays.asList(COMMANDS).contains(word));
+        return word;
+    }
+
+    private static String randomToken(Random random) {
+        final String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_:-";
+        final StringBuilder sb = new StringBuilder();
+        final int length = 1 + random.nextInt(8);
+        for (int i = 0; i < length; i++) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static String escape(String s) {
+        final StringBuilder sb = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c < ' ' || c > '~') {
+                sb.append(String.format("\\x%02x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.length() > 2000 ? sb.substring(0, 2000) + "..." : sb.toString();
+    }
+
+    /**
+     * Reference model of the protocol: generates random valid commands and the responses they must get
+     */
+    private static final class Model {
+
+        private final Map<String, byte[]> data = new HashMap<>();
+        private final Map<String, Long> flags = new HashMap<>();
+
+        void next(Random random, StringBuilder input, StringBuilder expected) {
+            final String key = pick(random, KEYS);
+            switch (random.nextInt(7)) {
+                case 0: {
+                    final long flag = random.nextBoolean() ? random.nextInt(10) : random.nextInt() & 0xffffffffL;
+                    final boolean expired = random.nextInt(8) == 0;
+                    final byte[] value = randomData(random);
+                    input.append("set ").append(key).append(' ').append(flag).append(expired ? " -1 " : " 0 ")
+                            .append(value.length).append("\r\n").append(string(value)).append("\r\n");
+                    store(key, expired ? null : value, flag);
+                    expected.append("STORED\r\n");
+                    break;
+                }
+                case 1: {
+                    input.append("get ").append(key).append("\r\n");
+                    if (data.containsKey(key)) {
+                        expected.append("VALUE ").append(key).append(' ').append(flags.get(key)).append(' ')
+                                .append(data.get(key).length).append("\r\n").append(string(data.get(key)))
+                                .append("\r\n");
+                    }
+                    expected.append("END\r\n");
+                    break;
+                }
+                case 2:
+                case 3: {
+                    metaSet(random, key, input, expected);
+                    break;
+                }
+                case 4: {
+                    metaGet(random, key, input, expected);
+                    break;
+                }
+                case 5: {
+                    final boolean quiet = random.nextBoolean();
+                    input.append("md ").append(key).append(quiet ? " q" : "").append("\r\n");
+                    final boolean found = data.containsKey(key);
+                    store(key, null, 0);
+                    if (!quiet) {
+                        expected.append(found ? "HD\r\n" : "NF\r\n");
+                    }
+                    break;
+                }
+                default: {
+                    input.append("mn\r\n");
+                    expected.append("MN\r\n");
+                }
+            }
+        }
+
+        private void metaSet(Random random, String key, StringBuilder input, StringBuilder expected) {
+            final byte[] value = randomData(random);
+            final long flag = random.nextInt(3) == 0 ? random.nextInt() & 0xffffffffL : 0;
+            final char mode = "SSER".charAt(random.nextInt(4));
+            final boolean quiet = random.nextBoolean();
+            input.append("ms ").append(key).append(' ').append(value.length);
+            if (flag != 0) {
+                input.append(" F").append(flag);
+            }
+            if (mode != 'S' || random.nextBoolean()) {
+                input.append(" M").append(random.nextBoolean() ? mode : Character.toLowerCase(mode));
+            }
+            if (quiet) {
+                input.append(" q");
+            }
+            input.append("\r\n").append(string(value)).append("\r\n");
+            final boolean stored = mode == 'S' || (mode == 'E') != data.containsKey(key);
+            if (stored) {
+                store(key, value, flag);
+            }
+            if (!stored) {
+                expected.append("NS\r\n");
+            } else if (!quiet) {
+                expected.append("HD\r\n");
+            }
+        }
+
+        private void metaGet(Random random, String key, StringBuilder input, StringBuilder expected) {
+            input.append("mg ").append(key);
+            final boolean value = random.nextBoolean();
+            final boolean quiet = random.nextInt(4) == 0;
+            final StringBuilder returned = new StringBuilder();
+            final StringBuilder returnedOnMiss = new StringBuilder();
+            final byte[] current = data.get(key);
+            for (char flag : "vfskOc".toCharArray()) {
+                if (random.nextInt(3) != 0) {
+                    continue;
+                }
+                switch (flag) {
+                    case 'v': break;
+                    case 'O': {
+                        final int opaque = random.nextInt(1000);
+                        input.append(" O").append(opaque);
+                        returned.append(" O").append(opaque);
+                        returnedOnMiss.append(" O").append(opaque);
+                        break;
+                    }
+                    case 'k': {
+                        input.append(" k");
+                        returned.append(" k").append(key);
+                        returnedOnMiss.append(" k").append(key);
+                        break;
+                    }
+                    default: {
+                        input.append(' ').append(flag);
+                        if (current != null) {
+                            returned.append(' ').append(flag).append(flag == 'f' ? flags.get(key).toString()
+                                    : flag == 's' ? Integer.toString(current.length) : "0");
+                        }
+                    }
+                }
+            }
+            if (value) {
+                input.append(" v");
+            }
+            if (quiet) {
+                input.append(" q");
+            }
+            input.append("\r\n");
+            if (current == null) {
+                if (!quiet) {
+                    expected.append("EN").append(returnedOnMiss).append("\r\n");
+                }
+            } else if (value) {
+                expected.append("VA ").append(current.length).append(returned).append("\r\n")
+                        .append(string(current)).append("\r\n");
+            } else {
+                expected.append("HD").append(returned).append("\r\n");
+            }
+        }
+
+        private void store(String key, byte[] value, long flag) {
+            if (value == null) {
+                data.remove(key);
+                flags.remove(key);
+            } else {
+                data.put(key, value);
+                flags.put(key, flag);
+            }
+        }
+
+        private static byte[] randomData(Random random) {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final int length = random.nextInt(4) == 0 ? 0 : random.nextInt(random.nextBoolean() ? 8 : 300);
+            for (int i = 0; i < length; i++) {
+                data.write(random.nextInt(4) == 0 ? "\r\n".charAt(random.nextInt(2)) : random.nextInt(256));
+            }
+            return data.toByteArray();
+        }
+
+        private static String string(byte[] data) {
+            return new String(data, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package svs.memcached.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for configuration parsing and precedence
+ */
+public class ServerConfigTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDefaults() throws IOException {
+        ServerConfig config = ServerConfig.parse(new String[0]);
+        assertEquals(11211, config.getPort());
+        assertEquals(ServerConfig.BACKEND_LOCAL, config.getCacheBackend());
+        assertEquals(1000000, config.getCacheMaxItems());
+        assertEquals(0, config.getCacheMaxMemoryBytes());
+        assertNull(config.getListenAddress());
+        assertNull(config.getConfigFile());
+        assertTrue(config.isCachePooledValues());
+        assertEquals(false, config.isCacheExpireOnMemoryPressure());
+    }
+
+    @Test
+    public void testSoftValuesRequireHeapValues() throws IOException {
+        try {
+            ServerConfig.parse(new String[]{"-o", "cache.soft.values=true"});
+            fail("Soft values can't be pooled");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("cache.pooled.values=false"));
+        }
+        ServerConfig config = ServerConfig.parse(new String[]{"-o", "cache.soft.values=true",
+                "-o", "cache.pooled.values=false"});
+        assertTrue(config.isCacheExpireOnMemoryPressure());
+    }
+
+    @Test
+    public void testMemcachedFlags() throws IOException {
+        ServerConfig config = ServerConfig.parse(new String[]{"11300", "-m", "64", "-c", "10", "-t", "3", "-b", "50",
+                "-l", "127.0.0.1", "-v", "-o", "io.threads=2"});
+        assertEquals(11300, config.getPort());
+        assertEquals(64L * 1024 * 1024, config.getCacheMaxMemoryBytes());
+        assertEquals(10, config.getMaxConnections());
+        assertEquals(3, config.getWorkerThreads());
+        assertEquals(50, config.getBacklog());
+        assertEquals(2, config.getIoThreads());
+        assertEquals("127.0.0.1", config.getListenAddress());
+        assertEquals("debug", config.getLogLevel());
+    }
+
+    @Test
+    public void testCommandLineOverridesFile() throws IOException {
+        File file = folder.newFile("server.yaml");
+        Files.write(file.toPath(), Arrays.asList("# flat yaml", "port: 11400", "worker.threads: 7",
+                "cache.max.items: 500"));
+        ServerConfig config = ServerConfig.parse(new String[]{"-f", file.getPath(), "-t", "2"});
+        assertEquals(11400, config.getPort());
+        assertEquals(2, config.getWorkerThreads());
+        assertEquals(500, config.getCacheMaxItems());
+    }
+
+    @Test
+    public void testReloadReportsRestartRequiredChanges() throws IOException {
+        File file = folder.newFile("server.properties");
+        Files.write(file.toPath(), Arrays.asList("max.connections=5", "log.level=info", "backlog=10"));
+        ServerConfig config = ServerConfig.parse(new String[]{"-f", file.getPath()});
+        Files.write(file.toPath(), Arrays.asList("max.connections=6", "log.level=warn", "backlog=10"));
+        ServerConfig fresh = config.reload();
+        assertEquals(6, fresh.getMaxConnections());
+        assertEquals(Collections.emptySet(), config.restartRequiredChanges(fresh));
+        Files.write(file.toPath(), Collections.singletonList("backlog=20"));
+        assertEquals(Collections.singleton(ServerConfig.BACKLOG), config.restartRequiredChanges(config.reload()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedValue() throws IOException {
+        ServerConfig.parse(new String[]{"-t", "many"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownBackend() throws IOException {
+        ServerConfig.parse(new String[]{"-o", "cache.backend=redis"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDefaultNamespaceNameIsReserved() throws IOException {
+        ServerConfig.parse(new String[]{"-o", "namespaces=tenantA,default"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDiskTierRequiresLocalBackend() throws IOException {
+        ServerConfig.parse(new String[]{"-o", "cache.backend=sharded", "-o", "tier.disk.path=/tmp/tier"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTlsRequiresKey() throws IOException {
+        ServerConfig.parse(new String[]{"-o", "tls.cert.file=/etc/memcached/cert.pem"});
+    }
+
+    @Test
+    public void testUnknownLogLevelIsRejectedOnReload() throws IOException {
+        File file = folder.newFile("server.properties");
+        Files.write(file.toPath(), Collections.singletonList("log.level=WARN"));
+        ServerConfig config = ServerConfig.parse(new String[]{"-f", file.getPath()});
+        Files.write(file.toPath(), Collections.singletonList("log.level=degub"));
+        try {
+            config.reload();
+            fail("Typo must not turn into the default level");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("degub"));
+        }
+    }
+
+    @Test
+    public void testTraceSampleRateIsCapped() throws IOException {
+        File file = folder.newFile("server.properties");
+        Files.write(file.toPath(), Collections.singletonList(
+                ServerConfig.TRACE_SAMPLE_RATE + "=" + ServerConfig.MAX_TRACE_SAMPLE_RATE));
+        ServerConfig config = ServerConfig.parse(new String[]{"-f", file.getPath()});
+        assertEquals(ServerConfig.MAX_TRACE_SAMPLE_RATE, config.getTraceSampleRate());
+        Files.write(file.toPath(), Collections.singletonList(
+                ServerConfig.TRACE_SAMPLE_RATE + "=" + (ServerConfig.MAX_TRACE_SAMPLE_RATE + 1)));
+        try {
+            config.reload();
+            fail("Sampling distance of the rate overflows");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(ServerConfig.TRACE_SAMPLE_RATE));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFlag() throws IOException {
+        ServerConfig.parse(new String[]{"-z"});
+    }
+}
@@ -0,0 +1,185 @@
+package svs.memcached.server;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.concurrent.EventExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import svs.memcached.cache.ICache;
+import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.ShardedCache;
+import svs.memcached.cache.StoredValue;
+
+import javax.annotation.Nonnull;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for response ordering of the shared-nothing handler
+ *
+ * Shards are owned by the loops of a real multi-loop group, so commands are executed inline on the channel loop or
+ * handed to another loop and back, depending on the key.
+ */
+public class ShardedCommandHandlerTest {
+
+    private static final int SHARDS = 4;
+
+    private EventLoopGroup serverGroup;
+    private EventLoopGroup clientGroup;
+    private Channel serverChannel;
+    private Channel client;
+    private final StringBuffer received = new StringBuffer();
+    private final Set<Thread> processingThreads = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void start() throws InterruptedException {
+        serverGroup = new DefaultEventLoopGroup(SHARDS);
+        clientGroup = new DefaultEventLoopGroup(1);
+        final ShardedCache<StoredValue> cache = new ShardedCache<>(SHARDS, i -> new LocalCache(10000, 60000, 1, false));
+        final EventExecutor[] owners = new EventExecutor[SHARDS];
+        final MemcacheCommandProcessor[] processors = new MemcacheCommandProcessor[SHARDS];
+        int i = 0;
+        for (EventExecutor executor : serverGroup) {
+            owners[i] = executor;
+            processors[i] = new FailingProcessor(cache.getShard(i));
+            i++;
+        }
+        final MemcacheCommandProcessor globalProcessor = new MemcacheCommandProcessor(cache);
+        final LocalAddress address = new LocalAddress("sharded-" + System.nanoTime());
+        serverChannel = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) throws Exception {
+                        ch.pipeline().addLast(new MemcacheDecoder(), new MemcacheEncoder(),
+                                new ShardedCommandHandler(cache, owners, processors, globalProcessor));
+                    }
+                })
+                .bind(address).sync().channel();
+        client = new Bootstrap()
+                .group(clientGroup)
+                .channel(LocalChannel.class)
+                .handler(new SimpleChannelInboundHandler<ByteBuf>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+                        received.append(msg.toString(StandardCharsets.US_ASCII));
+                    }
+                })
+                .connect(address).sync().channel();
+    }
+
+    @After
+    public void stop() throws InterruptedException {
+        client.close().sync();
+        serverChannel.close().sync();
+        clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    public void testPipelinedResponsesAreInRequestOrder() throws InterruptedException {
+        final StringBuilder expected = new StringBuilder();
+        for (int batch = 0; batch < 20; batch++) {
+            final StringBuilder input = new StringBuilder();
+            for (int i = batch * 50; i < (batch + 1) * 50; i++) {
+                // the same keys are overwritten again and again, so a reordered get returns a wrong value
+                final String key = "key:" + i % 16;
+                final String value = "value" + i;
+                input.append("set ").append(key).append(" 0 0 ").append(value.length()).append("\r\n")
+                        .append(value).append("\r\n").append("get ").append(key).append("\r\n");
+                expected.append("STORED\r\n").append("VALUE ").append(key).append(" 0 ").append(value.length())
+                        .append("\r\n").append(value).append("\r\nEND\r\n");
+                if (i % 25 == 0) {
+                    // command without key is executed inline between the shard hops
+                    input.append("bogus\r\n");
+                    expected.append("ERROR\r\n");
+                }
+            }
+            client.writeAndFlush(Unpooled.copiedBuffer(input, StandardCharsets.US_ASCII));
+        }
+        assertEquals(expected.toString(), await(expected.length()));
+        assertEquals("commands of every shard are executed on its owner", SHARDS, processingThreads.size());
+    }
+
+    @Test
+    public void testFailureIsReportedAfterEarlierResponses() throws InterruptedException {
+        testFailure("fail:");
+    }
+
+    @Test
+    public void testFailedPendingResultIsReportedAfterEarlierResponses() throws InterruptedException {
+        testFailure("pending-fail:");
+    }
+
+    private void testFailure(String failingPrefix) throws InterruptedException {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            input.append("set key:").append(i).append(" 0 0 1\r\nx\r\n");
+            if (i < 20) {
+                expected.append("STORED\r\n");
+            }
+            if (i == 19) {
+                input.append("get ").append(failingPrefix).append(i).append("\r\n");
+            }
+        }
+        // the connection is closed after the error, responses of later commands must not be taken for earlier ones
+        expected.append("SERVER_ERROR Failed ").append(failingPrefix).append(19).append("\r\n");
+        client.writeAndFlush(Unpooled.copiedBuffer(input, StandardCharsets.US_ASCII));
+        assertTrue(client.closeFuture().await(10, TimeUnit.SECONDS));
+        assertEquals(expected.toString(), received.toString());
+    }
+
+    private String await(int length) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (received.length() < length && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50); // nothing unexpected follows
+        return received.toString();
+    }
+
+    /**
+     * Fails commands for "fail:" keys and completes commands for "pending-fail:" keys with a failed future
+     */
+    private class FailingProcessor extends MemcacheCommandProcessor {
+
+        FailingProcessor(ICache<StoredValue> cache) {
+            super(cache);
+        }
+
+        @Nonnull
+        @Override
+        public MemcacheOutboundCommand process(@Nonnull MemcacheInboundCommand command) {
+            processingThreads.add(Thread.currentThread());
+            if (command.getKey().startsWith("fail:")) {
+                throw new IllegalStateException("Failed " + command.getKey());
+            }
+            if (command.getKey().startsWith("pending-fail:")) {
+                final CompletableFuture<MemcacheOutboundCommand> result = new CompletableFuture<>();
+                result.completeExceptionally(new IllegalStateException("Failed " + command.getKey()));
+                return MemcacheOutboundCommand.newPendingResult(result);
+            }
+            return super.process(command);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package svs.memcached.server;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import svs.memcached.cache.LocalCache;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static svs.memcached.server.CodecHarness.send;
+
+/**
+ * Tests for sampled request tracing and the slowlog
+ */
+public class SlowLogTest {
+
+    @Test
+    public void testSlowCommandsAreRecorded() throws IOException {
+        SlowLog slowLog = newSlowLog(1, 0, 10);
+        EmbeddedChannel channel = newChannel(slowLog);
+        send(channel, "set foo 0 0 3\r\nbar\r\nget foo\r\nget baz\r\n");
+        assertEquals(3, slowLog.getTraced());
+        assertEquals(3, slowLog.getRecorded());
+
+        String stats = send(channel, "stats slowlog\r\n");
+        assertTrue(stats, stats.startsWith("STAT trace_commands 3\r\nSTAT slowlog_commands 3\r\n"));
+        // the latest first
+        int miss = stats.indexOf("STAT slowlog:2 ");
+        int hit = stats.indexOf("STAT slowlog:1 ");
+        int set = stats.indexOf("STAT slowlog:0 ");
+        assertTrue(stats, miss > 0 && hit > miss && set > hit);
+        assertTrue(stats, stats.substring(set).matches("(?s)STAT slowlog:0 time=\\d+ client=\\S+ cmd=SET key=foo "
+                + "size=3 total_us=\\d+ decode_us=\\d+ queue_us=\\d+ process_us=\\d+ write_us=\\d+\r\n.*"));
+        assertTrue(stats, stats.substring(hit, set).contains("cmd=GET key=foo size=3 "));
+        assertFalse(stats, stats.substring(miss, hit).contains("size="));
+    }
+
+    @Test
+    public void testOldestEntriesAreOverwritten() throws IOException {
+        SlowLog slowLog = newSlowLog(1, 0, 2);
+        EmbeddedChannel channel = newChannel(slowLog);
+        send(channel, "get a\r\nget b\r\nget c\r\n");
+        String stats = send(channel, "stats slowlog\r\n");
+        assertTrue(stats, stats.contains("slowlog:2 ") && stats.contains("key=c")
+                && stats.contains("slowlog:1 ") && stats.contains("key=b"));
+        assertFalse(stats, stats.contains("slowlog:0 ") || stats.contains("key=a"));
+    }
+
+    @Test
+    public void testFastCommandsAreOnlyCounted() throws IOException {
+        SlowLog slowLog = newSlowLog(1, 60000000, 10);
+        EmbeddedChannel channel = newChannel(slowLog);
+        send(channel, "get a\r\nget b\r\n");
+        assertEquals(2, slowLog.getTraced());
+        assertEquals(0, slowLog.getRecorded());
+        assertEquals("STAT trace_commands 2\r\nSTAT slowlog_commands 0\r\nEND\r\n", send(channel, "stats slowlog\r\n"));
+    }
+
+    @Test
+    public void testSampling() throws IOException {
+        SlowLog disabled = newSlowLog(0, 0, 10);
+        EmbeddedChannel channel = newChannel(disabled);
+        for (int i = 0; i < 2 * SlowLog.DISABLED_RECHECK_INTERVAL; i++) {
+            send(channel, "get a\r\n");
+        }
+        assertEquals(0, disabled.getTraced());
+
+        SlowLog sampled = newSlowLog(10, 0, 10);
+        channel = newChannel(sampled);
+        for (int i = 0; i < 10000; i++) {
+            send(channel, "get a\r\n");
+        }
+        assertTrue("traced " + sampled.getTraced(), sampled.getTraced() > 800 && sampled.getTraced() < 1200);
+    }
+
+    @Test
+    public void testSampleDistanceOfMaxRate() throws IOException {
+        SlowLog slowLog = newSlowLog(ServerConfig.MAX_TRACE_SAMPLE_RATE, 0, 10);
+        for (int i = 0; i < 1000; i++) {
+            int distance = slowLog.nextSampleDistance();
+            assertTrue("distance " + distance, distance >= 1 && distance < 2L * ServerConfig.MAX_TRACE_SAMPLE_RATE);
+        }
+    }
+
+    @Test
+    public void testTraceIsReusedOnceWritten() throws Exception {
+        SlowLog slowLog = newSlowLog(1, 0, 10);
+        RequestTrace trace = slowLog.newTrace(null);
+        assertNotSame("Trace in flight must not be reused", trace, slowLog.newTrace(trace));
+        EmbeddedChannel channel = new EmbeddedChannel();
+        trace.operationComplete(channel.newSucceededFuture());
+        assertSame(trace, slowLog.newTrace(trace));
+        trace.operationComplete(channel.newFailedFuture(new IOException("reset")));
+        assertSame("Failed write must free the trace", trace, slowLog.newTrace(trace));
+        assertEquals(1, slowLog.getTraced());
+        assertNull(newSlowLog(0, 0, 10).newTrace(trace));
+    }
+
+    private static SlowLog newSlowLog(int sampleRate, long thresholdUs, int size) throws IOException {
+        ServerConfig config = ServerConfig.parse(new String[]{"-o", "trace.sample.rate=" + sampleRate,
+                "-o", "slowlog.threshold.us=" + thresholdUs});
+        return new SlowLog(new RuntimeSettings(config), size);
+    }
+
+    private static EmbeddedChannel newChannel(SlowLog slowLog) {
+        return new EmbeddedChannel(new MemcacheDecoder(false, slowLog), new MemcacheEncoder(),
+                new MemcacheCommandHandler(new LocalCache(100, 100000, 1, false), slowLog));
+    }
+}
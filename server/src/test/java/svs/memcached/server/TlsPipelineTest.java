@@ -0,0 +1,232 @@
+package svs.memcached.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import svs.memcached.cache.ICache;
+import svs.memcached.cache.LocalCache;
+import svs.memcached.cache.StoredValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the TLS part of the connection pipeline (SslHandler, write coalescing and flush consolidation)
+ *
+ * Client and server are EmbeddedChannels and the test moves encrypted bytes between them. The certificate is a
+ * test fixture: SelfSignedCertificate of this netty version can't generate one on jdk 9+ without BouncyCastle.
+ */
+public class TlsPipelineTest {
+
+    private static final int TLS_RECORD_HEADER_BYTES = 5;
+    private static final byte TLS_APPLICATION_DATA = 23;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CodecHarness.TrackingAllocator allocator = new CodecHarness.TrackingAllocator();
+    private final ICache<StoredValue> cache = new LocalCache(1000, 100000000, 1, false);
+    private EmbeddedChannel server;
+    private EmbeddedChannel client;
+    private final StringBuilder received = new StringBuilder();
+    private int serverRecords;
+
+    @Before
+    public void connect() throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty(ServerConfig.TLS_CERT_FILE, resource("tls/cert.pem"));
+        properties.setProperty(ServerConfig.TLS_KEY_FILE, resource("tls/key.pem"));
+        properties.setProperty(ServerConfig.TLS_PROVIDER, ServerConfig.TLS_PROVIDER_JDK);
+        final File file = folder.newFile("memcached.properties");
+        try (OutputStream out = new FileOutputStream(file)) {
+            properties.store(out, null);
+        }
+        final SslContext serverContext = MemcachedServer.createSslContext(
+                ServerConfig.parse(new String[]{"-f", file.getPath()}));
+
+        server = new EmbeddedChannel();
+        server.config().setAllocator(allocator);
+        MemcachedServer.addTlsHandlers(server.pipeline(), serverContext);
+        server.pipeline().addLast(new MemcacheDecoder(true, null), new MemcacheEncoder(),
+                new MemcacheCommandHandler(cache));
+
+        final SslContext clientContext = SslContextBuilder.forClient().sslProvider(SslProvider.JDK)
+                .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+        client = new EmbeddedChannel(clientContext.newHandler(Unpooled.buffer().alloc()));
+        exchange();
+        assertTrue("Handshake must complete", client.pipeline().get(SslHandler.class).handshakeFuture().isSuccess());
+        serverRecords = 0;
+    }
+
+    @Test
+    public void testPipelinedResponsesArriveInOrder() {
+        final StringBuilder input = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        int responseBytes = 0;
+        for (int i = 0; i < 300; i++) {
+            // a few values are larger than a TLS record, so responses are split across records
+            final int size = i % 100 == 0 ? 40000 : i % 7;
+            final String value = value(i, size);
+            input.append("set key").append(i).append(" 0 0 ").append(size).append("\r\n").append(value)
+                    .append("\r\nget key").append(i).append("\r\n");
+            final String response = "STORED\r\nVALUE key" + i + " 0 " + size + "\r\n" + value + "\r\nEND\r\n";
+            expected.append(response);
+            responseBytes += response.length();
+        }
+        client.writeOutbound(Unpooled.copiedBuffer(input, StandardCharsets.ISO_8859_1));
+        exchange();
+
+        assertEquals(expected.toString(), received.toString());
+        // 600 responses are coalesced rather than encrypted one record each
+        assertTrue("Too many TLS records: " + serverRecords,
+                serverRecords <= 2 * (responseBytes / WriteCoalescingHandler.MAX_WRITE_SIZE + 1));
+
+        client.close();
+        exchange();
+        server.finishAndReleaseAll();
+        assertReleased();
+    }
+
+    @Test
+    public void testQueuedResponsesAreReleasedOnClose() {
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            input.append("set key").append(i).append(" 0 0 1\r\nx\r\nget key").append(i).append("\r\n");
+        }
+        client.writeOutbound(Unpooled.copiedBuffer(input, StandardCharsets.ISO_8859_1));
+        ByteBuf request;
+        while ((request = client.readOutbound()) != null) {
+            server.pipeline().fireChannelRead(request); // read in progress, flushes wait for read complete
+        }
+        assertTrue("Responses must be queued", server.outboundMessages().isEmpty());
+        server.close();
+        server.runPendingTasks();
+        assertFalse(server.isOpen());
+        server.finishAndReleaseAll();
+        assertReleased();
+    }
+
+    @Test
+    public void testQueuedWritesAreFailedOnRemoval() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new WriteCoalescingHandler());
+        final ByteBuf first = Unpooled.copiedBuffer("first", StandardCharsets.US_ASCII);
+        final ByteBuf second = Unpooled.copiedBuffer("second", StandardCharsets.US_ASCII);
+        final ChannelFuture firstWrite = channel.write(first);
+        final ChannelFuture secondWrite = channel.write(second);
+        channel.pipeline().removeFirst();
+
+        assertTrue(firstWrite.cause() instanceof ClosedChannelException);
+        assertTrue(secondWrite.cause() instanceof ClosedChannelException);
+        assertEquals(0, first.refCnt());
+        assertEquals(0, second.refCnt());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testWritesAreMergedUpToRecordSize() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new WriteCoalescingHandler());
+        for (int i = 0; i < 100; i++) {
+            channel.write(Unpooled.wrappedBuffer(new byte[1000]));
+        }
+        channel.flush();
+        int writes = 0;
+        int bytes = 0;
+        ByteBuf written;
+        while ((written = channel.readOutbound()) != null) {
+            assertTrue(written.readableBytes() <= WriteCoalescingHandler.MAX_WRITE_SIZE);
+            writes++;
+            bytes += written.readableBytes();
+            written.release();
+        }
+        assertEquals(100000, bytes);
+        assertEquals(100000 / WriteCoalescingHandler.MAX_WRITE_SIZE + 1, writes);
+        assertFalse(channel.finish());
+    }
+
+    /**
+     * Moves bytes between client and server until both are quiet
+     */
+    private void exchange() {
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            ByteBuf buf;
+            while ((buf = client.readOutbound()) != null) {
+                deliver(buf, server);
+                moved = true;
+            }
+            server.runPendingTasks(); // consolidated flush
+            while ((buf = server.readOutbound()) != null) {
+                serverRecords += countApplicationRecords(buf);
+                deliver(buf, client);
+                moved = true;
+            }
+            Object decrypted;
+            while ((decrypted = client.readInbound()) != null) {
+                received.append(((ByteBuf) decrypted).toString(StandardCharsets.ISO_8859_1));
+                ((ByteBuf) decrypted).release();
+            }
+        }
+    }
+
+    private static void deliver(ByteBuf buf, EmbeddedChannel to) {
+        if (to.isOpen()) {
+            to.writeInbound(buf);
+        } else {
+            buf.release(); // e.g. close_notify after the peer is closed
+        }
+    }
+
+    /**
+     * Empties the cache (values are buffers of the server allocator) and checks nothing leaked
+     */
+    private void assertReleased() {
+        final List<String> keys = new ArrayList<>();
+        cache.entries().forEachRemaining(entry -> keys.add(entry.getKey()));
+        keys.forEach(cache::remove);
+        allocator.assertReleased();
+    }
+
+    private static int countApplicationRecords(ByteBuf buf) {
+        int records = 0;
+        for (int i = buf.readerIndex(); i + TLS_RECORD_HEADER_BYTES <= buf.writerIndex();
+             i += TLS_RECORD_HEADER_BYTES + buf.getUnsignedShort(i + 3)) {
+            if (buf.getByte(i) == TLS_APPLICATION_DATA) {
+                records++;
+            }
+        }
+        return records;
+    }
+
+    private static String value(int seed, int size) {
+        final StringBuilder value = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            value.append((char) ('a' + (seed + i) % 26));
+        }
+        return value.toString();
+    }
+
+    private String resource(String name) {
+        return new File(getClass().getClassLoader().getResource(name).getFile()).getPath();
+    }
+}